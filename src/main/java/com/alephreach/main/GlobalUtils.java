@@ -2,6 +2,7 @@ package com.alephreach.main;
 
 import io.reactivex.Observable;
 
+import java.lang.management.ManagementFactory;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
@@ -49,6 +50,12 @@ public class GlobalUtils {
         return object;
     }
 
+    // bytes allocated so far by the calling thread, handy for comparing operators in the benchmark demos
+    public static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
     public static String convertNumberToLetter(Long index, Function<String, String> f) {
 
         String a = "ABCDEFGHIJKLMNOPQRXTUVWXYZ";
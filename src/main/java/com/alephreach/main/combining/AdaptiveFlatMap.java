@@ -0,0 +1,387 @@
+package com.alephreach.main.combining;
+
+import com.alephreach.main.metrics.LatencyHistogram;
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.Observer;
+import io.reactivex.disposables.CompositeDisposable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.exceptions.Exceptions;
+import io.reactivex.functions.Function;
+import io.reactivex.internal.disposables.DisposableHelper;
+import io.reactivex.internal.queue.MpscLinkedQueue;
+import io.reactivex.internal.queue.SpscLinkedArrayQueue;
+import io.reactivex.plugins.RxJavaPlugins;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// flatMap(mapper, maxConcurrency) needs a number picked by hand: too low and cores sit idle, too high
+// and the backend behind the inner Observables gets overloaded. AdaptiveFlatMap moves the limit at
+// runtime with a gradient algorithm driven by how long inner Observables take to complete:
+//
+//   gradient = clamp(tolerance * noLoadLatency / latestLatency, 0.5, 1.0)
+//   newLimit = limit * gradient + sqrt(limit)
+//
+// As long as latency stays within tolerance of the no-load latency the sqrt(limit) term keeps growing
+// the limit. Once queueing pushes latency up, the gradient drops below one and the limit shrinks, so
+// it settles near the knee of the latency curve. One instance shares its limit and latency samples
+// across every subscription, which is what you want when they all talk to the same backend: the limit
+// caps the inner Observables in flight over all of them together. A subscription that finds the limit
+// taken waits for the next inner of any subscription to complete.
+
+public final class AdaptiveFlatMap<T, R> implements ObservableTransformer<T, R> {
+
+    private final Function<? super T, ? extends ObservableSource<? extends R>> mapper;
+    private final Limit limit;
+    private final LatencyHistogram latency = new LatencyHistogram("inner latency");
+
+    private AdaptiveFlatMap(Function<? super T, ? extends ObservableSource<? extends R>> mapper, Limit limit) {
+        this.mapper = mapper;
+        this.limit = limit;
+    }
+
+    public static <T, R> AdaptiveFlatMap<T, R> flatMapAdaptive(
+            Function<? super T, ? extends ObservableSource<? extends R>> mapper,
+            int initialLimit, int minLimit, int maxLimit) {
+        if (mapper == null) {
+            throw new NullPointerException("mapper is null");
+        }
+        if (minLimit <= 0 || minLimit > initialLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("0 < minLimit <= initialLimit <= maxLimit required but got "
+                    + minLimit + ", " + initialLimit + ", " + maxLimit);
+        }
+        return new AdaptiveFlatMap<>(mapper, new Limit(initialLimit, minLimit, maxLimit, 1.5, 0.2));
+    }
+
+    public int currentLimit() {
+        return limit.get();
+    }
+
+    // summed over all live subscriptions
+    public int inFlight() {
+        return limit.inFlight.get();
+    }
+
+    public LatencyHistogram latency() {
+        return latency;
+    }
+
+    @Override
+    public ObservableSource<R> apply(Observable<T> upstream) {
+        return new Observable<R>() {
+            @Override
+            protected void subscribeActual(Observer<? super R> observer) {
+                upstream.subscribe(new AdaptiveCoordinator<>(observer, mapper, limit, latency));
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveFlatMap[limit=" + currentLimit() + ", inFlight=" + inFlight() + ", " + latency.snapshot() + "]";
+    }
+
+    static final class Limit {
+
+        final int minLimit;
+        final int maxLimit;
+        final double tolerance;
+        final double smoothing;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final ConcurrentLinkedQueue<AdaptiveCoordinator<?, ?>> waiters = new ConcurrentLinkedQueue<>();
+
+        volatile int current;
+
+        static final double BASELINE_DRIFT = 1.001;
+
+        // guarded by this
+        double estimatedLimit;
+        double baseline;
+
+        Limit(int initialLimit, int minLimit, int maxLimit, double tolerance, double smoothing) {
+            this.current = initialLimit;
+            this.estimatedLimit = initialLimit;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.tolerance = tolerance;
+            this.smoothing = smoothing;
+        }
+
+        int get() {
+            return current;
+        }
+
+        // takes a slot if fewer than the limit are in flight
+        boolean tryAcquire() {
+            for (;;) {
+                int n = inFlight.get();
+                if (n >= current) {
+                    return false;
+                }
+                if (inFlight.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        // Queues the coordinator to be drained on the next release. False if it already was, true if
+        // it has to try once more, in case the release came in between.
+        boolean await(AdaptiveCoordinator<?, ?> coordinator) {
+            if (coordinator.waiting.compareAndSet(false, true)) {
+                waiters.offer(coordinator);
+                return true;
+            }
+            return false;
+        }
+
+        void release(int slots) {
+            if (slots == 0) {
+                return;
+            }
+            inFlight.addAndGet(-slots);
+            AdaptiveCoordinator<?, ?> waiter;
+            while ((waiter = waiters.poll()) != null) {
+                waiter.waiting.set(false);
+                waiter.drain();
+            }
+        }
+
+        synchronized void onSample(long latencyNanos) {
+            if (latencyNanos <= 0) {
+                latencyNanos = 1;
+            }
+            // the no-load latency is the lowest one seen, drifting up slowly so a backend that became
+            // permanently slower does not pin the limit at its minimum
+            baseline = baseline == 0 ? latencyNanos : Math.min(latencyNanos, baseline * BASELINE_DRIFT);
+
+            double gradient = Math.max(0.5, Math.min(1.0, tolerance * baseline / latencyNanos));
+            double next = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+            next = estimatedLimit * (1 - smoothing) + next * smoothing;
+            estimatedLimit = Math.max(minLimit, Math.min(maxLimit, next));
+            current = (int) estimatedLimit;
+        }
+    }
+
+    static final class AdaptiveCoordinator<T, R> extends AtomicInteger implements Observer<T>, Disposable {
+
+        final Observer<? super R> downstream;
+        final Function<? super T, ? extends ObservableSource<? extends R>> mapper;
+        final Limit limit;
+        final LatencyHistogram latency;
+
+        final SpscLinkedArrayQueue<T> sources = new SpscLinkedArrayQueue<>(16);
+        final MpscLinkedQueue<R> values = new MpscLinkedQueue<>();
+        final CompositeDisposable inners = new CompositeDisposable();
+        // inners of this subscription, the slots it holds in the shared limit
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final AtomicBoolean waiting = new AtomicBoolean();
+
+        Disposable upstream;
+        volatile boolean done;
+        volatile boolean cancelled;
+
+        AdaptiveCoordinator(Observer<? super R> downstream,
+                            Function<? super T, ? extends ObservableSource<? extends R>> mapper,
+                            Limit limit, LatencyHistogram latency) {
+            this.downstream = downstream;
+            this.mapper = mapper;
+            this.limit = limit;
+            this.latency = latency;
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            if (DisposableHelper.validate(upstream, d)) {
+                upstream = d;
+                downstream.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            sources.offer(t);
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            if (error.compareAndSet(null, e)) {
+                done = true;
+                drain();
+            } else {
+                RxJavaPlugins.onError(e);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            done = true;
+            drain();
+        }
+
+        void innerNext(R value) {
+            values.offer(value);
+            drain();
+        }
+
+        void innerDone(InnerObserver<R> inner) {
+            if (cancelled) {
+                return;
+            }
+            long elapsed = System.nanoTime() - inner.start;
+            inners.delete(inner);
+            latency.record(elapsed);
+            limit.onSample(elapsed);
+            // clear() may have given back this inner's slot already
+            for (;;) {
+                int n = active.get();
+                if (n == 0) {
+                    break;
+                }
+                if (active.compareAndSet(n, n - 1)) {
+                    limit.release(1);
+                    break;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void dispose() {
+            if (!cancelled) {
+                cancelled = true;
+                upstream.dispose();
+                if (getAndIncrement() == 0) {
+                    clear();
+                }
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return cancelled;
+        }
+
+        void clear() {
+            inners.dispose();
+            limit.release(active.getAndSet(0));
+            sources.clear();
+            values.clear();
+        }
+
+        void drain() {
+            if (getAndIncrement() != 0) {
+                return;
+            }
+
+            int missed = 1;
+            Observer<? super R> a = downstream;
+
+            for (;;) {
+                for (;;) {
+                    if (cancelled) {
+                        clear();
+                        return;
+                    }
+                    Throwable ex = error.get();
+                    if (ex != null) {
+                        cancelled = true;
+                        upstream.dispose();
+                        clear();
+                        a.onError(ex);
+                        return;
+                    }
+
+                    R v = values.poll();
+                    if (v != null) {
+                        a.onNext(v);
+                        continue;
+                    }
+
+                    if (!sources.isEmpty()) {
+                        if (limit.tryAcquire()) {
+                            T t = sources.poll();
+                            ObservableSource<? extends R> source;
+                            try {
+                                source = mapper.apply(t);
+                                if (source == null) {
+                                    throw new NullPointerException("The mapper returned a null ObservableSource");
+                                }
+                            } catch (Throwable e) {
+                                Exceptions.throwIfFatal(e);
+                                limit.release(1);
+                                error.compareAndSet(null, e);
+                                continue;
+                            }
+                            InnerObserver<R> inner = new InnerObserver<>(this);
+                            inners.add(inner);
+                            active.incrementAndGet();
+                            source.subscribe(inner);
+                            continue;
+                        }
+                        if (limit.await(this)) {
+                            continue;
+                        }
+                    }
+
+                    if (done && sources.isEmpty() && active.get() == 0 && values.isEmpty()) {
+                        cancelled = true;
+                        a.onComplete();
+                        return;
+                    }
+                    break;
+                }
+
+                missed = addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+        }
+    }
+
+    static final class InnerObserver<R> extends AtomicReference<Disposable> implements Observer<R>, Disposable {
+
+        final AdaptiveCoordinator<?, R> parent;
+        final long start = System.nanoTime();
+
+        InnerObserver(AdaptiveCoordinator<?, R> parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            DisposableHelper.setOnce(this, d);
+        }
+
+        @Override
+        public void onNext(R t) {
+            parent.innerNext(t);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            parent.onError(e);
+        }
+
+        @Override
+        public void onComplete() {
+            parent.innerDone(this);
+        }
+
+        @Override
+        public void dispose() {
+            DisposableHelper.dispose(this);
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return DisposableHelper.isDisposed(get());
+        }
+    }
+}
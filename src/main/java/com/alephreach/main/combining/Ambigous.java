@@ -1,6 +1,7 @@
 package com.alephreach.main.combining;
 
 import io.reactivex.Observable;
+import io.reactivex.schedulers.Schedulers;
 
 import java.sql.Time;
 import java.util.Arrays;
@@ -38,8 +39,35 @@ public class Ambigous {
         sleep(100000);
     }
 
+    private static void hedged_request() {
+
+//        amb() subscribes to every source right away, so racing a primary and a backup doubles
+//        the load on every call. Hedging only subscribes to the backup when the primary has not
+//        emitted within a delay, here the live p95 of recent calls, and never hedges more than
+//        10% of all requests:
+
+        HedgedRequests hedging = HedgedRequests.percentileDelay(0.95, 100, TimeUnit.MILLISECONDS, 0.1,
+                Schedulers.computation());
+
+        for (int i = 0; i < 200; i++) {
+            int call = i;
+
+            // most calls answer in about 20 ms, every 15th one is stuck in the slow tail
+            Observable<String> primary = Observable.timer(call % 15 == 0 ? 500 : 20, TimeUnit.MILLISECONDS)
+                    .map(l -> "primary answered call " + call);
+
+            Observable<String> backup = Observable.timer(20, TimeUnit.MILLISECONDS)
+                    .map(l -> "backup answered call " + call);
+
+            hedging.hedge(primary, backup)
+                    .blockingSubscribe(s -> System.out.println(s));
+        }
+
+        System.out.println(hedging);
+    }
 
     public static void main(String[] args) {
+//        hedged_request();
         amb();
 
     }
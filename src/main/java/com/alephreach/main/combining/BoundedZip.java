@@ -0,0 +1,386 @@
+package com.alephreach.main.combining;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.Observer;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.exceptions.Exceptions;
+import io.reactivex.exceptions.MissingBackpressureException;
+import io.reactivex.functions.BiFunction;
+import io.reactivex.functions.Function;
+import io.reactivex.internal.disposables.DisposableHelper;
+import io.reactivex.internal.disposables.EmptyDisposable;
+import io.reactivex.plugins.RxJavaPlugins;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+// zip() queues up every emission of a fast source while it waits on a slow one, and that queue has
+// no upper bound. Zipping a 300 ms interval with a 1 s interval leaks a few items every second for
+// as long as the subscription lives. BoundedZip gives each source a buffer of at most `capacity`
+// items and decides what to do when a buffer is full:
+//
+//  DROP_OLDEST    - evict the oldest buffered item, the buffer acts as a sliding window
+//  SAMPLE_LATEST  - overwrite the newest buffered item, like onBackpressureLatest() the last slot
+//                   always holds the most recent value
+//  ERROR          - terminate with a MissingBackpressureException
+//
+// Buffer occupancy, high water marks and drop counts are available through metrics().
+
+public final class BoundedZip<R> extends Observable<R> {
+
+    public enum Overflow {
+        DROP_OLDEST,
+        SAMPLE_LATEST,
+        ERROR
+    }
+
+    private final ObservableSource<?>[] sources;
+    private final Function<? super Object[], ? extends R> zipper;
+    private final int capacity;
+    private final Overflow overflow;
+    private final Metrics metrics;
+
+    private BoundedZip(ObservableSource<?>[] sources, Function<? super Object[], ? extends R> zipper,
+                       int capacity, Overflow overflow) {
+        this.sources = sources;
+        this.zipper = zipper;
+        this.capacity = capacity;
+        this.overflow = overflow;
+        this.metrics = new Metrics(sources.length, capacity);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T1, T2, R> BoundedZip<R> boundedZip(ObservableSource<? extends T1> source1,
+                                                       ObservableSource<? extends T2> source2,
+                                                       BiFunction<? super T1, ? super T2, ? extends R> zipper,
+                                                       int capacity, Overflow overflow) {
+        if (zipper == null) {
+            throw new NullPointerException("zipper is null");
+        }
+        return boundedZipArray(a -> zipper.apply((T1) a[0], (T2) a[1]), capacity, overflow, source1, source2);
+    }
+
+    public static <R> BoundedZip<R> boundedZipArray(Function<? super Object[], ? extends R> zipper,
+                                                    int capacity, Overflow overflow,
+                                                    ObservableSource<?>... sources) {
+        if (zipper == null) {
+            throw new NullPointerException("zipper is null");
+        }
+        if (overflow == null) {
+            throw new NullPointerException("overflow is null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity > 0 required but it was " + capacity);
+        }
+        return new BoundedZip<>(sources.clone(), zipper, capacity, overflow);
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    @Override
+    protected void subscribeActual(Observer<? super R> observer) {
+        if (sources.length == 0) {
+            EmptyDisposable.complete(observer);
+            return;
+        }
+        ZipCoordinator<R> parent = new ZipCoordinator<>(observer, zipper, sources.length, capacity, overflow, metrics);
+        observer.onSubscribe(parent);
+        parent.subscribe(sources);
+    }
+
+    // Occupancy is summed over all live subscriptions of this zip, drop counts and high water marks
+    // are cumulative.
+    public static final class Metrics {
+
+        private final int capacity;
+        private final AtomicIntegerArray occupancy;
+        private final AtomicIntegerArray highWaterMark;
+        private final AtomicLongArray dropped;
+
+        Metrics(int sources, int capacity) {
+            this.capacity = capacity;
+            this.occupancy = new AtomicIntegerArray(sources);
+            this.highWaterMark = new AtomicIntegerArray(sources);
+            this.dropped = new AtomicLongArray(sources);
+        }
+
+        public int sourceCount() {
+            return occupancy.length();
+        }
+
+        public int capacity() {
+            return capacity;
+        }
+
+        public int occupancy(int source) {
+            return occupancy.get(source);
+        }
+
+        public int highWaterMark(int source) {
+            return highWaterMark.get(source);
+        }
+
+        public long dropped(int source) {
+            return dropped.get(source);
+        }
+
+        void sizeChanged(int source, int delta, int size) {
+            occupancy.addAndGet(source, delta);
+            for (;;) {
+                int max = highWaterMark.get(source);
+                if (size <= max || highWaterMark.compareAndSet(source, max, size)) {
+                    break;
+                }
+            }
+        }
+
+        void dropped(int source, int count) {
+            dropped.addAndGet(source, count);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("BoundedZip.Metrics[capacity=").append(capacity);
+            for (int i = 0; i < sourceCount(); i++) {
+                sb.append(", source ").append(i)
+                        .append(": occupancy=").append(occupancy(i))
+                        .append(" highWaterMark=").append(highWaterMark(i))
+                        .append(" dropped=").append(dropped(i));
+            }
+            return sb.append(']').toString();
+        }
+    }
+
+    static final class ZipCoordinator<R> extends AtomicInteger implements Disposable {
+
+        final Observer<? super R> downstream;
+        final Function<? super Object[], ? extends R> zipper;
+        final int capacity;
+        final Overflow overflow;
+        final Metrics metrics;
+        final ZipObserver[] observers;
+
+        // every buffer is guarded by the coordinator's monitor
+        final ArrayDeque<Object>[] buffers;
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        volatile boolean cancelled;
+
+        @SuppressWarnings("unchecked")
+        ZipCoordinator(Observer<? super R> downstream, Function<? super Object[], ? extends R> zipper,
+                       int n, int capacity, Overflow overflow, Metrics metrics) {
+            this.downstream = downstream;
+            this.zipper = zipper;
+            this.capacity = capacity;
+            this.overflow = overflow;
+            this.metrics = metrics;
+            this.observers = new ZipObserver[n];
+            this.buffers = new ArrayDeque[n];
+            for (int i = 0; i < n; i++) {
+                observers[i] = new ZipObserver(this, i);
+                buffers[i] = new ArrayDeque<>(Math.min(capacity, 16));
+            }
+        }
+
+        void subscribe(ObservableSource<?>[] sources) {
+            for (int i = 0; i < sources.length && !cancelled; i++) {
+                sources[i].subscribe(observers[i]);
+            }
+        }
+
+        void innerNext(int index, Object value) {
+            boolean overflowed = false;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                ArrayDeque<Object> buffer = buffers[index];
+                int before = buffer.size();
+                if (before == capacity) {
+                    switch (overflow) {
+                        case DROP_OLDEST:
+                            buffer.poll();
+                            metrics.dropped(index, 1);
+                            break;
+                        case SAMPLE_LATEST:
+                            buffer.pollLast();
+                            metrics.dropped(index, 1);
+                            break;
+                        default:
+                            overflowed = true;
+                            break;
+                    }
+                }
+                if (!overflowed) {
+                    buffer.offer(value);
+                    metrics.sizeChanged(index, buffer.size() - before, buffer.size());
+                }
+            }
+            if (overflowed) {
+                observers[index].dispose();
+                innerError(new MissingBackpressureException("BoundedZip buffer of source " + index
+                        + " is full (capacity " + capacity + ")"));
+                return;
+            }
+            drain();
+        }
+
+        void innerError(Throwable e) {
+            if (error.compareAndSet(null, e)) {
+                drain();
+            } else {
+                RxJavaPlugins.onError(e);
+            }
+        }
+
+        @Override
+        public void dispose() {
+            if (!cancelled) {
+                cancelled = true;
+                disposeAll();
+                if (getAndIncrement() == 0) {
+                    clear();
+                }
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return cancelled;
+        }
+
+        void disposeAll() {
+            for (ZipObserver observer : observers) {
+                observer.dispose();
+            }
+        }
+
+        synchronized void clear() {
+            for (int i = 0; i < buffers.length; i++) {
+                int size = buffers[i].size();
+                buffers[i].clear();
+                metrics.sizeChanged(i, -size, 0);
+            }
+        }
+
+        void drain() {
+            if (getAndIncrement() != 0) {
+                return;
+            }
+
+            int missed = 1;
+            Observer<? super R> a = downstream;
+            int n = buffers.length;
+
+            for (;;) {
+                for (;;) {
+                    if (cancelled) {
+                        clear();
+                        return;
+                    }
+                    Throwable ex = error.get();
+                    if (ex != null) {
+                        cancelled = true;
+                        disposeAll();
+                        clear();
+                        a.onError(ex);
+                        return;
+                    }
+
+                    Object[] row = null;
+                    boolean finished = false;
+                    synchronized (this) {
+                        boolean ready = true;
+                        for (int i = 0; i < n; i++) {
+                            if (buffers[i].isEmpty()) {
+                                ready = false;
+                                // a completed source with nothing buffered can never pair again
+                                finished |= observers[i].done;
+                            }
+                        }
+                        if (ready) {
+                            row = new Object[n];
+                            for (int i = 0; i < n; i++) {
+                                row[i] = buffers[i].poll();
+                                metrics.sizeChanged(i, -1, buffers[i].size());
+                            }
+                        }
+                    }
+
+                    if (finished) {
+                        cancelled = true;
+                        disposeAll();
+                        clear();
+                        a.onComplete();
+                        return;
+                    }
+                    if (row == null) {
+                        break;
+                    }
+
+                    R v;
+                    try {
+                        v = zipper.apply(row);
+                        if (v == null) {
+                            throw new NullPointerException("The zipper returned a null value");
+                        }
+                    } catch (Throwable t) {
+                        Exceptions.throwIfFatal(t);
+                        error.compareAndSet(null, t);
+                        continue;
+                    }
+                    a.onNext(v);
+                }
+
+                missed = addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+        }
+    }
+
+    static final class ZipObserver extends AtomicReference<Disposable> implements Observer<Object> {
+
+        final ZipCoordinator<?> parent;
+        final int index;
+        volatile boolean done;
+
+        ZipObserver(ZipCoordinator<?> parent, int index) {
+            this.parent = parent;
+            this.index = index;
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            DisposableHelper.setOnce(this, d);
+        }
+
+        @Override
+        public void onNext(Object t) {
+            parent.innerNext(index, t);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            done = true;
+            parent.innerError(e);
+        }
+
+        @Override
+        public void onComplete() {
+            done = true;
+            parent.drain();
+        }
+
+        void dispose() {
+            DisposableHelper.dispose(this);
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package com.alephreach.main.combining;
 
 import io.reactivex.Observable;
+import io.reactivex.subjects.PublishSubject;
+
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import static com.alephreach.main.GlobalUtils.*;
@@ -26,8 +30,88 @@ public class CombineLatest {
         sleep(100000);
     }
 
+    private static void combineLatest_slots() {
+
+//        With many sources, combineLatest() allocates an Object[] snapshot for every tick.
+//        SlotCombineLatest keeps the latest values in a slot array and passes the same read-only
+//        view to the combiner each time. With conflation turned on, a burst of ticks only runs the
+//        combiner once:
+
+        List<Observable<Long>> sources = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            sources.add(Observable.interval(i * 100, TimeUnit.MILLISECONDS));
+        }
+
+        SlotCombineLatest.combineLatestSlots(sources, latest -> {
+            long sum = 0;
+            for (int i = 0; i < latest.size(); i++) {
+                sum += latest.<Long>get(i);
+            }
+            return "version " + latest.version() + ", sum " + sum;
+        }, true)
+                .subscribe(s -> System.out.println(s));
+
+        sleep(5000);
+    }
+
+    private static void combineLatest_benchmark() {
+
+        // 50 inputs, 1M ticks spread across them, summing the latest values on every tick
+
+        int inputs = 50;
+        int ticks = 1_000_000;
+
+        List<PublishSubject<Integer>> subjects = new ArrayList<>();
+        for (int i = 0; i < inputs; i++) {
+            subjects.add(PublishSubject.create());
+        }
+
+        long[] sink = new long[1];
+
+        Observable.combineLatest(subjects, values -> {
+            long sum = 0;
+            for (Object v : values) {
+                sum += (Integer) v;
+            }
+            return sum;
+        }).subscribe(s -> sink[0] += s);
+
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ticks; i++) {
+            subjects.get(i % inputs).onNext(i & 1023);
+        }
+        System.out.println("combineLatest(): " + (System.nanoTime() - start) / 1_000_000 + " ms, "
+                + (allocatedBytes() - bytes) / ticks + " bytes/tick");
+
+        subjects.clear();
+        for (int i = 0; i < inputs; i++) {
+            subjects.add(PublishSubject.create());
+        }
+
+        SlotCombineLatest.combineLatestSlots(subjects, latest -> {
+            long sum = 0;
+            for (int i = 0; i < latest.size(); i++) {
+                sum += latest.<Integer>get(i);
+            }
+            return sum;
+        }, false).subscribe(s -> sink[0] += s);
+
+        bytes = allocatedBytes();
+        start = System.nanoTime();
+        for (int i = 0; i < ticks; i++) {
+            subjects.get(i % inputs).onNext(i & 1023);
+        }
+        System.out.println("SlotCombineLatest: " + (System.nanoTime() - start) / 1_000_000 + " ms, "
+                + (allocatedBytes() - bytes) / ticks + " bytes/tick");
+
+        // the bytes left per tick come from boxing the inputs and the sum, the slots allocate nothing
+    }
+
     public static void main(String[] args) {
 
+//        combineLatest_slots();
+//        combineLatest_benchmark();
         combineLatest();
 
     }
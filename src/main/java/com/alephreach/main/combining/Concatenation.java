@@ -69,14 +69,30 @@ public class Concatenation {
 //        Observables faster than concatMap() can emit from them, those Observables will be
 //        queued.
 
-
-
+        getStringJustObservable()
+                .concatMap(s -> Observable.fromArray(s.split("")))
+                .subscribe(s -> System.out.println(s)); // A, l, p, h, a, B, e, t, a...
+
+//        The downside is that only one inner Observable is worked on at a time. If each inner
+//        Observable takes a while, concatMap() spends most of its time waiting. EagerConcatMap
+//        subscribes to up to maxConcurrency inner Observables at once, buffers the ones that are
+//        ahead of their turn and still emits strictly in source order:
+
+        EagerConcatMap<Integer, String> eager = EagerConcatMap.concatMapEager(
+                i -> Observable.interval(100 * (6 - i), TimeUnit.MILLISECONDS)
+                        .take(3)
+                        .map(l -> "inner " + i + ": " + l),
+                3, 16);
+
+        Observable.range(1, 5)
+                .compose(eager)
+                .blockingSubscribe(s -> System.out.println(s + "   " + eager.metrics()));
     }
 
 
 
     public static void main(String[] args) {
-//
+//        concatMap();
         concat_infinite();
 
     }
@@ -0,0 +1,356 @@
+package com.alephreach.main.combining;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.Observer;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.exceptions.Exceptions;
+import io.reactivex.exceptions.MissingBackpressureException;
+import io.reactivex.functions.Function;
+import io.reactivex.internal.disposables.DisposableHelper;
+import io.reactivex.internal.queue.SpscLinkedArrayQueue;
+import io.reactivex.plugins.RxJavaPlugins;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// concatMap() only subscribes to the next inner Observable once the current one completes, which
+// keeps the order but leaves everything else idle. EagerConcatMap subscribes to up to
+// maxConcurrency inner Observables at once, like flatMap(), but only the oldest one is allowed to
+// emit downstream. The others collect their items in a buffer of at most bufferCapacity items and are
+// drained in source order once their turn comes.
+//
+// Observables have no backpressure, so the buffer of an inner that is still waiting for its turn
+// terminates the stream with a MissingBackpressureException once it outgrows bufferCapacity, rather
+// than growing without limit. The oldest inner is not limited, its items only wait for the drain loop,
+// as they would in concatMap(). A new inner is only subscribed to while the oldest one has nothing
+// left to emit, so an inner that emits everything while being subscribed becomes the oldest first.
+
+public final class EagerConcatMap<T, R> implements ObservableTransformer<T, R> {
+
+    private final Function<? super T, ? extends ObservableSource<? extends R>> mapper;
+    private final int maxConcurrency;
+    private final int bufferCapacity;
+    private final Metrics metrics = new Metrics();
+
+    private EagerConcatMap(Function<? super T, ? extends ObservableSource<? extends R>> mapper,
+                           int maxConcurrency, int bufferCapacity) {
+        this.mapper = mapper;
+        this.maxConcurrency = maxConcurrency;
+        this.bufferCapacity = bufferCapacity;
+    }
+
+    public static <T, R> EagerConcatMap<T, R> concatMapEager(
+            Function<? super T, ? extends ObservableSource<? extends R>> mapper,
+            int maxConcurrency, int bufferCapacity) {
+        if (mapper == null) {
+            throw new NullPointerException("mapper is null");
+        }
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency > 0 required but it was " + maxConcurrency);
+        }
+        if (bufferCapacity <= 0) {
+            throw new IllegalArgumentException("bufferCapacity > 0 required but it was " + bufferCapacity);
+        }
+        return new EagerConcatMap<>(mapper, maxConcurrency, bufferCapacity);
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    @Override
+    public ObservableSource<R> apply(Observable<T> upstream) {
+        return new Observable<R>() {
+            @Override
+            protected void subscribeActual(Observer<? super R> observer) {
+                upstream.subscribe(new EagerCoordinator<>(observer, mapper, maxConcurrency, bufferCapacity, metrics));
+            }
+        };
+    }
+
+    // Summed over all live subscriptions of this operator, the peak values are cumulative.
+    public static final class Metrics {
+
+        private final AtomicLong bufferedItems = new AtomicLong();
+        private final AtomicLong peakBufferedItems = new AtomicLong();
+        private final AtomicInteger activeInners = new AtomicInteger();
+        private final AtomicLong pendingSources = new AtomicLong();
+        private final AtomicLong completedInners = new AtomicLong();
+
+        // items sitting in inner buffers, waiting for their turn or for the drain loop
+        public long bufferedItems() {
+            return bufferedItems.get();
+        }
+
+        public long peakBufferedItems() {
+            return peakBufferedItems.get();
+        }
+
+        public int activeInners() {
+            return activeInners.get();
+        }
+
+        // upstream items waiting for a free inner slot
+        public long pendingSources() {
+            return pendingSources.get();
+        }
+
+        public long completedInners() {
+            return completedInners.get();
+        }
+
+        void buffered(long delta) {
+            long now = bufferedItems.addAndGet(delta);
+            for (;;) {
+                long peak = peakBufferedItems.get();
+                if (now <= peak || peakBufferedItems.compareAndSet(peak, now)) {
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "EagerConcatMap.Metrics[bufferedItems=" + bufferedItems() + ", peakBufferedItems=" + peakBufferedItems()
+                    + ", activeInners=" + activeInners() + ", pendingSources=" + pendingSources()
+                    + ", completedInners=" + completedInners() + "]";
+        }
+    }
+
+    static final class EagerCoordinator<T, R> extends AtomicInteger implements Observer<T>, Disposable {
+
+        final Observer<? super R> downstream;
+        final Function<? super T, ? extends ObservableSource<? extends R>> mapper;
+        final int maxConcurrency;
+        final int bufferCapacity;
+        final Metrics metrics;
+
+        final SpscLinkedArrayQueue<T> sources = new SpscLinkedArrayQueue<>(16);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        // active inners in source order, only touched inside drain()
+        final ArrayDeque<InnerObserver<R>> inners = new ArrayDeque<>();
+
+        Disposable upstream;
+        volatile boolean done;
+        volatile boolean cancelled;
+
+        EagerCoordinator(Observer<? super R> downstream,
+                         Function<? super T, ? extends ObservableSource<? extends R>> mapper,
+                         int maxConcurrency, int bufferCapacity, Metrics metrics) {
+            this.downstream = downstream;
+            this.mapper = mapper;
+            this.maxConcurrency = maxConcurrency;
+            this.bufferCapacity = bufferCapacity;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            if (DisposableHelper.validate(upstream, d)) {
+                upstream = d;
+                downstream.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            sources.offer(t);
+            metrics.pendingSources.incrementAndGet();
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            if (error.compareAndSet(null, e)) {
+                done = true;
+                drain();
+            } else {
+                RxJavaPlugins.onError(e);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            done = true;
+            drain();
+        }
+
+        void innerError(Throwable e) {
+            onError(e);
+        }
+
+        @Override
+        public void dispose() {
+            if (!cancelled) {
+                cancelled = true;
+                upstream.dispose();
+                if (getAndIncrement() == 0) {
+                    clear();
+                }
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return cancelled;
+        }
+
+        void clear() {
+            metrics.pendingSources.addAndGet(-sources.size());
+            sources.clear();
+            InnerObserver<R> inner;
+            while ((inner = inners.poll()) != null) {
+                inner.dispose();
+                metrics.buffered(-inner.queue.size());
+                inner.queue.clear();
+                metrics.activeInners.decrementAndGet();
+            }
+        }
+
+        void drain() {
+            if (getAndIncrement() != 0) {
+                return;
+            }
+
+            int missed = 1;
+            Observer<? super R> a = downstream;
+
+            for (;;) {
+                for (;;) {
+                    if (cancelled) {
+                        clear();
+                        return;
+                    }
+                    Throwable ex = error.get();
+                    if (ex != null) {
+                        cancelled = true;
+                        upstream.dispose();
+                        clear();
+                        a.onError(ex);
+                        return;
+                    }
+
+                    // subscribe eagerly while there is room and the oldest inner has nothing to emit
+                    while (inners.size() < maxConcurrency) {
+                        InnerObserver<R> oldest = inners.peek();
+                        if (oldest != null && (oldest.done || !oldest.queue.isEmpty())) {
+                            break;
+                        }
+                        T t = sources.poll();
+                        if (t == null) {
+                            break;
+                        }
+                        metrics.pendingSources.decrementAndGet();
+                        ObservableSource<? extends R> source;
+                        try {
+                            source = mapper.apply(t);
+                            if (source == null) {
+                                throw new NullPointerException("The mapper returned a null ObservableSource");
+                            }
+                        } catch (Throwable e) {
+                            Exceptions.throwIfFatal(e);
+                            error.compareAndSet(null, e);
+                            break;
+                        }
+                        InnerObserver<R> inner = new InnerObserver<>(this, bufferCapacity);
+                        inner.head = oldest == null;
+                        inners.offer(inner);
+                        metrics.activeInners.incrementAndGet();
+                        source.subscribe(inner);
+                    }
+                    if (error.get() != null) {
+                        continue;
+                    }
+
+                    // only the oldest inner may emit
+                    InnerObserver<R> head = inners.peek();
+                    if (head == null) {
+                        if (done && sources.isEmpty()) {
+                            cancelled = true;
+                            a.onComplete();
+                            return;
+                        }
+                        break;
+                    }
+
+                    boolean d = head.done;
+                    R v = head.queue.poll();
+                    if (v != null) {
+                        metrics.buffered(-1);
+                        a.onNext(v);
+                        continue;
+                    }
+                    if (d) {
+                        inners.poll();
+                        InnerObserver<R> next = inners.peek();
+                        if (next != null) {
+                            next.head = true;
+                        }
+                        metrics.activeInners.decrementAndGet();
+                        metrics.completedInners.incrementAndGet();
+                        continue;
+                    }
+                    break;
+                }
+
+                missed = addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+        }
+    }
+
+    static final class InnerObserver<R> extends AtomicReference<Disposable> implements Observer<R> {
+
+        final EagerCoordinator<?, R> parent;
+        final SpscLinkedArrayQueue<R> queue = new SpscLinkedArrayQueue<>(16);
+        final int capacity;
+        volatile boolean done;
+        // set once it is the oldest inner, whose buffer is not limited
+        volatile boolean head;
+
+        InnerObserver(EagerCoordinator<?, R> parent, int capacity) {
+            this.parent = parent;
+            this.capacity = capacity;
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            DisposableHelper.setOnce(this, d);
+        }
+
+        @Override
+        public void onNext(R t) {
+            if (!head && queue.size() >= capacity) {
+                dispose();
+                parent.innerError(new MissingBackpressureException("EagerConcatMap inner buffer is full (capacity "
+                        + capacity + ")"));
+                return;
+            }
+            queue.offer(t);
+            parent.metrics.buffered(1);
+            parent.drain();
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            parent.innerError(e);
+        }
+
+        @Override
+        public void onComplete() {
+            done = true;
+            parent.drain();
+        }
+
+        void dispose() {
+            DisposableHelper.dispose(this);
+        }
+    }
+}
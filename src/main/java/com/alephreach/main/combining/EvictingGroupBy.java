@@ -0,0 +1,278 @@
+package com.alephreach.main.combining;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.Observer;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.exceptions.Exceptions;
+import io.reactivex.functions.Function;
+import io.reactivex.internal.disposables.DisposableHelper;
+import io.reactivex.observables.GroupedObservable;
+import io.reactivex.subjects.UnicastSubject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// groupBy() keeps a GroupedObservable and its queue alive for every key it has ever seen, which is
+// fine for a handful of string lengths but not for millions of user IDs. EvictingGroupBy completes
+// groups that have been idle for longer than the TTL and, when more than maxGroups are live, the least
+// recently used one. If an evicted key shows up again, a fresh group is emitted for it, so
+// downstream has to be fine with seeing the same key more than once.
+//
+// Groups are kept in an access-ordered LinkedHashMap, so both the LRU victim and the idle sweep start
+// from the eldest entry and never scan active groups.
+
+public final class EvictingGroupBy<T, K> implements ObservableTransformer<T, GroupedObservable<K, T>> {
+
+    private final Function<? super T, ? extends K> keySelector;
+    private final long ttlNanos;
+    private final int maxGroups;
+    private final Scheduler scheduler;
+    private final Metrics metrics = new Metrics();
+
+    private EvictingGroupBy(Function<? super T, ? extends K> keySelector, long ttlNanos, int maxGroups,
+                            Scheduler scheduler) {
+        this.keySelector = keySelector;
+        this.ttlNanos = ttlNanos;
+        this.maxGroups = maxGroups;
+        this.scheduler = scheduler;
+    }
+
+    public static <T, K> EvictingGroupBy<T, K> groupByEvicting(Function<? super T, ? extends K> keySelector,
+                                                              long idleTtl, TimeUnit unit, int maxGroups,
+                                                              Scheduler scheduler) {
+        if (keySelector == null) {
+            throw new NullPointerException("keySelector is null");
+        }
+        if (scheduler == null) {
+            throw new NullPointerException("scheduler is null");
+        }
+        if (idleTtl <= 0) {
+            throw new IllegalArgumentException("idleTtl > 0 required but it was " + idleTtl);
+        }
+        if (maxGroups <= 0) {
+            throw new IllegalArgumentException("maxGroups > 0 required but it was " + maxGroups);
+        }
+        return new EvictingGroupBy<>(keySelector, unit.toNanos(idleTtl), maxGroups, scheduler);
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    @Override
+    public ObservableSource<GroupedObservable<K, T>> apply(Observable<T> upstream) {
+        return new Observable<GroupedObservable<K, T>>() {
+            @Override
+            protected void subscribeActual(Observer<? super GroupedObservable<K, T>> observer) {
+                upstream.subscribe(new GroupByObserver<>(observer, keySelector, ttlNanos, maxGroups, scheduler, metrics));
+            }
+        };
+    }
+
+    public static final class Metrics {
+
+        private final AtomicLong liveGroups = new AtomicLong();
+        private final AtomicLong createdGroups = new AtomicLong();
+        private final AtomicLong idleEvictions = new AtomicLong();
+        private final AtomicLong lruEvictions = new AtomicLong();
+
+        public long liveGroups() {
+            return liveGroups.get();
+        }
+
+        public long createdGroups() {
+            return createdGroups.get();
+        }
+
+        public long idleEvictions() {
+            return idleEvictions.get();
+        }
+
+        public long lruEvictions() {
+            return lruEvictions.get();
+        }
+
+        @Override
+        public String toString() {
+            return "EvictingGroupBy.Metrics[liveGroups=" + liveGroups() + ", createdGroups=" + createdGroups()
+                    + ", idleEvictions=" + idleEvictions() + ", lruEvictions=" + lruEvictions() + "]";
+        }
+    }
+
+    static final class Group<K, T> extends GroupedObservable<K, T> {
+
+        final UnicastSubject<T> subject = UnicastSubject.create();
+        long lastAccess;
+
+        Group(K key) {
+            super(key);
+        }
+
+        @Override
+        protected void subscribeActual(Observer<? super T> observer) {
+            subject.subscribe(observer);
+        }
+    }
+
+    static final class GroupByObserver<T, K> implements Observer<T>, Disposable, Runnable {
+
+        final Observer<? super GroupedObservable<K, T>> downstream;
+        final Function<? super T, ? extends K> keySelector;
+        final long ttlNanos;
+        final int maxGroups;
+        final Scheduler scheduler;
+        final Metrics metrics;
+
+        // access ordered, eldest entry is the least recently used group; guarded by this
+        final LinkedHashMap<K, Group<K, T>> groups = new LinkedHashMap<>(16, 0.75f, true);
+
+        // the downstream may dispose from within onSubscribe, before the sweeper is started
+        final AtomicReference<Disposable> sweeper = new AtomicReference<>();
+
+        Disposable upstream;
+        boolean done;
+        volatile boolean disposed;
+
+        GroupByObserver(Observer<? super GroupedObservable<K, T>> downstream, Function<? super T, ? extends K> keySelector,
+                        long ttlNanos, int maxGroups, Scheduler scheduler, Metrics metrics) {
+            this.downstream = downstream;
+            this.keySelector = keySelector;
+            this.ttlNanos = ttlNanos;
+            this.maxGroups = maxGroups;
+            this.scheduler = scheduler;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            if (DisposableHelper.validate(upstream, d)) {
+                upstream = d;
+                downstream.onSubscribe(this);
+                long period = Math.max(1, ttlNanos / 2);
+                DisposableHelper.replace(sweeper,
+                        scheduler.schedulePeriodicallyDirect(this, period, period, TimeUnit.NANOSECONDS));
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            K key;
+            try {
+                key = keySelector.apply(t);
+            } catch (Throwable e) {
+                Exceptions.throwIfFatal(e);
+                upstream.dispose();
+                onError(e);
+                return;
+            }
+
+            Group<K, T> created = null;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                Group<K, T> group = groups.get(key);
+                if (group == null) {
+                    if (groups.size() == maxGroups) {
+                        evictEldest();
+                        metrics.lruEvictions.incrementAndGet();
+                    }
+                    group = new Group<>(key);
+                    groups.put(key, group);
+                    metrics.liveGroups.incrementAndGet();
+                    metrics.createdGroups.incrementAndGet();
+                    created = group;
+                }
+                group.lastAccess = scheduler.now(TimeUnit.NANOSECONDS);
+                if (created != null) {
+                    downstream.onNext(created);
+                }
+                group.subject.onNext(t);
+            }
+        }
+
+        // the idle sweep
+        @Override
+        public void run() {
+            long now = scheduler.now(TimeUnit.NANOSECONDS);
+            synchronized (this) {
+                Iterator<Group<K, T>> it = groups.values().iterator();
+                while (it.hasNext()) {
+                    Group<K, T> group = it.next();
+                    if (now - group.lastAccess < ttlNanos) {
+                        break;
+                    }
+                    it.remove();
+                    metrics.liveGroups.decrementAndGet();
+                    metrics.idleEvictions.incrementAndGet();
+                    group.subject.onComplete();
+                }
+            }
+        }
+
+        void evictEldest() {
+            Iterator<Group<K, T>> it = groups.values().iterator();
+            Group<K, T> eldest = it.next();
+            it.remove();
+            metrics.liveGroups.decrementAndGet();
+            eldest.subject.onComplete();
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            terminate(e, true);
+        }
+
+        @Override
+        public void onComplete() {
+            terminate(null, true);
+        }
+
+        // groups that are already out still get their terminal event, only new emissions stop
+        @Override
+        public void dispose() {
+            if (!disposed) {
+                disposed = true;
+                upstream.dispose();
+                terminate(null, false);
+            }
+        }
+
+        void terminate(Throwable error, boolean signalDownstream) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                DisposableHelper.dispose(sweeper);
+                for (Group<K, T> group : groups.values()) {
+                    if (error != null) {
+                        group.subject.onError(error);
+                    } else {
+                        group.subject.onComplete();
+                    }
+                }
+                metrics.liveGroups.addAndGet(-groups.size());
+                groups.clear();
+                if (signalDownstream) {
+                    if (error != null) {
+                        downstream.onError(error);
+                    } else {
+                        downstream.onComplete();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return disposed;
+        }
+    }
+}
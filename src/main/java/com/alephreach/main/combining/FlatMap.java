@@ -4,9 +4,12 @@ import com.alephreach.main.GlobalUtils;
 import io.reactivex.Observable;
 import io.reactivex.Observer;
 import io.reactivex.functions.BiFunction;
+import io.reactivex.functions.Function;
 import io.reactivex.internal.operators.observable.ObservableFromArray;
+import io.reactivex.schedulers.Schedulers;
 
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.alephreach.main.GlobalUtils.*;
 
@@ -73,6 +76,29 @@ public class FlatMap {
         sleep(12000);
     }
 
+    private static void flatMap3_adaptive() {
+
+//        flatMap() takes an optional maxConcurrency argument, but a fixed number is hard to get
+//        right. AdaptiveFlatMap moves the limit at runtime based on how long inner Observables take.
+//        Here the "backend" slows down once more than 8 calls overlap, and the limit settles close
+//        to that knee:
+
+        AtomicInteger concurrentCalls = new AtomicInteger();
+
+        AdaptiveFlatMap<Integer, String> adaptive = AdaptiveFlatMap.flatMapAdaptive(i ->
+                Observable.fromCallable(() -> {
+                    int overlapping = concurrentCalls.incrementAndGet();
+                    sleep(overlapping <= 8 ? 20 : 20 * (overlapping - 7));
+                    concurrentCalls.decrementAndGet();
+                    return "call " + i;
+                }).subscribeOn(Schedulers.io()), 4, 1, 64);
+
+        Observable.range(1, 2000)
+                .compose(adaptive)
+                .buffer(200)
+                .blockingSubscribe(s -> System.out.println(adaptive));
+    }
+
     private static void flatMap4() {
 
 //        We can pass a second
@@ -109,6 +135,55 @@ public class FlatMap {
                 .subscribe(s -> System.out.println(s));
     }
 
+    private static void test_scalar() {
+
+//        The mapper in test() returns Observable.just() for every element, so flatMap() builds an
+//        inner subscription just to move a single value. ScalarFlatMap spots just(), empty() and
+//        fromCallable() inners and emits their value inline:
+
+        BiFunction<String, Integer, String> mapper = (original, flatted) -> original + " has " + flatted + " letters";
+
+        getStringJustObservable()
+                .compose(ScalarFlatMap.flatMapScalar(s -> Observable.just(s.length()), mapper))
+                .subscribe(s -> System.out.println(s));
+
+        getRandomJustIntegerObservable()
+                .compose(ScalarFlatMap.concatMapScalar(s -> s == 0 ? Observable.<Integer>empty() : Observable.just(s).repeat(s)))
+                .subscribe(s -> System.out.println(s));
+    }
+
+    private static void scalar_benchmark() {
+
+        // 10M elements, 9 out of 10 map to just(), the rest to a two element range()
+
+        int count = 10_000_000;
+        Function<Integer, Observable<Integer>> mapper = i -> i % 10 == 0 ? Observable.range(i, 2) : Observable.just(i);
+
+        long start = System.nanoTime();
+        long bytes = allocatedBytes();
+        long emitted = Observable.range(0, count).flatMap(mapper).count().blockingGet();
+        System.out.println("flatMap(): " + emitted + " items in " + (System.nanoTime() - start) / 1_000_000 + " ms, "
+                + (allocatedBytes() - bytes) / count + " bytes/element");
+
+        start = System.nanoTime();
+        bytes = allocatedBytes();
+        emitted = Observable.range(0, count).compose(ScalarFlatMap.flatMapScalar(mapper)).count().blockingGet();
+        System.out.println("flatMapScalar(): " + emitted + " items in " + (System.nanoTime() - start) / 1_000_000 + " ms, "
+                + (allocatedBytes() - bytes) / count + " bytes/element");
+
+        start = System.nanoTime();
+        bytes = allocatedBytes();
+        emitted = Observable.range(0, count).concatMap(mapper).count().blockingGet();
+        System.out.println("concatMap(): " + emitted + " items in " + (System.nanoTime() - start) / 1_000_000 + " ms, "
+                + (allocatedBytes() - bytes) / count + " bytes/element");
+
+        start = System.nanoTime();
+        bytes = allocatedBytes();
+        emitted = Observable.range(0, count).compose(ScalarFlatMap.concatMapScalar(mapper)).count().blockingGet();
+        System.out.println("concatMapScalar(): " + emitted + " items in " + (System.nanoTime() - start) / 1_000_000 + " ms, "
+                + (allocatedBytes() - bytes) / count + " bytes/element");
+    }
+
     private static void test2() {
 
         getStringJustObservable()
@@ -125,8 +200,11 @@ public class FlatMap {
 //        flatMap();
 //        flatMap2();
 //        flatMap3();
+//        flatMap3_adaptive();
         flatMap4();
 //        test();
+//        test_scalar();
+//        scalar_benchmark();
 //        test2();
     }
 
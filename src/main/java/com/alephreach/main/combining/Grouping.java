@@ -2,6 +2,9 @@ package com.alephreach.main.combining;
 
 import io.reactivex.Observable;
 import io.reactivex.observables.GroupedObservable;
+import io.reactivex.schedulers.Schedulers;
+
+import java.util.concurrent.TimeUnit;
 
 import static com.alephreach.main.GlobalUtils.*;
 
@@ -29,7 +32,29 @@ public class Grouping {
                 .subscribe(s -> System.out.println(s));
     }
 
+    private static void group_with_eviction() {
+
+//        groupBy() keeps every group it has ever created alive until the source completes. With
+//        millions of distinct keys, such as user IDs, that never stops growing. EvictingGroupBy
+//        completes groups that have been idle past a TTL and caps the number of live groups, evicting
+//        the least recently used one. A key that shows up again simply gets a new group:
+
+        EvictingGroupBy<Long, Long> byUser = EvictingGroupBy.groupByEvicting(
+                id -> id % 1000, 500, TimeUnit.MILLISECONDS, 100, Schedulers.computation());
+
+        Observable.interval(1, TimeUnit.MILLISECONDS)
+                .map(i -> i * 7919)                     // spread the "user IDs" around
+                .compose(byUser)
+                .flatMapSingle(group -> group.count().map(c -> group.getKey() + " had " + c + " events"))
+                .subscribe(s -> { });
+
+        Observable.interval(1, TimeUnit.SECONDS)
+                .take(5)
+                .blockingSubscribe(i -> System.out.println(byUser.metrics()));
+    }
+
     public static void main(String[] args) {
+//        group_with_eviction();
         group();
     }
 
@@ -0,0 +1,290 @@
+package com.alephreach.main.combining;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.Observer;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.internal.disposables.DisposableHelper;
+import io.reactivex.schedulers.Schedulers;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// amb() subscribes to every source at the same moment, so racing two backends doubles the load on
+// both of them. Hedging is the cheaper version of the same idea: subscribe to the primary, and only
+// if it has not emitted after a delay subscribe to a backup as well. Whichever signals first wins
+// and the other one is disposed, exactly like amb().
+//
+// The delay is either fixed or follows a percentile (say p95) of the recently observed latencies,
+// so only the slow tail gets hedged. maxHedgeRatio caps hedges to a share of all requests, which
+// keeps a struggling backend from receiving twice the traffic.
+//
+// One HedgedRequests instance is meant to be shared by every call to the same backend, it holds the
+// latency samples and the counters.
+
+public final class HedgedRequests {
+
+    private static final int SAMPLES = 512;
+
+    private final long fixedDelayNanos;
+    private final double percentile;
+    private final double maxHedgeRatio;
+    private final Scheduler scheduler;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedgesFired = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+    private final AtomicLong hedgesSuppressed = new AtomicLong();
+
+    // ring of recent first-signal latencies, the percentile is recomputed every 32 samples
+    private final long[] samples = new long[SAMPLES];
+    private int sampleCount;
+    private int sampleIndex;
+    private volatile long percentileDelayNanos;
+
+    private HedgedRequests(long fixedDelayNanos, double percentile, double maxHedgeRatio, Scheduler scheduler) {
+        if (maxHedgeRatio < 0 || maxHedgeRatio > 1) {
+            throw new IllegalArgumentException("maxHedgeRatio must be between 0 and 1 but it was " + maxHedgeRatio);
+        }
+        if (scheduler == null) {
+            throw new NullPointerException("scheduler is null");
+        }
+        this.fixedDelayNanos = fixedDelayNanos;
+        this.percentile = percentile;
+        this.maxHedgeRatio = maxHedgeRatio;
+        this.scheduler = scheduler;
+        this.percentileDelayNanos = fixedDelayNanos;
+    }
+
+    public static HedgedRequests fixedDelay(long delay, TimeUnit unit, double maxHedgeRatio) {
+        return fixedDelay(delay, unit, maxHedgeRatio, Schedulers.computation());
+    }
+
+    public static HedgedRequests fixedDelay(long delay, TimeUnit unit, double maxHedgeRatio, Scheduler scheduler) {
+        return new HedgedRequests(unit.toNanos(delay), -1, maxHedgeRatio, scheduler);
+    }
+
+    // initialDelay is used until enough latencies have been observed to compute the percentile
+    public static HedgedRequests percentileDelay(double percentile, long initialDelay, TimeUnit unit,
+                                                 double maxHedgeRatio, Scheduler scheduler) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1 but it was " + percentile);
+        }
+        return new HedgedRequests(unit.toNanos(initialDelay), percentile, maxHedgeRatio, scheduler);
+    }
+
+    public <T> Observable<T> hedge(ObservableSource<? extends T> primary, ObservableSource<? extends T> backup) {
+        return new HedgedObservable<>(this, primary, backup);
+    }
+
+    public long requests() {
+        return requests.get();
+    }
+
+    public long hedgesFired() {
+        return hedgesFired.get();
+    }
+
+    public long hedgesWon() {
+        return hedgesWon.get();
+    }
+
+    // hedges that were due but skipped because of maxHedgeRatio
+    public long hedgesSuppressed() {
+        return hedgesSuppressed.get();
+    }
+
+    public long currentDelay(TimeUnit unit) {
+        return unit.convert(percentile < 0 ? fixedDelayNanos : percentileDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "HedgedRequests[requests=" + requests() + ", hedgesFired=" + hedgesFired()
+                + ", hedgesWon=" + hedgesWon() + ", hedgesSuppressed=" + hedgesSuppressed()
+                + ", delay=" + currentDelay(TimeUnit.MILLISECONDS) + " ms]";
+    }
+
+    boolean tryAcquireHedge() {
+        long fired = hedgesFired.get();
+        for (;;) {
+            if (fired + 1 > maxHedgeRatio * requests.get()) {
+                hedgesSuppressed.incrementAndGet();
+                return false;
+            }
+            if (hedgesFired.compareAndSet(fired, fired + 1)) {
+                return true;
+            }
+            fired = hedgesFired.get();
+        }
+    }
+
+    void recordLatency(long nanos) {
+        if (percentile < 0) {
+            return;
+        }
+        synchronized (samples) {
+            samples[sampleIndex] = nanos;
+            sampleIndex = (sampleIndex + 1) % SAMPLES;
+            if (sampleCount < SAMPLES) {
+                sampleCount++;
+            }
+            if ((sampleIndex & 31) == 0 && sampleCount >= 32) {
+                long[] sorted = Arrays.copyOf(samples, sampleCount);
+                Arrays.sort(sorted);
+                percentileDelayNanos = sorted[(int) Math.min(sorted.length - 1, (long) (percentile * sorted.length))];
+            }
+        }
+    }
+
+    static final class HedgedObservable<T> extends Observable<T> {
+
+        final HedgedRequests parent;
+        final ObservableSource<? extends T> primary;
+        final ObservableSource<? extends T> backup;
+
+        HedgedObservable(HedgedRequests parent, ObservableSource<? extends T> primary,
+                         ObservableSource<? extends T> backup) {
+            this.parent = parent;
+            this.primary = primary;
+            this.backup = backup;
+        }
+
+        @Override
+        protected void subscribeActual(Observer<? super T> observer) {
+            parent.requests.incrementAndGet();
+            HedgeCoordinator<T> coordinator = new HedgeCoordinator<>(observer, parent, backup);
+            observer.onSubscribe(coordinator);
+            primary.subscribe(coordinator.primary);
+            long delay = parent.currentDelay(TimeUnit.NANOSECONDS);
+            if (coordinator.get() == HedgeCoordinator.NONE) {
+                DisposableHelper.replace(coordinator.timer,
+                        parent.scheduler.scheduleDirect(coordinator, delay, TimeUnit.NANOSECONDS));
+            }
+        }
+    }
+
+    static final class HedgeCoordinator<T> extends AtomicInteger implements Disposable, Runnable {
+
+        static final int NONE = 0;
+        static final int PRIMARY = 1;
+        static final int BACKUP = 2;
+        static final int DISPOSED = 3;
+
+        final Observer<? super T> downstream;
+        final HedgedRequests parent;
+        final ObservableSource<? extends T> backupSource;
+        final long start = System.nanoTime();
+
+        final HedgeObserver<T> primary = new HedgeObserver<>(this, PRIMARY);
+        final HedgeObserver<T> backup = new HedgeObserver<>(this, BACKUP);
+        final AtomicReference<Disposable> timer = new AtomicReference<>();
+
+        HedgeCoordinator(Observer<? super T> downstream, HedgedRequests parent,
+                         ObservableSource<? extends T> backupSource) {
+            this.downstream = downstream;
+            this.parent = parent;
+            this.backupSource = backupSource;
+        }
+
+        // the hedge timer
+        @Override
+        public void run() {
+            if (get() == NONE && parent.tryAcquireHedge()) {
+                // the request may have ended in between, then the hedge never fired
+                if (get() != NONE) {
+                    parent.hedgesFired.decrementAndGet();
+                    return;
+                }
+                backupSource.subscribe(backup);
+            }
+        }
+
+        // the first source to signal anything wins, the loser and the timer are disposed
+        boolean win(int index) {
+            int w = get();
+            if (w == index) {
+                return true;
+            }
+            if (w == NONE && compareAndSet(NONE, index)) {
+                DisposableHelper.dispose(timer);
+                (index == PRIMARY ? backup : primary).dispose();
+                parent.recordLatency(System.nanoTime() - start);
+                if (index == BACKUP) {
+                    parent.hedgesWon.incrementAndGet();
+                }
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void dispose() {
+            if (getAndSet(DISPOSED) != DISPOSED) {
+                DisposableHelper.dispose(timer);
+                primary.dispose();
+                backup.dispose();
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return get() == DISPOSED;
+        }
+    }
+
+    static final class HedgeObserver<T> extends AtomicReference<Disposable> implements Observer<T> {
+
+        final HedgeCoordinator<T> parent;
+        final int index;
+        boolean won;
+
+        HedgeObserver(HedgeCoordinator<T> parent, int index) {
+            this.parent = parent;
+            this.index = index;
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            if (!DisposableHelper.setOnce(this, d) && index == HedgeCoordinator.BACKUP
+                    && get() == DisposableHelper.DISPOSED) {
+                // disposed before it got subscribed, the backup never ran
+                parent.parent.hedgesFired.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            if (won || parent.win(index)) {
+                won = true;
+                parent.downstream.onNext(t);
+            } else {
+                dispose();
+            }
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            if (won || parent.win(index)) {
+                won = true;
+                parent.downstream.onError(e);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            if (won || parent.win(index)) {
+                won = true;
+                parent.downstream.onComplete();
+            }
+        }
+
+        void dispose() {
+            DisposableHelper.dispose(this);
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package com.alephreach.main.combining;
 
 import static com.alephreach.main.GlobalUtils.*;
+import io.reactivex.Flowable;
 import io.reactivex.Observable;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -102,8 +105,53 @@ public class Merging {
 
 
 
+    private static void ordered_merge() {
+
+//        If every source is already sorted, we don't need to collect everything with sorted() to get
+//        ordered output. SortedMerge keeps the current head of each source in a min-heap and always
+//        emits the smallest one, only requesting a few items ahead from each source:
+
+        Flowable<Integer> odds = Flowable.just(1, 3, 5, 7, 9);
+        Flowable<Integer> evens = Flowable.just(2, 4, 6, 8, 10);
+        Flowable<Integer> tens = Flowable.just(0, 10, 20);
+
+        SortedMerge.mergeSorted(odds, evens, tens)
+                .subscribe(s -> System.out.println(s)); // 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 10, 20
+    }
+
+    private static void ordered_merge_benchmark() {
+
+        // 10M items spread across 64 sorted sources, merge().sorted() vs the k-way SortedMerge
+
+        int sources = 64;
+        int perSource = 10_000_000 / sources;
+
+        List<Observable<Integer>> observables = new ArrayList<>();
+        List<Flowable<Integer>> flowables = new ArrayList<>();
+        for (int i = 0; i < sources; i++) {
+            int offset = i;
+            observables.add(Observable.range(0, perSource).map(n -> n * sources + offset));
+            flowables.add(Flowable.range(0, perSource).map(n -> n * sources + offset));
+        }
+
+        long start = System.nanoTime();
+        long count = Observable.merge(observables)
+                .sorted()
+                .count()
+                .blockingGet();
+        System.out.println("merge().sorted(): " + count + " items in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        start = System.nanoTime();
+        count = SortedMerge.mergeSorted(Comparator.<Integer>naturalOrder(), SortedMerge.DEFAULT_PREFETCH, flowables)
+                .count()
+                .blockingGet();
+        System.out.println("SortedMerge: " + count + " items in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
     public static void main(String[] args) {
 //        merge();
+//        ordered_merge();
+//        ordered_merge_benchmark();
         merge_infinite();
     }
 
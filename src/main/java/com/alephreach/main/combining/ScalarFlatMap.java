@@ -0,0 +1,470 @@
+package com.alephreach.main.combining;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.Observer;
+import io.reactivex.disposables.CompositeDisposable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.exceptions.Exceptions;
+import io.reactivex.functions.BiFunction;
+import io.reactivex.functions.Function;
+import io.reactivex.internal.disposables.DisposableHelper;
+import io.reactivex.internal.fuseable.ScalarCallable;
+import io.reactivex.internal.queue.MpscLinkedQueue;
+import io.reactivex.internal.queue.SpscLinkedArrayQueue;
+import io.reactivex.plugins.RxJavaPlugins;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// A lot of flatMap() calls map most elements to Observable.just(x), Observable.empty() or
+// Observable.fromCallable(...). Subscribing to those means an inner Observer, a Disposable and a
+// trip through the merge queue just to move one value. The operators here look at what the mapper
+// returned first: just() and empty() are read directly, fromCallable() is called in place, and the
+// value is emitted inline. Only real multi-value inners get an inner subscription.
+
+public final class ScalarFlatMap {
+
+    private ScalarFlatMap() {
+    }
+
+    public static <T, R> ObservableTransformer<T, R> flatMapScalar(
+            Function<? super T, ? extends ObservableSource<? extends R>> mapper) {
+        if (mapper == null) {
+            throw new NullPointerException("mapper is null");
+        }
+        return upstream -> new Observable<R>() {
+            @Override
+            protected void subscribeActual(Observer<? super R> observer) {
+                upstream.subscribe(new MergeObserver<>(observer, mapper));
+            }
+        };
+    }
+
+    public static <T, U, R> ObservableTransformer<T, R> flatMapScalar(
+            Function<? super T, ? extends ObservableSource<? extends U>> mapper,
+            BiFunction<? super T, ? super U, ? extends R> combiner) {
+        if (combiner == null) {
+            throw new NullPointerException("combiner is null");
+        }
+        return flatMapScalar(t -> combined(t, mapper.apply(t), combiner));
+    }
+
+    public static <T, R> ObservableTransformer<T, R> concatMapScalar(
+            Function<? super T, ? extends ObservableSource<? extends R>> mapper) {
+        if (mapper == null) {
+            throw new NullPointerException("mapper is null");
+        }
+        return upstream -> new Observable<R>() {
+            @Override
+            protected void subscribeActual(Observer<? super R> observer) {
+                upstream.subscribe(new ConcatObserver<>(observer, mapper));
+            }
+        };
+    }
+
+    // keeps scalar inners recognisable after the combiner has been applied
+    @SuppressWarnings("unchecked")
+    static <T, U, R> ObservableSource<? extends R> combined(T t, ObservableSource<? extends U> inner,
+                                                           BiFunction<? super T, ? super U, ? extends R> combiner)
+            throws Exception {
+        if (inner instanceof Callable) {
+            U u = ((Callable<U>) inner).call();
+            return u == null ? Observable.<R>empty() : Observable.just(combiner.apply(t, u));
+        }
+        return Observable.wrap(inner).map(u -> combiner.apply(t, u));
+    }
+
+    // Returns the single value of a scalar source, NO_VALUE for an empty one, or null when the source
+    // has to be subscribed to.
+    @SuppressWarnings("unchecked")
+    static <R> Object scalarValue(ObservableSource<? extends R> source) throws Exception {
+        if (source instanceof ScalarCallable) {
+            Object v = ((ScalarCallable<R>) source).call();
+            return v == null ? NO_VALUE : v;
+        }
+        if (source instanceof Callable) {
+            Object v = ((Callable<R>) source).call();
+            return v == null ? NO_VALUE : v;
+        }
+        return null;
+    }
+
+    static final Object NO_VALUE = new Object();
+
+    static final class MergeObserver<T, R> extends AtomicInteger implements Observer<T>, Disposable {
+
+        final Observer<? super R> downstream;
+        final Function<? super T, ? extends ObservableSource<? extends R>> mapper;
+
+        final MpscLinkedQueue<R> values = new MpscLinkedQueue<>();
+        final CompositeDisposable inners = new CompositeDisposable();
+        final AtomicInteger active = new AtomicInteger(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        Disposable upstream;
+        volatile boolean cancelled;
+
+        MergeObserver(Observer<? super R> downstream, Function<? super T, ? extends ObservableSource<? extends R>> mapper) {
+            this.downstream = downstream;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            if (DisposableHelper.validate(upstream, d)) {
+                upstream = d;
+                downstream.onSubscribe(this);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onNext(T t) {
+            ObservableSource<? extends R> source;
+            Object scalar;
+            try {
+                source = mapper.apply(t);
+                if (source == null) {
+                    throw new NullPointerException("The mapper returned a null ObservableSource");
+                }
+                scalar = scalarValue(source);
+            } catch (Throwable e) {
+                Exceptions.throwIfFatal(e);
+                upstream.dispose();
+                onError(e);
+                return;
+            }
+
+            if (scalar == NO_VALUE) {
+                return;
+            }
+            if (scalar != null) {
+                emit((R) scalar);
+                return;
+            }
+
+            InnerObserver<R> inner = new InnerObserver<>(this);
+            inners.add(inner);
+            active.incrementAndGet();
+            source.subscribe(inner);
+        }
+
+        // emits inline when nobody else is emitting, otherwise leaves the value for the drain loop
+        void emit(R value) {
+            if (get() == 0 && compareAndSet(0, 1)) {
+                downstream.onNext(value);
+                if (decrementAndGet() == 0) {
+                    return;
+                }
+            } else {
+                values.offer(value);
+                if (getAndIncrement() != 0) {
+                    return;
+                }
+            }
+            drainLoop();
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            if (error.compareAndSet(null, e)) {
+                drain();
+            } else {
+                RxJavaPlugins.onError(e);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            innerDone();
+        }
+
+        void innerDone() {
+            active.decrementAndGet();
+            drain();
+        }
+
+        @Override
+        public void dispose() {
+            if (!cancelled) {
+                cancelled = true;
+                upstream.dispose();
+                inners.dispose();
+                if (getAndIncrement() == 0) {
+                    values.clear();
+                }
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return cancelled;
+        }
+
+        void drain() {
+            if (getAndIncrement() == 0) {
+                drainLoop();
+            }
+        }
+
+        void drainLoop() {
+            int missed = 1;
+            Observer<? super R> a = downstream;
+
+            for (;;) {
+                for (;;) {
+                    if (cancelled) {
+                        values.clear();
+                        return;
+                    }
+                    Throwable ex = error.get();
+                    if (ex != null) {
+                        cancelled = true;
+                        upstream.dispose();
+                        inners.dispose();
+                        values.clear();
+                        a.onError(ex);
+                        return;
+                    }
+
+                    // read the count before polling so a late value is never missed
+                    boolean d = active.get() == 0;
+                    R v = values.poll();
+                    if (v != null) {
+                        a.onNext(v);
+                        continue;
+                    }
+                    if (d) {
+                        cancelled = true;
+                        a.onComplete();
+                        return;
+                    }
+                    break;
+                }
+
+                missed = addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+        }
+    }
+
+    static final class InnerObserver<R> extends AtomicReference<Disposable> implements Observer<R>, Disposable {
+
+        final MergeObserver<?, R> parent;
+
+        InnerObserver(MergeObserver<?, R> parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            DisposableHelper.setOnce(this, d);
+        }
+
+        @Override
+        public void onNext(R t) {
+            parent.emit(t);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            parent.onError(e);
+        }
+
+        @Override
+        public void onComplete() {
+            parent.inners.delete(this);
+            parent.innerDone();
+        }
+
+        @Override
+        public void dispose() {
+            DisposableHelper.dispose(this);
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return DisposableHelper.isDisposed(get());
+        }
+    }
+
+    static final class ConcatObserver<T, R> extends AtomicInteger implements Observer<T>, Disposable {
+
+        final Observer<? super R> downstream;
+        final Function<? super T, ? extends ObservableSource<? extends R>> mapper;
+        final SpscLinkedArrayQueue<T> sources = new SpscLinkedArrayQueue<>(16);
+        final ConcatInnerObserver<R> inner;
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        Disposable upstream;
+        volatile boolean active;
+        volatile boolean done;
+        volatile boolean cancelled;
+
+        ConcatObserver(Observer<? super R> downstream, Function<? super T, ? extends ObservableSource<? extends R>> mapper) {
+            this.downstream = downstream;
+            this.mapper = mapper;
+            this.inner = new ConcatInnerObserver<>(this);
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            if (DisposableHelper.validate(upstream, d)) {
+                upstream = d;
+                downstream.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            sources.offer(t);
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            if (error.compareAndSet(null, e)) {
+                done = true;
+                drain();
+            } else {
+                RxJavaPlugins.onError(e);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            done = true;
+            drain();
+        }
+
+        void innerComplete() {
+            active = false;
+            drain();
+        }
+
+        @Override
+        public void dispose() {
+            if (!cancelled) {
+                cancelled = true;
+                upstream.dispose();
+                inner.dispose();
+                if (getAndIncrement() == 0) {
+                    sources.clear();
+                }
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return cancelled;
+        }
+
+        @SuppressWarnings("unchecked")
+        void drain() {
+            if (getAndIncrement() != 0) {
+                return;
+            }
+
+            int missed = 1;
+            Observer<? super R> a = downstream;
+
+            for (;;) {
+                while (!active) {
+                    if (cancelled) {
+                        sources.clear();
+                        return;
+                    }
+                    Throwable ex = error.get();
+                    if (ex != null) {
+                        cancelled = true;
+                        upstream.dispose();
+                        inner.dispose();
+                        sources.clear();
+                        a.onError(ex);
+                        return;
+                    }
+
+                    boolean d = done;
+                    T t = sources.poll();
+                    if (t == null) {
+                        if (d) {
+                            cancelled = true;
+                            a.onComplete();
+                            return;
+                        }
+                        break;
+                    }
+
+                    ObservableSource<? extends R> source;
+                    Object scalar;
+                    try {
+                        source = mapper.apply(t);
+                        if (source == null) {
+                            throw new NullPointerException("The mapper returned a null ObservableSource");
+                        }
+                        scalar = scalarValue(source);
+                    } catch (Throwable e) {
+                        Exceptions.throwIfFatal(e);
+                        error.compareAndSet(null, e);
+                        continue;
+                    }
+
+                    if (scalar == NO_VALUE) {
+                        continue;
+                    }
+                    if (scalar != null) {
+                        a.onNext((R) scalar);
+                        continue;
+                    }
+
+                    // the inner emits straight downstream, nothing else emits until it completes
+                    active = true;
+                    source.subscribe(inner);
+                }
+
+                missed = addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+        }
+    }
+
+    static final class ConcatInnerObserver<R> extends AtomicReference<Disposable> implements Observer<R> {
+
+        final ConcatObserver<?, R> parent;
+
+        ConcatInnerObserver(ConcatObserver<?, R> parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            DisposableHelper.replace(this, d);
+        }
+
+        @Override
+        public void onNext(R t) {
+            parent.downstream.onNext(t);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            parent.onError(e);
+        }
+
+        @Override
+        public void onComplete() {
+            parent.innerComplete();
+        }
+
+        void dispose() {
+            DisposableHelper.dispose(this);
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package com.alephreach.main.combining;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.Observer;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.exceptions.Exceptions;
+import io.reactivex.functions.Function;
+import io.reactivex.internal.disposables.DisposableHelper;
+import io.reactivex.internal.disposables.EmptyDisposable;
+import io.reactivex.plugins.RxJavaPlugins;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Observable.combineLatest() copies every source's latest value into a fresh Object[] for each
+// upstream tick and queues it, which adds up quickly with dozens of sources. SlotCombineLatest keeps
+// one slot per source plus a version counter, and hands the combiner the same read-only Latest view
+// on every call, so nothing is allocated per tick. The combiner must not hold on to the view.
+//
+// With conflate = true, bursts of updates are collapsed and the combiner runs at most once per drain
+// cycle against whatever the slots hold at that moment. With conflate = false every tick still runs
+// the combiner once, serialized on a lock instead of a queue.
+
+public final class SlotCombineLatest<R> extends Observable<R> {
+
+    public interface Latest {
+
+        int size();
+
+        <T> T get(int index);
+
+        // increases by one for every upstream tick
+        long version();
+    }
+
+    private final ObservableSource<?>[] sources;
+    private final Function<? super Latest, ? extends R> combiner;
+    private final boolean conflate;
+
+    private SlotCombineLatest(ObservableSource<?>[] sources, Function<? super Latest, ? extends R> combiner,
+                              boolean conflate) {
+        this.sources = sources;
+        this.combiner = combiner;
+        this.conflate = conflate;
+    }
+
+    public static <R> Observable<R> combineLatestSlots(List<? extends ObservableSource<?>> sources,
+                                                       Function<? super Latest, ? extends R> combiner,
+                                                       boolean conflate) {
+        if (combiner == null) {
+            throw new NullPointerException("combiner is null");
+        }
+        return new SlotCombineLatest<>(sources.toArray(new ObservableSource<?>[0]), combiner, conflate);
+    }
+
+    @Override
+    protected void subscribeActual(Observer<? super R> observer) {
+        if (sources.length == 0) {
+            EmptyDisposable.complete(observer);
+            return;
+        }
+        SlotCoordinator<R> parent = new SlotCoordinator<>(observer, combiner, sources.length, conflate);
+        observer.onSubscribe(parent);
+        parent.subscribe(sources);
+    }
+
+    static final class SlotCoordinator<R> extends AtomicInteger implements Disposable, Latest {
+
+        final Observer<? super R> downstream;
+        final Function<? super Latest, ? extends R> combiner;
+        final boolean conflate;
+        final SlotObserver[] observers;
+
+        final AtomicReferenceArray<Object> slots;
+        final AtomicLong version = new AtomicLong();
+        final AtomicInteger filled = new AtomicInteger();
+        final AtomicInteger active;
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        volatile boolean done;
+        volatile boolean cancelled;
+
+        // only touched inside drain()
+        long emittedVersion;
+
+        SlotCoordinator(Observer<? super R> downstream, Function<? super Latest, ? extends R> combiner,
+                        int n, boolean conflate) {
+            this.downstream = downstream;
+            this.combiner = combiner;
+            this.conflate = conflate;
+            this.slots = new AtomicReferenceArray<>(n);
+            this.active = new AtomicInteger(n);
+            this.observers = new SlotObserver[n];
+            for (int i = 0; i < n; i++) {
+                observers[i] = new SlotObserver(this, i);
+            }
+        }
+
+        void subscribe(ObservableSource<?>[] sources) {
+            for (int i = 0; i < sources.length && !cancelled; i++) {
+                sources[i].subscribe(observers[i]);
+            }
+        }
+
+        @Override
+        public int size() {
+            return slots.length();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T get(int index) {
+            return (T) slots.get(index);
+        }
+
+        @Override
+        public long version() {
+            return version.get();
+        }
+
+        void innerNext(SlotObserver inner, Object value) {
+            if (conflate) {
+                update(inner, value);
+                drain();
+                return;
+            }
+            synchronized (this) {
+                if (cancelled || done) {
+                    return;
+                }
+                update(inner, value);
+                if (filled.get() == slots.length()) {
+                    emit();
+                }
+            }
+        }
+
+        void update(SlotObserver inner, Object value) {
+            slots.set(inner.index, value);
+            if (!inner.hasValue) {
+                inner.hasValue = true;
+                filled.incrementAndGet();
+            }
+            version.incrementAndGet();
+        }
+
+        void innerError(Throwable e) {
+            if (!error.compareAndSet(null, e)) {
+                RxJavaPlugins.onError(e);
+                return;
+            }
+            done = true;
+            terminate();
+        }
+
+        void innerComplete(SlotObserver inner) {
+            // a source that never emitted means no combination can ever be produced
+            if (!inner.hasValue || active.decrementAndGet() == 0) {
+                done = true;
+                terminate();
+            }
+        }
+
+        void terminate() {
+            if (conflate) {
+                drain();
+                return;
+            }
+            synchronized (this) {
+                if (!cancelled) {
+                    cancelled = true;
+                    disposeAll();
+                    Throwable ex = error.get();
+                    if (ex != null) {
+                        downstream.onError(ex);
+                    } else {
+                        downstream.onComplete();
+                    }
+                }
+            }
+        }
+
+        // returns false if the combiner failed and the error has been recorded
+        boolean emit() {
+            R v;
+            try {
+                v = combiner.apply(this);
+                if (v == null) {
+                    throw new NullPointerException("The combiner returned a null value");
+                }
+            } catch (Throwable t) {
+                Exceptions.throwIfFatal(t);
+                if (error.compareAndSet(null, t)) {
+                    done = true;
+                } else {
+                    RxJavaPlugins.onError(t);
+                }
+                if (!conflate) {
+                    cancelled = true;
+                    disposeAll();
+                    downstream.onError(t);
+                }
+                return false;
+            }
+            downstream.onNext(v);
+            return true;
+        }
+
+        void drain() {
+            if (getAndIncrement() != 0) {
+                return;
+            }
+
+            int missed = 1;
+            int n = slots.length();
+
+            for (;;) {
+                if (cancelled) {
+                    return;
+                }
+                Throwable ex = error.get();
+                if (ex != null) {
+                    cancelled = true;
+                    disposeAll();
+                    downstream.onError(ex);
+                    return;
+                }
+
+                boolean d = done;
+                long ver = version.get();
+                if (ver != emittedVersion && filled.get() == n) {
+                    emittedVersion = ver;
+                    if (!emit()) {
+                        continue;
+                    }
+                }
+
+                if (d) {
+                    cancelled = true;
+                    disposeAll();
+                    downstream.onComplete();
+                    return;
+                }
+
+                missed = addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public void dispose() {
+            if (!cancelled) {
+                cancelled = true;
+                disposeAll();
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return cancelled;
+        }
+
+        void disposeAll() {
+            for (SlotObserver observer : observers) {
+                observer.dispose();
+            }
+        }
+    }
+
+    static final class SlotObserver extends AtomicReference<Disposable> implements Observer<Object> {
+
+        final SlotCoordinator<?> parent;
+        final int index;
+
+        // only touched from this source's onNext, which is serialized
+        boolean hasValue;
+
+        SlotObserver(SlotCoordinator<?> parent, int index) {
+            this.parent = parent;
+            this.index = index;
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            DisposableHelper.setOnce(this, d);
+        }
+
+        @Override
+        public void onNext(Object t) {
+            parent.innerNext(this, t);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            parent.innerError(e);
+        }
+
+        @Override
+        public void onComplete() {
+            parent.innerComplete(this);
+        }
+
+        void dispose() {
+            DisposableHelper.dispose(this);
+        }
+    }
+}
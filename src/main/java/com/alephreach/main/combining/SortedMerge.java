@@ -0,0 +1,334 @@
+package com.alephreach.main.combining;
+
+import io.reactivex.Flowable;
+import io.reactivex.FlowableSubscriber;
+import io.reactivex.internal.queue.SpscArrayQueue;
+import io.reactivex.internal.subscriptions.EmptySubscription;
+import io.reactivex.internal.subscriptions.SubscriptionHelper;
+import io.reactivex.internal.util.BackpressureHelper;
+import io.reactivex.plugins.RxJavaPlugins;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Observable.merge() interleaves by arrival time, so ordered output usually means merge().sorted(),
+// which holds every emission in memory. When each source is already sorted we can do a k-way merge
+// instead: keep the current head of every source in a min-heap and always emit the smallest one.
+// Each source is only asked for `prefetch` items at a time, so memory is O(k * prefetch) no matter
+// how long the sources are. This needs backpressure to work, which is why it is built on Flowable.
+
+public final class SortedMerge<T> extends Flowable<T> {
+
+    public static final int DEFAULT_PREFETCH = 128;
+
+    private final Publisher<? extends T>[] sources;
+    private final Comparator<? super T> comparator;
+    private final int prefetch;
+
+    private SortedMerge(Publisher<? extends T>[] sources, Comparator<? super T> comparator, int prefetch) {
+        this.sources = sources;
+        this.comparator = comparator;
+        this.prefetch = prefetch;
+    }
+
+    @SafeVarargs
+    public static <T extends Comparable<? super T>> Flowable<T> mergeSorted(Publisher<? extends T>... sources) {
+        return mergeSorted(Comparator.<T>naturalOrder(), DEFAULT_PREFETCH, Arrays.asList(sources));
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> Flowable<T> mergeSorted(Comparator<? super T> comparator, int prefetch,
+                                              Iterable<? extends Publisher<? extends T>> sources) {
+        if (comparator == null) {
+            throw new NullPointerException("comparator is null");
+        }
+        if (prefetch <= 0) {
+            throw new IllegalArgumentException("prefetch > 0 required but it was " + prefetch);
+        }
+        List<Publisher<? extends T>> list = new ArrayList<>();
+        for (Publisher<? extends T> p : sources) {
+            list.add(p);
+        }
+        return new SortedMerge<>(list.toArray(new Publisher[0]), comparator, prefetch);
+    }
+
+    @Override
+    protected void subscribeActual(Subscriber<? super T> s) {
+        if (sources.length == 0) {
+            EmptySubscription.complete(s);
+            return;
+        }
+        MergeCoordinator<T> parent = new MergeCoordinator<>(s, sources.length, comparator, prefetch);
+        s.onSubscribe(parent);
+        parent.subscribe(sources);
+    }
+
+    static final class MergeCoordinator<T> extends AtomicInteger implements Subscription {
+
+        final Subscriber<? super T> downstream;
+        final Comparator<? super T> comparator;
+        final InnerSubscriber<T>[] inners;
+
+        final AtomicLong requested = new AtomicLong();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        // current head of every source and a binary min-heap of the indexes whose head is present
+        final Object[] heads;
+        final int[] heap;
+        int heapSize;
+
+        // indexes whose head was just consumed and must be refilled before the next emission
+        final int[] pending;
+        int pendingSize;
+
+        volatile boolean cancelled;
+        long emitted;
+
+        @SuppressWarnings("unchecked")
+        MergeCoordinator(Subscriber<? super T> downstream, int n, Comparator<? super T> comparator, int prefetch) {
+            this.downstream = downstream;
+            this.comparator = comparator;
+            this.inners = new InnerSubscriber[n];
+            this.heads = new Object[n];
+            this.heap = new int[n];
+            this.pending = new int[n];
+            for (int i = 0; i < n; i++) {
+                inners[i] = new InnerSubscriber<>(this, prefetch);
+                pending[i] = n - 1 - i;
+            }
+            this.pendingSize = n;
+        }
+
+        void subscribe(Publisher<? extends T>[] sources) {
+            for (int i = 0; i < sources.length && !cancelled; i++) {
+                sources[i].subscribe(inners[i]);
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (SubscriptionHelper.validate(n)) {
+                BackpressureHelper.add(requested, n);
+                drain();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                cancelAll();
+                if (getAndIncrement() == 0) {
+                    clear();
+                }
+            }
+        }
+
+        void cancelAll() {
+            for (InnerSubscriber<T> inner : inners) {
+                inner.cancel();
+            }
+        }
+
+        void clear() {
+            Arrays.fill(heads, null);
+            for (InnerSubscriber<T> inner : inners) {
+                inner.queue.clear();
+            }
+        }
+
+        void innerError(Throwable e) {
+            if (error.compareAndSet(null, e)) {
+                drain();
+            } else {
+                RxJavaPlugins.onError(e);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void drain() {
+            if (getAndIncrement() != 0) {
+                return;
+            }
+
+            int missed = 1;
+            Subscriber<? super T> a = downstream;
+            long e = emitted;
+
+            for (;;) {
+                long r = requested.get();
+
+                for (;;) {
+                    if (cancelled) {
+                        clear();
+                        return;
+                    }
+                    Throwable ex = error.get();
+                    if (ex != null) {
+                        cancelAll();
+                        clear();
+                        a.onError(ex);
+                        return;
+                    }
+
+                    // every live source needs a head before we can know which value is the smallest
+                    boolean stalled = false;
+                    while (pendingSize != 0) {
+                        int index = pending[pendingSize - 1];
+                        InnerSubscriber<T> inner = inners[index];
+                        boolean d = inner.done;
+                        T v = inner.queue.poll();
+                        if (v != null) {
+                            heads[index] = v;
+                            heapPush(index);
+                            pendingSize--;
+                        } else if (d) {
+                            pendingSize--;
+                        } else {
+                            stalled = true;
+                            break;
+                        }
+                    }
+
+                    if (stalled) {
+                        break;
+                    }
+
+                    if (heapSize == 0) {
+                        a.onComplete();
+                        return;
+                    }
+
+                    if (e == r) {
+                        break;
+                    }
+
+                    int index = heapPop();
+                    T v = (T) heads[index];
+                    heads[index] = null;
+                    a.onNext(v);
+                    e++;
+
+                    inners[index].consumed();
+                    pending[pendingSize++] = index;
+                }
+
+                emitted = e;
+                missed = addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+        }
+
+        void heapPush(int index) {
+            int i = heapSize++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!less(index, heap[parent])) {
+                    break;
+                }
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = index;
+        }
+
+        int heapPop() {
+            int top = heap[0];
+            int last = heap[--heapSize];
+            int i = 0;
+            int half = heapSize >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                int right = child + 1;
+                if (right < heapSize && less(heap[right], heap[child])) {
+                    child = right;
+                }
+                if (!less(heap[child], last)) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = last;
+            return top;
+        }
+
+        // ties go to the lower source index so equal items keep the order the sources were given in
+        @SuppressWarnings("unchecked")
+        boolean less(int i, int j) {
+            int c = comparator.compare((T) heads[i], (T) heads[j]);
+            return c < 0 || (c == 0 && i < j);
+        }
+    }
+
+    static final class InnerSubscriber<T> extends AtomicReference<Subscription> implements FlowableSubscriber<T> {
+
+        final MergeCoordinator<T> parent;
+        final SpscArrayQueue<T> queue;
+        final int prefetch;
+        final int limit;
+
+        int produced;
+        volatile boolean done;
+
+        InnerSubscriber(MergeCoordinator<T> parent, int prefetch) {
+            this.parent = parent;
+            this.prefetch = prefetch;
+            this.limit = prefetch - (prefetch >> 2);
+            this.queue = new SpscArrayQueue<>(prefetch);
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            if (SubscriptionHelper.setOnce(this, s)) {
+                s.request(prefetch);
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            if (!queue.offer(t)) {
+                onError(new IllegalStateException("Source emitted more than it was requested"));
+                return;
+            }
+            parent.drain();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            done = true;
+            parent.innerError(t);
+        }
+
+        @Override
+        public void onComplete() {
+            done = true;
+            parent.drain();
+        }
+
+        // replenish in batches rather than one request(1) per consumed item
+        void consumed() {
+            int p = produced + 1;
+            if (p == limit) {
+                produced = 0;
+                get().request(p);
+            } else {
+                produced = p;
+            }
+        }
+
+        void cancel() {
+            SubscriptionHelper.cancel(this);
+        }
+    }
+}
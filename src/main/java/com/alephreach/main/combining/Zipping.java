@@ -48,6 +48,32 @@ public class Zipping {
         sleep(100000);
     }
 
+    private static void bounded_zip_with_different_intervals() {
+
+//        Because zip() never drops anything, the 300 ms interval above slowly fills zip's internal
+//        queue for as long as the subscription lives. BoundedZip caps each source's buffer and lets
+//        us choose what happens on overflow. With DROP_OLDEST the fast side keeps at most 5 items,
+//        so heap use stays flat no matter how long this runs:
+
+        Observable<String> interval1 = Observable.interval(1, TimeUnit.SECONDS)
+                .map(s -> "Interval 1: " + s);
+
+        Observable<String> interval2 = Observable.interval(300, TimeUnit.MILLISECONDS)
+                .map(s -> "Interval 2: " + s);
+
+        BoundedZip<String> zipped = BoundedZip.boundedZip(interval1, interval2,
+                (zip1, zip2) -> zip1 + " " + zip2, 5, BoundedZip.Overflow.DROP_OLDEST);
+
+        zipped.subscribe(s -> System.out.println(s));
+
+        // SAMPLE_LATEST keeps overwriting the newest buffered value instead, ERROR fails the stream
+
+        Observable.interval(5, TimeUnit.SECONDS)
+                .subscribe(i -> System.out.println(zipped.metrics()));
+
+        sleep(100000);
+    }
+
     private static void zipIterable() {
 
 //        Use Observable.zipIterable() to pass a Boolean delayError
@@ -62,6 +88,7 @@ public class Zipping {
 
     public static void main(String[] args) {
 //        zip();
+//        bounded_zip_with_different_intervals();
         zip_with_different_intervals();
     }
 }
@@ -0,0 +1,393 @@
+package com.alephreach.main.concurrency_parallelization;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.Observer;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.exceptions.Exceptions;
+import io.reactivex.functions.Function;
+import io.reactivex.internal.disposables.DisposableHelper;
+import io.reactivex.internal.queue.MpscLinkedQueue;
+import io.reactivex.internal.queue.SpscLinkedArrayQueue;
+import io.reactivex.plugins.RxJavaPlugins;
+import io.reactivex.schedulers.Schedulers;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+// The usual way to process keys in parallel is groupBy() followed by flatMap(group ->
+// group.observeOn(...)), which creates a queue and a scheduling path per key. With many keys that is
+// a lot of bookkeeping for the same handful of cores. KeyedParallel hashes every key onto one of a
+// fixed number of lanes instead. Each lane is a single Scheduler.Worker with its own queue, so items
+// with the same key are always processed one at a time and in arrival order, while different lanes
+// run in parallel. The lane count never depends on how many keys there are.
+//
+// Results from all lanes are merged back into one stream. Order is kept per key, not globally.
+
+public final class KeyedParallel<T, K, R> implements ObservableTransformer<T, R> {
+
+    private final Function<? super T, ? extends K> keySelector;
+    private final Function<? super T, ? extends R> work;
+    private final int lanes;
+    private final Scheduler scheduler;
+    private final Metrics metrics;
+
+    private KeyedParallel(Function<? super T, ? extends K> keySelector, Function<? super T, ? extends R> work,
+                          int lanes, Scheduler scheduler) {
+        this.keySelector = keySelector;
+        this.work = work;
+        this.lanes = lanes;
+        this.scheduler = scheduler;
+        this.metrics = new Metrics(lanes);
+    }
+
+    public static <T, K, R> KeyedParallel<T, K, R> parallelByKey(Function<? super T, ? extends K> keySelector,
+                                                                 Function<? super T, ? extends R> work) {
+        return parallelByKey(keySelector, work, Runtime.getRuntime().availableProcessors(), Schedulers.computation());
+    }
+
+    public static <T, K, R> KeyedParallel<T, K, R> parallelByKey(Function<? super T, ? extends K> keySelector,
+                                                                 Function<? super T, ? extends R> work,
+                                                                 int lanes, Scheduler scheduler) {
+        if (keySelector == null) {
+            throw new NullPointerException("keySelector is null");
+        }
+        if (work == null) {
+            throw new NullPointerException("work is null");
+        }
+        if (scheduler == null) {
+            throw new NullPointerException("scheduler is null");
+        }
+        if (lanes <= 0) {
+            throw new IllegalArgumentException("lanes > 0 required but it was " + lanes);
+        }
+        return new KeyedParallel<>(keySelector, work, lanes, scheduler);
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    @Override
+    public ObservableSource<R> apply(Observable<T> upstream) {
+        return new Observable<R>() {
+            @Override
+            protected void subscribeActual(Observer<? super R> observer) {
+                upstream.subscribe(new LaneCoordinator<>(observer, keySelector, work, lanes, scheduler, metrics));
+            }
+        };
+    }
+
+    static int laneOf(Object key, int lanes) {
+        int h = key.hashCode();
+        // spread the bits like HashMap does, poor hashCodes would otherwise pile onto a few lanes
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % lanes;
+    }
+
+    // Counted over all subscriptions of this operator.
+    public static final class Metrics {
+
+        private final AtomicLongArray processed;
+        private final AtomicIntegerArray queueDepth;
+
+        Metrics(int lanes) {
+            this.processed = new AtomicLongArray(lanes);
+            this.queueDepth = new AtomicIntegerArray(lanes);
+        }
+
+        public int lanes() {
+            return processed.length();
+        }
+
+        public long processed(int lane) {
+            return processed.get(lane);
+        }
+
+        public int queueDepth(int lane) {
+            return queueDepth.get(lane);
+        }
+
+        // busiest lane divided by the average lane, 1.0 means perfectly even
+        public double skew() {
+            long max = 0;
+            long total = 0;
+            for (int i = 0; i < lanes(); i++) {
+                long p = processed(i);
+                max = Math.max(max, p);
+                total += p;
+            }
+            return total == 0 ? 1.0 : (double) max * lanes() / total;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("KeyedParallel.Metrics[skew=")
+                    .append(String.format("%.2f", skew()));
+            for (int i = 0; i < lanes(); i++) {
+                sb.append(", lane ").append(i)
+                        .append(": processed=").append(processed(i))
+                        .append(" queued=").append(queueDepth(i));
+            }
+            return sb.append(']').toString();
+        }
+    }
+
+    static final class LaneCoordinator<T, K, R> extends AtomicInteger implements Observer<T>, Disposable {
+
+        final Observer<? super R> downstream;
+        final Function<? super T, ? extends K> keySelector;
+        final Function<? super T, ? extends R> work;
+        final Metrics metrics;
+        final Lane<T, R>[] lanes;
+
+        final MpscLinkedQueue<R> results = new MpscLinkedQueue<>();
+        final AtomicInteger activeLanes;
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        Disposable upstream;
+        volatile boolean cancelled;
+
+        @SuppressWarnings("unchecked")
+        LaneCoordinator(Observer<? super R> downstream, Function<? super T, ? extends K> keySelector,
+                        Function<? super T, ? extends R> work, int n, Scheduler scheduler, Metrics metrics) {
+            this.downstream = downstream;
+            this.keySelector = keySelector;
+            this.work = work;
+            this.metrics = metrics;
+            this.activeLanes = new AtomicInteger(n);
+            this.lanes = new Lane[n];
+            for (int i = 0; i < n; i++) {
+                lanes[i] = new Lane<>(this, i, scheduler.createWorker());
+            }
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            if (DisposableHelper.validate(upstream, d)) {
+                upstream = d;
+                downstream.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            int lane;
+            try {
+                K key = keySelector.apply(t);
+                lane = laneOf(key, lanes.length);
+            } catch (Throwable e) {
+                Exceptions.throwIfFatal(e);
+                upstream.dispose();
+                onError(e);
+                return;
+            }
+            lanes[lane].offer(t);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            if (error.compareAndSet(null, e)) {
+                drain();
+            } else {
+                RxJavaPlugins.onError(e);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            for (Lane<T, R> lane : lanes) {
+                lane.complete();
+            }
+        }
+
+        void laneDone() {
+            activeLanes.decrementAndGet();
+            drain();
+        }
+
+        void result(R value) {
+            results.offer(value);
+            drain();
+        }
+
+        @Override
+        public void dispose() {
+            if (!cancelled) {
+                cancelled = true;
+                upstream.dispose();
+                disposeLanes();
+                if (getAndIncrement() == 0) {
+                    results.clear();
+                }
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return cancelled;
+        }
+
+        void disposeLanes() {
+            for (Lane<T, R> lane : lanes) {
+                lane.dispose();
+            }
+        }
+
+        void drain() {
+            if (getAndIncrement() != 0) {
+                return;
+            }
+
+            int missed = 1;
+            Observer<? super R> a = downstream;
+
+            for (;;) {
+                for (;;) {
+                    if (cancelled) {
+                        results.clear();
+                        return;
+                    }
+                    Throwable ex = error.get();
+                    if (ex != null) {
+                        cancelled = true;
+                        upstream.dispose();
+                        disposeLanes();
+                        results.clear();
+                        a.onError(ex);
+                        return;
+                    }
+
+                    boolean d = activeLanes.get() == 0;
+                    R v = results.poll();
+                    if (v != null) {
+                        a.onNext(v);
+                        continue;
+                    }
+                    if (d) {
+                        cancelled = true;
+                        disposeLanes();
+                        a.onComplete();
+                        return;
+                    }
+                    break;
+                }
+
+                missed = addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+        }
+    }
+
+    // A single-threaded worker draining its own queue. Only the upstream thread offers, so the queue
+    // is single-producer single-consumer. queueDepth goes up on offer and only the drain takes it
+    // down, also for the items it throws away on cancel, so it can't go negative or get stuck.
+    static final class Lane<T, R> extends AtomicInteger implements Runnable {
+
+        final LaneCoordinator<T, ?, R> parent;
+        final int index;
+        final Scheduler.Worker worker;
+        final SpscLinkedArrayQueue<T> queue = new SpscLinkedArrayQueue<>(128);
+        volatile boolean done;
+        // set by the drain once it disposed the worker, later drains run on the calling thread
+        boolean stopped;
+
+        Lane(LaneCoordinator<T, ?, R> parent, int index, Scheduler.Worker worker) {
+            this.parent = parent;
+            this.index = index;
+            this.worker = worker;
+        }
+
+        void offer(T t) {
+            if (parent.cancelled) {
+                return;
+            }
+            parent.metrics.queueDepth.incrementAndGet(index);
+            queue.offer(t);
+            schedule();
+        }
+
+        void complete() {
+            done = true;
+            schedule();
+        }
+
+        void schedule() {
+            if (getAndIncrement() == 0) {
+                if (stopped) {
+                    run();
+                } else {
+                    worker.schedule(this);
+                }
+            }
+        }
+
+        // the drain clears the queue once it sees the parent cancelled, then disposes the worker
+        void dispose() {
+            schedule();
+        }
+
+        void stop() {
+            int cleared = 0;
+            while (queue.poll() != null) {
+                cleared++;
+            }
+            if (cleared != 0) {
+                parent.metrics.queueDepth.addAndGet(index, -cleared);
+            }
+            stopped = true;
+            worker.dispose();
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            Metrics metrics = parent.metrics;
+
+            for (;;) {
+                for (;;) {
+                    if (stopped || parent.cancelled || parent.error.get() != null) {
+                        stop();
+                        break;
+                    }
+                    boolean d = done;
+                    T t = queue.poll();
+                    if (t == null) {
+                        if (d) {
+                            parent.laneDone();
+                            worker.dispose();
+                            return;
+                        }
+                        break;
+                    }
+                    metrics.queueDepth.decrementAndGet(index);
+
+                    R r;
+                    try {
+                        r = parent.work.apply(t);
+                        if (r == null) {
+                            throw new NullPointerException("The work function returned a null value");
+                        }
+                    } catch (Throwable e) {
+                        Exceptions.throwIfFatal(e);
+                        parent.onError(e);
+                        continue;
+                    }
+                    metrics.processed.incrementAndGet(index);
+                    parent.result(r);
+                }
+
+                missed = addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.alephreach.main.concurrency_parallelization;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.Observer;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.exceptions.Exceptions;
+import io.reactivex.functions.BiConsumer;
+import io.reactivex.functions.BiFunction;
+import io.reactivex.internal.disposables.DisposableHelper;
+import io.reactivex.internal.queue.SpscLinkedArrayQueue;
+import io.reactivex.plugins.RxJavaPlugins;
+import io.reactivex.schedulers.Schedulers;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// collect() runs the accumulator on whatever thread emits, one item at a time, and collecting into a
+// concurrent collection instead only moves the bottleneck into the collection's locks. collect() here
+// splits the work over a number of rails instead. The upstream thread hands items out in batches,
+// round robin, and every rail accumulates into its own container on its own Scheduler.Worker, so
+// no container is ever touched by two threads and nothing needs to be thread safe.
+//
+// When the source completes, the rail containers are combined pairwise in a binary tree: the rail
+// that finishes second of a pair combines both, then moves up a level, so with n rails only log2(n)
+// combines happen one after the other and the rest run in parallel. The left container is always
+// passed first, so the result does not depend on which rail finished first. Items do end up spread
+// over the rails, so like parallel(), the order they were emitted in is not kept.
+
+public final class ParallelCollect {
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    private ParallelCollect() {
+    }
+
+    public static <T, C> ObservableTransformer<T, C> collect(Callable<? extends C> supplier,
+                                                             BiConsumer<? super C, ? super T> accumulator,
+                                                             BiFunction<? super C, ? super C, ? extends C> combiner) {
+        return collect(supplier, accumulator, combiner, Runtime.getRuntime().availableProcessors(),
+                DEFAULT_BATCH_SIZE, Schedulers.computation());
+    }
+
+    public static <T, C> ObservableTransformer<T, C> collect(Callable<? extends C> supplier,
+                                                             BiConsumer<? super C, ? super T> accumulator,
+                                                             BiFunction<? super C, ? super C, ? extends C> combiner,
+                                                             int rails, int batchSize, Scheduler scheduler) {
+        if (supplier == null) {
+            throw new NullPointerException("supplier is null");
+        }
+        if (accumulator == null) {
+            throw new NullPointerException("accumulator is null");
+        }
+        if (combiner == null) {
+            throw new NullPointerException("combiner is null");
+        }
+        if (scheduler == null) {
+            throw new NullPointerException("scheduler is null");
+        }
+        if (rails <= 0) {
+            throw new IllegalArgumentException("rails > 0 required but it was " + rails);
+        }
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize > 0 required but it was " + batchSize);
+        }
+        return upstream -> new Observable<C>() {
+            @Override
+            protected void subscribeActual(Observer<? super C> observer) {
+                upstream.subscribe(new CollectObserver<T, C>(observer, supplier, accumulator, combiner,
+                        rails, batchSize, scheduler));
+            }
+        };
+    }
+
+    static final class CollectObserver<T, C> implements Observer<T>, Disposable {
+
+        final Observer<? super C> downstream;
+        final Callable<? extends C> supplier;
+        final BiConsumer<? super C, ? super T> accumulator;
+        final BiFunction<? super C, ? super C, ? extends C> combiner;
+        final int batchSize;
+        final Rail<T, C>[] rails;
+
+        // levels[l] holds the waiting half of every pair at level l of the combine tree
+        final AtomicReferenceArray<Object>[] levels;
+        final AtomicBoolean terminated = new AtomicBoolean();
+
+        Disposable upstream;
+        Object[] batch;
+        int batchCount;
+        int nextRail;
+        volatile boolean cancelled;
+
+        @SuppressWarnings("unchecked")
+        CollectObserver(Observer<? super C> downstream, Callable<? extends C> supplier,
+                        BiConsumer<? super C, ? super T> accumulator,
+                        BiFunction<? super C, ? super C, ? extends C> combiner,
+                        int n, int batchSize, Scheduler scheduler) {
+            this.downstream = downstream;
+            this.supplier = supplier;
+            this.accumulator = accumulator;
+            this.combiner = combiner;
+            this.batchSize = batchSize;
+            this.batch = new Object[batchSize];
+
+            this.rails = new Rail[n];
+            for (int i = 0; i < n; i++) {
+                rails[i] = new Rail<>(this, i, scheduler.createWorker());
+            }
+
+            int depth = 32 - Integer.numberOfLeadingZeros(n - 1);
+            this.levels = new AtomicReferenceArray[depth];
+            int count = n;
+            for (int l = 0; l < depth; l++) {
+                count = (count + 1) >> 1;
+                levels[l] = new AtomicReferenceArray<>(count);
+            }
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            if (DisposableHelper.validate(upstream, d)) {
+                upstream = d;
+                downstream.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            batch[batchCount++] = t;
+            if (batchCount == batchSize) {
+                dispatch();
+            }
+        }
+
+        void dispatch() {
+            rails[nextRail].offer(batchCount == batchSize ? batch : Arrays.copyOf(batch, batchCount));
+            if (++nextRail == rails.length) {
+                nextRail = 0;
+            }
+            batch = new Object[batchSize];
+            batchCount = 0;
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            fail(e);
+        }
+
+        @Override
+        public void onComplete() {
+            if (batchCount != 0) {
+                dispatch();
+            }
+            batch = null;
+            for (Rail<T, C> rail : rails) {
+                rail.complete();
+            }
+        }
+
+        // Called by each rail once it has accumulated everything it was given. Combines with the
+        // other half of the pair if it is already there, otherwise leaves the container for it.
+        @SuppressWarnings("unchecked")
+        void railDone(int index, C container) {
+            C value = container;
+            int count = rails.length;
+            for (int level = 0; count > 1; level++) {
+                int sibling = index ^ 1;
+                int parent = index >> 1;
+                if (sibling < count) {
+                    AtomicReferenceArray<Object> slots = levels[level];
+                    if (slots.compareAndSet(parent, null, value)) {
+                        return;
+                    }
+                    C other = (C) slots.get(parent);
+                    try {
+                        value = (index & 1) == 0 ? combiner.apply(value, other) : combiner.apply(other, value);
+                        if (value == null) {
+                            throw new NullPointerException("The combiner returned a null value");
+                        }
+                    } catch (Throwable e) {
+                        Exceptions.throwIfFatal(e);
+                        fail(e);
+                        return;
+                    }
+                }
+                index = parent;
+                count = (count + 1) >> 1;
+            }
+
+            if (!cancelled && terminated.compareAndSet(false, true)) {
+                disposeRails();
+                downstream.onNext(value);
+                downstream.onComplete();
+            }
+        }
+
+        void fail(Throwable e) {
+            if (terminated.compareAndSet(false, true)) {
+                cancelled = true;
+                upstream.dispose();
+                disposeRails();
+                downstream.onError(e);
+            } else {
+                RxJavaPlugins.onError(e);
+            }
+        }
+
+        void disposeRails() {
+            for (Rail<T, C> rail : rails) {
+                rail.worker.dispose();
+            }
+        }
+
+        @Override
+        public void dispose() {
+            if (!cancelled) {
+                cancelled = true;
+                upstream.dispose();
+                disposeRails();
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return cancelled;
+        }
+    }
+
+    // Accumulates the batches it is given into its own container. Only the upstream thread offers,
+    // so the batch queue is single-producer single-consumer.
+    static final class Rail<T, C> extends AtomicInteger implements Runnable {
+
+        final CollectObserver<T, C> parent;
+        final int index;
+        final Scheduler.Worker worker;
+        final SpscLinkedArrayQueue<Object[]> batches = new SpscLinkedArrayQueue<>(16);
+
+        C container;
+        volatile boolean done;
+
+        Rail(CollectObserver<T, C> parent, int index, Scheduler.Worker worker) {
+            this.parent = parent;
+            this.index = index;
+            this.worker = worker;
+        }
+
+        void offer(Object[] batch) {
+            batches.offer(batch);
+            schedule();
+        }
+
+        void complete() {
+            done = true;
+            schedule();
+        }
+
+        void schedule() {
+            if (getAndIncrement() == 0) {
+                worker.schedule(this);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void run() {
+            int missed = 1;
+            BiConsumer<? super C, ? super T> accumulator = parent.accumulator;
+
+            for (;;) {
+                for (;;) {
+                    if (parent.cancelled) {
+                        batches.clear();
+                        container = null;
+                        return;
+                    }
+                    boolean d = done;
+                    Object[] batch = batches.poll();
+                    try {
+                        if (container == null) {
+                            container = parent.supplier.call();
+                            if (container == null) {
+                                throw new NullPointerException("The supplier returned a null container");
+                            }
+                        }
+                        if (batch == null) {
+                            if (d) {
+                                C c = container;
+                                container = null;
+                                parent.railDone(index, c);
+                                return;
+                            }
+                            break;
+                        }
+                        for (Object item : batch) {
+                            accumulator.accept(container, (T) item);
+                        }
+                    } catch (Throwable e) {
+                        Exceptions.throwIfFatal(e);
+                        parent.fail(e);
+                        return;
+                    }
+                }
+
+                missed = addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -4,6 +4,9 @@ import com.alephreach.main.GlobalUtils;
 import io.reactivex.Observable;
 import io.reactivex.schedulers.Schedulers;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import static com.alephreach.main.GlobalUtils.*;
@@ -87,9 +90,137 @@ public class concurrencyparallelization {
 
     }
 
+    private static void keyed_parallel() {
+
+//        A common way to work on keys in parallel is groupBy() followed by flatMap() with an
+//        observeOn() per group. That gives every key its own queue and scheduling path. KeyedParallel
+//        hashes keys onto a fixed number of single-threaded lanes instead, so items of the same key
+//        are still processed in order while the lanes run in parallel. Here 100k events with 10k
+//        user keys, skewed so that a tenth of the users produce most of the traffic:
+
+        int events = 100_000;
+
+        Observable<Integer> source = Observable.range(0, events)
+                .map(i -> i % 10 < 7 ? getRandomNumber(1_000) : getRandomNumber(10_000));
+
+        long start = System.nanoTime();
+        source.groupBy(user -> user)
+                .flatMap(group -> group.observeOn(Schedulers.computation()).map(concurrencyparallelization::work))
+                .blockingSubscribe(s -> { });
+        System.out.println("groupBy/flatMap(observeOn): " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        KeyedParallel<Integer, Integer, Long> parallel =
+                KeyedParallel.parallelByKey(user -> user, concurrencyparallelization::work);
+
+        start = System.nanoTime();
+        source.compose(parallel)
+                .blockingSubscribe(s -> { });
+        System.out.println("KeyedParallel: " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        System.out.println(parallel.metrics());
+    }
+
+    private static void parallel_collect() {
+
+//        collect() calls the accumulator on the emitting thread, so an expensive accumulator runs on
+//        one core no matter how many there are. ParallelCollect.collect() takes the same supplier and
+//        accumulator, plus a combiner. Every rail gets its own HashSet that only its thread touches,
+//        and the sets are combined at the end:
+
+        int items = 2_000_000;
+        System.out.println(Runtime.getRuntime().availableProcessors() + " cores");
+
+        long start = System.nanoTime();
+        int size = Observable.range(0, items)
+                .collect(HashSet<Long>::new, (set, i) -> set.add(work(i % 100_000)))
+                .blockingGet()
+                .size();
+        System.out.println("collect():          " + size + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        start = System.nanoTime();
+        size = Observable.range(0, items)
+                .compose(ParallelCollect.collect(HashSet<Long>::new, (HashSet<Long> set, Integer i) -> set.add(work(i % 100_000)),
+                        (left, right) -> {
+                            left.addAll(right);
+                            return left;
+                        }))
+                .blockingSingle()
+                .size();
+        System.out.println("ParallelCollect:    " + size + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    private static void parallel_collect_rails() {
+
+//        The combine tree pairs rails up differently for every rail count: an odd rail out moves up a
+//        level on its own and the tree is lopsided whenever the count is not a power of two. This
+//        checks 1 to 33 rails against the same work done sequentially. With one item per batch, rail
+//        r gets items r, r + rails, r + 2 * rails and so on, and since the left container is always
+//        passed to the combiner first, concatenating the lists must give the rails one after the
+//        other in order:
+
+        int items = 10_000;
+
+        for (int rails = 1; rails <= 33; rails++) {
+            List<Integer> expected = new ArrayList<>();
+            for (int r = 0; r < rails; r++) {
+                for (int i = r; i < items; i += rails) {
+                    expected.add(i);
+                }
+            }
+
+            List<Integer> actual = Observable.range(0, items)
+                    .compose(ParallelCollect.collect(ArrayList<Integer>::new, ArrayList<Integer>::add,
+                            (left, right) -> {
+                                left.addAll(right);
+                                return left;
+                            }, rails, 1, Schedulers.computation()))
+                    .blockingSingle();
+
+            long sum = Observable.range(0, items)
+                    .compose(ParallelCollect.collect(() -> new long[1], (long[] total, Integer i) -> total[0] += i,
+                            (left, right) -> {
+                                left[0] += right[0];
+                                return left;
+                            }, rails, 64, Schedulers.computation()))
+                    .blockingSingle()[0];
+
+            Throwable error = Observable.range(0, items)
+                    .compose(ParallelCollect.collect(() -> new long[1], (long[] total, Integer i) -> {
+                                if (i == items / 2) {
+                                    throw new IllegalStateException("accumulator failed at " + i);
+                                }
+                                total[0] += i;
+                            },
+                            (left, right) -> left, rails, 64, Schedulers.computation()))
+                    .ignoreElements()
+                    .blockingGet();
+
+            boolean ok = actual.equals(expected)
+                    && sum == (long) items * (items - 1) / 2
+                    && error instanceof IllegalStateException;
+            System.out.println(rails + " rails: " + (ok ? "ok" : "FAILED, " + actual.size() + " items, sum " + sum + ", " + error));
+        }
+
+        // output
+        // 1 rails: ok
+        // 2 rails: ok
+        // ...
+        // 33 rails: ok
+    }
+
+    private static long work(int user) {
+        long hash = user;
+        for (int i = 0; i < 2_000; i++) {
+            hash = hash * 31 + i;
+        }
+        return hash;
+    }
+
     public static void main(String[] args) {
 //        subscribe_on();
 //        operators_on_different_threads();
+//        keyed_parallel();
+//        parallel_collect();
+//        parallel_collect_rails();
         blocking_operators();
     }
 }
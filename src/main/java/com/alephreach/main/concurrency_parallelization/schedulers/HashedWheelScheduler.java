@@ -0,0 +1,540 @@
+package com.alephreach.main.concurrency_parallelization.schedulers;
+
+import io.reactivex.Observable;
+import io.reactivex.Observer;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.CompositeDisposable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.exceptions.Exceptions;
+import io.reactivex.internal.disposables.EmptyDisposable;
+import io.reactivex.internal.queue.MpscLinkedQueue;
+import io.reactivex.plugins.RxJavaPlugins;
+import io.reactivex.schedulers.Schedulers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// The computation Scheduler keeps delayed tasks in a ScheduledThreadPoolExecutor, a binary heap per
+// thread, so with 100k pending timeouts every schedule and every cancel is an O(log n) heap operation
+// under the executor's lock. HashedWheelScheduler keeps them in a hashed timing wheel instead: an
+// array of buckets, one per tick, that a single timer thread walks one bucket per tick. A timer is
+// put into the bucket its deadline falls into, with the number of full turns of the wheel still to go,
+// so scheduling and cancelling are O(1) whatever the number of pending timers:
+//
+// - schedule() only queues the timer, the timer thread moves it into its bucket on the next tick
+// - dispose() only marks it cancelled and queues it, the timer thread unlinks it on the next tick
+//
+// The price is precision: a timer fires on the first tick at or after its deadline, so up to one
+// tickDuration late (it never fires early). The timers due on a tick are handed to the executor
+// Scheduler to run in a few batches, and the tasks of one Worker still run one at a time and in order.
+//
+// interval() lets every subscriber of the same period share one periodic timer, so 100k sessions
+// ticking every second cost one timer instead of 100k. Every subscriber counts from 0, but the first
+// tick comes on the shared timer's next tick, anywhere up to one period after subscribing.
+
+public final class HashedWheelScheduler extends Scheduler {
+
+    public static final long DEFAULT_TICK_MILLIS = 1;
+    public static final int DEFAULT_TICKS_PER_WHEEL = 1024;
+
+    // how many queued timers the timer thread moves into the wheel per tick at most, so a burst of
+    // schedules can't hold up the tick
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private static final int INIT = 0;
+    private static final int STARTED = 1;
+    private static final int SHUTDOWN = 2;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Scheduler executor;
+
+    private final MpscLinkedQueue<Timeout> scheduled = new MpscLinkedQueue<>();
+    private final MpscLinkedQueue<Timeout> cancelled = new MpscLinkedQueue<>();
+    private final AtomicInteger state = new AtomicInteger(INIT);
+    private final AtomicLong pending = new AtomicLong();
+    private final ConcurrentHashMap<Long, TickSource> intervals = new ConcurrentHashMap<>();
+    private final long startTime = System.nanoTime();
+    private final int parallelism = Runtime.getRuntime().availableProcessors();
+    private final Thread timerThread;
+
+    public HashedWheelScheduler() {
+        this(DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_TICKS_PER_WHEEL, Schedulers.computation());
+    }
+
+    public HashedWheelScheduler(long tickDuration, TimeUnit unit) {
+        this(tickDuration, unit, DEFAULT_TICKS_PER_WHEEL, Schedulers.computation());
+    }
+
+    // ticksPerWheel is rounded up to a power of two. Timers that fire run on the executor, pass
+    // Schedulers.trampoline() to run short tasks right on the timer thread instead.
+    public HashedWheelScheduler(long tickDuration, TimeUnit unit, int ticksPerWheel, Scheduler executor) {
+        if (unit == null) {
+            throw new NullPointerException("unit is null");
+        }
+        if (executor == null) {
+            throw new NullPointerException("executor is null");
+        }
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration > 0 required but it was " + tickDuration);
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > 1 << 30) {
+            throw new IllegalArgumentException("0 < ticksPerWheel <= 2^30 required but it was " + ticksPerWheel);
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        int size = 1 << (32 - Integer.numberOfLeadingZeros(ticksPerWheel - 1));
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.executor = executor;
+        this.timerThread = new Thread(this::runWheel, "RxHashedWheelTimer");
+        this.timerThread.setDaemon(true);
+    }
+
+    @Override
+    public Worker createWorker() {
+        return new WheelWorker(this);
+    }
+
+    @Override
+    public Disposable scheduleDirect(Runnable run, long delay, TimeUnit unit) {
+        if (run == null) {
+            throw new NullPointerException("run is null");
+        }
+        if (delay <= 0) {
+            // the executor hands it to the schedule handler itself
+            return executor.scheduleDirect(run);
+        }
+        Timeout timeout = new Timeout(this, RxJavaPlugins.onSchedule(run), null);
+        return add(timeout, delay, unit) ? timeout : EmptyDisposable.INSTANCE;
+    }
+
+    // The timer thread starts with the first timer. Timers pending at shutdown never fire and
+    // timers scheduled after it are dropped, like the other Schedulers do after shutdown().
+    @Override
+    public void shutdown() {
+        if (state.getAndSet(SHUTDOWN) == STARTED) {
+            LockSupport.unpark(timerThread);
+        }
+    }
+
+    // the number of timers scheduled that have neither fired nor been cancelled
+    public long pendingTimers() {
+        return pending.get();
+    }
+
+    public long tickDuration(TimeUnit unit) {
+        return unit.convert(tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // Like Observable.interval(period, unit, this), except that all subscribers of the same period
+    // share one periodic timer.
+    public Observable<Long> interval(long period, TimeUnit unit) {
+        if (unit == null) {
+            throw new NullPointerException("unit is null");
+        }
+        if (period <= 0) {
+            throw new IllegalArgumentException("period > 0 required but it was " + period);
+        }
+        long periodNanos = unit.toNanos(period);
+        return new Observable<Long>() {
+            @Override
+            protected void subscribeActual(Observer<? super Long> observer) {
+                IntervalSubscriber subscriber = new IntervalSubscriber(observer);
+                observer.onSubscribe(subscriber);
+                for (;;) {
+                    TickSource source = intervals.computeIfAbsent(periodNanos, TickSource::new);
+                    if (source.add(subscriber)) {
+                        break;
+                    }
+                }
+            }
+        };
+    }
+
+    boolean add(Timeout timeout, long delay, TimeUnit unit) {
+        int s = state.get();
+        if (s == INIT && state.compareAndSet(INIT, STARTED)) {
+            timerThread.start();
+        } else if (s == SHUTDOWN) {
+            return false;
+        }
+        long deadline = System.nanoTime() - startTime + unit.toNanos(delay);
+        // a delay so long that the deadline overflows never comes, as Netty's HashedWheelTimer has it
+        timeout.deadline = deadline < 0 ? Long.MAX_VALUE : deadline;
+        pending.incrementAndGet();
+        scheduled.offer(timeout);
+        return true;
+    }
+
+    void cancel(Timeout timeout) {
+        pending.decrementAndGet();
+        cancelled.offer(timeout);
+    }
+
+    private void runWheel() {
+        long tick = (System.nanoTime() - startTime) / tickNanos;
+        List<Timeout> fired = new ArrayList<>();
+        while (state.get() == STARTED) {
+            long deadline = tickNanos * (tick + 1);
+            long sleep;
+            while ((sleep = deadline - (System.nanoTime() - startTime)) > 0) {
+                LockSupport.parkNanos(this, sleep);
+                if (state.get() != STARTED) {
+                    return;
+                }
+            }
+            removeCancelled();
+            transferScheduled(tick);
+            wheel[(int) (tick & mask)].expire(fired);
+            if (!fired.isEmpty()) {
+                pending.addAndGet(-fired.size());
+                dispatch(fired);
+                fired.clear();
+            }
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void transferScheduled(long tick) {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = scheduled.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.get() != Timeout.WAITING) {
+                continue;
+            }
+            long due = timeout.deadline / tickNanos;
+            // a deadline that was already missed goes into the current bucket
+            long target = Math.max(due, tick);
+            timeout.remainingRounds = (target - tick) / wheel.length;
+            wheel[(int) (target & mask)].add(timeout);
+        }
+    }
+
+    // Waking an executor thread per timer costs more than running most of them, so the timers of a
+    // tick go out in at most one batch per processor.
+    private void dispatch(List<Timeout> fired) {
+        int batches = Math.min(parallelism, fired.size());
+        int from = 0;
+        for (int b = 0; b < batches; b++) {
+            int to = from + (fired.size() - from) / (batches - b);
+            Timeout[] batch = fired.subList(from, to).toArray(new Timeout[0]);
+            executor.scheduleDirect(() -> {
+                for (Timeout timeout : batch) {
+                    timeout.fire();
+                }
+            });
+            from = to;
+        }
+    }
+
+    // A doubly linked list of timers, only ever touched by the timer thread.
+    static final class Bucket {
+
+        Timeout head;
+        Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expire(List<Timeout> fired) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    if (timeout.compareAndSet(Timeout.WAITING, Timeout.FIRED)) {
+                        fired.add(timeout);
+                    }
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    // A timer, or a task of a WheelWorker that was scheduled without a delay, which starts out FIRED.
+    static final class Timeout extends AtomicInteger implements Disposable, Runnable {
+
+        static final int WAITING = 0;
+        static final int FIRED = 1;
+        static final int DONE = 2;
+        static final int DISPOSED = 3;
+
+        final HashedWheelScheduler parent;
+        final Runnable task;
+        final WheelWorker worker;
+
+        // set before the timer is queued, the rest only by the timer thread
+        long deadline;
+        long remainingRounds;
+        Bucket bucket;
+        Timeout next;
+        Timeout prev;
+
+        Timeout(HashedWheelScheduler parent, Runnable task, WheelWorker worker) {
+            this.parent = parent;
+            this.task = task;
+            this.worker = worker;
+        }
+
+        // on an executor thread, once the timer thread found it due
+        void fire() {
+            if (worker == null) {
+                run();
+            } else {
+                worker.timers.delete(this);
+                worker.enqueue(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (compareAndSet(FIRED, DONE)) {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    Exceptions.throwIfFatal(e);
+                    RxJavaPlugins.onError(e);
+                }
+            }
+        }
+
+        @Override
+        public void dispose() {
+            for (;;) {
+                int s = get();
+                if (s >= DONE) {
+                    return;
+                }
+                if (compareAndSet(s, DISPOSED)) {
+                    if (s == WAITING) {
+                        parent.cancel(this);
+                        // a worker's timer leaves the worker too, or a worker that keeps re-arming a
+                        // timer, as debounce() does, would hold on to every timer it ever cancelled
+                        if (worker != null) {
+                            worker.timers.delete(this);
+                        }
+                    }
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return get() >= DONE;
+        }
+    }
+
+    // Runs its tasks one at a time and in order on the executor, like Schedulers.from() does. A
+    // timer that fires is run right on the batch that fired it when the worker is idle, so a tick
+    // costs one executor hand off per batch, not one per timer.
+    static final class WheelWorker extends Worker implements Runnable {
+
+        final HashedWheelScheduler parent;
+        final CompositeDisposable timers = new CompositeDisposable();
+        final MpscLinkedQueue<Timeout> queue = new MpscLinkedQueue<>();
+        final AtomicInteger wip = new AtomicInteger();
+        volatile boolean disposed;
+
+        WheelWorker(HashedWheelScheduler parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public Disposable schedule(Runnable run, long delay, TimeUnit unit) {
+            if (run == null) {
+                throw new NullPointerException("run is null");
+            }
+            if (disposed) {
+                return EmptyDisposable.INSTANCE;
+            }
+            Timeout timeout = new Timeout(parent, RxJavaPlugins.onSchedule(run), this);
+            if (delay <= 0) {
+                timeout.lazySet(Timeout.FIRED);
+                queue.offer(timeout);
+                if (wip.getAndIncrement() == 0) {
+                    parent.executor.scheduleDirect(this);
+                }
+                return timeout;
+            }
+            if (!timers.add(timeout)) {
+                return EmptyDisposable.INSTANCE;
+            }
+            if (!parent.add(timeout, delay, unit)) {
+                timers.delete(timeout);
+                return EmptyDisposable.INSTANCE;
+            }
+            return timeout;
+        }
+
+        void enqueue(Timeout timeout) {
+            queue.offer(timeout);
+            if (wip.getAndIncrement() == 0) {
+                run();
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            for (;;) {
+                Timeout timeout;
+                while ((timeout = queue.poll()) != null) {
+                    if (disposed) {
+                        queue.clear();
+                        return;
+                    }
+                    timeout.run();
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void dispose() {
+            if (!disposed) {
+                disposed = true;
+                timers.dispose();
+                if (wip.getAndIncrement() == 0) {
+                    queue.clear();
+                }
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return disposed;
+        }
+    }
+
+    // One periodic timer for every interval() subscriber of the same period. It stops, and is removed,
+    // when its last subscriber leaves.
+    final class TickSource implements Runnable {
+
+        final long periodNanos;
+        final Set<IntervalSubscriber> subscribers = ConcurrentHashMap.newKeySet();
+        Disposable timer;
+        boolean stopped;
+
+        TickSource(long periodNanos) {
+            this.periodNanos = periodNanos;
+        }
+
+        synchronized boolean add(IntervalSubscriber subscriber) {
+            if (stopped) {
+                return false;
+            }
+            // set before checking, so a dispose() racing with this either sees the source or is seen here
+            subscriber.source = this;
+            if (subscriber.isDisposed()) {
+                return true;
+            }
+            subscribers.add(subscriber);
+            if (timer == null) {
+                timer = schedulePeriodicallyDirect(this, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+            }
+            return true;
+        }
+
+        synchronized void remove(IntervalSubscriber subscriber) {
+            if (subscribers.remove(subscriber) && subscribers.isEmpty()) {
+                stopped = true;
+                timer.dispose();
+                intervals.remove(periodNanos, this);
+            }
+        }
+
+        @Override
+        public void run() {
+            for (IntervalSubscriber subscriber : subscribers) {
+                subscriber.tick();
+            }
+        }
+    }
+
+    static final class IntervalSubscriber extends AtomicInteger implements Disposable {
+
+        final Observer<? super Long> downstream;
+        volatile TickSource source;
+        long count;
+
+        IntervalSubscriber(Observer<? super Long> downstream) {
+            this.downstream = downstream;
+        }
+
+        // only called from the source's periodic task, so never concurrently
+        void tick() {
+            if (get() == 0) {
+                downstream.onNext(count++);
+            }
+        }
+
+        @Override
+        public void dispose() {
+            if (compareAndSet(0, 1)) {
+                TickSource s = source;
+                if (s != null) {
+                    s.remove(this);
+                }
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return get() != 0;
+        }
+    }
+}
@@ -1,15 +1,21 @@
 package com.alephreach.main.concurrency_parallelization.schedulers;
 
 import com.alephreach.main.GlobalUtils;
+import com.alephreach.main.metrics.LatencyHistogram;
+import com.alephreach.main.metrics.SchedulerMetrics;
 import io.reactivex.Observable;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
 import io.reactivex.observables.ConnectableObservable;
 import io.reactivex.schedulers.Schedulers;
 
 import java.net.URL;
 import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.alephreach.main.GlobalUtils.*;
 
@@ -348,6 +354,133 @@ public class Rx_Schedulers {
 
     }
 
+    private static void hashed_wheel() {
+
+//        take(3, SECONDS), delay(), timeout() and interval() all schedule on the computation Scheduler,
+//        whose delayed tasks sit in a heap. That is fine for a handful of timers, but a server with a
+//        timeout per session has 100k of them. A HashedWheelScheduler keeps them in a timing wheel
+//        instead, where starting and cancelling a timer is O(1), and fires them up to one tick late.
+//        Pass it to the timed operators like any other Scheduler:
+
+        HashedWheelScheduler wheel = new HashedWheelScheduler(10, TimeUnit.MILLISECONDS);
+
+        AtomicInteger timedOut = new AtomicInteger();
+        for (int session = 0; session < 100_000; session++) {
+            Observable.never()
+                    .timeout(3, TimeUnit.SECONDS, wheel)
+                    .subscribe(s -> { }, e -> timedOut.incrementAndGet());
+        }
+
+//        interval() from the wheel shares one timer between all subscribers of the same period. Each
+//        still counts from 0, but the first tick comes whenever the shared timer ticks next:
+
+        for (int i = 0; i < 3; i++) {
+            int session = i;
+            wheel.interval(1, TimeUnit.SECONDS)
+                    .take(2)
+                    .subscribe(s -> System.out.println("session " + session + " heartbeat " + s));
+        }
+
+        sleep(5000);
+        System.out.println(timedOut.get() + " sessions timed out"); // 100000 sessions timed out
+        wheel.shutdown();
+    }
+
+    private static void hashed_wheel_benchmark() {
+
+//        1M pending timers with 60 to 120 second delays, started and then cancelled, then the lateness
+//        of 2000 short timers firing while the 1M are still pending. One core, a few runs:
+//
+//        computation: start 186-834 ns/timer, cancel 21-66 ns/timer,  late p50 =  88 us, p99 = 2.4-5.1 ms
+//        wheel:       start 112-476 ns/timer, cancel 55-697 ns/timer, late p50 = 770 us, p99 = 4.8-22 ms
+//
+//        Both vary a lot with GC, 1M live timers is a lot of heap. Starting a timer is cheaper on the
+//        wheel, nothing gets sorted. Cancelling is cheap on both, computation() only marks the task
+//        cancelled and purges its heap later. A wheel timer fires half a tick late on average by
+//        design, and the wheel's tail is its timer thread waiting for the one core, so it shrinks with
+//        more cores or a coarser tick. Where the wheel pays off is timers that do fire: 100k timeouts
+//        all firing within 0.5 s took 980 ms of CPU on the wheel, which hands a tick's timers to the
+//        executor in one batch, and 1550 ms on computation().
+
+        int n = 1_000_000;
+        for (Scheduler scheduler : new Scheduler[] {Schedulers.computation(), new HashedWheelScheduler()}) {
+            String name = scheduler instanceof HashedWheelScheduler ? "wheel" : "computation";
+            Disposable[] timers = new Disposable[n];
+            for (int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    timers[i] = scheduler.scheduleDirect(() -> { }, 60_000 + getRandomNumber(60_000), TimeUnit.MILLISECONDS);
+                }
+                long started = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    timers[i].dispose();
+                }
+                System.out.printf("%s: start %d ns/timer, cancel %d ns/timer%n", name,
+                        (started - start) / n, (System.nanoTime() - started) / n);
+                sleep(500);
+            }
+
+            for (int i = 0; i < n; i++) {
+                timers[i] = scheduler.scheduleDirect(() -> { }, 60_000 + getRandomNumber(60_000), TimeUnit.MILLISECONDS);
+            }
+            sleep(2000);
+            LatencyHistogram lateness = new LatencyHistogram(name + " lateness");
+            CountDownLatch latch = new CountDownLatch(2000);
+            for (int i = 0; i < 2000; i++) {
+                long delay = 1 + getRandomNumber(2000);
+                long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+                scheduler.scheduleDirect(() -> {
+                    lateness.record(System.nanoTime() - due);
+                    latch.countDown();
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            System.out.println(lateness.snapshot());
+            for (Disposable timer : timers) {
+                timer.dispose();
+            }
+        }
+    }
+
+    private static void scheduler_metrics() {
+
+//        None of the demos above show how long work waited for a thread, how long it ran, or how
+//        busy a scheduler was. SchedulerMetrics.install() wraps every task given to any scheduler
+//        through RxJavaPlugins.setScheduleHandler() and records that per scheduler.
+//
+//        A classic mistake is blocking on computation(), which has one thread per core. Here 200
+//        requests each block for 10 ms, first on computation(), then on io():
+
+        SchedulerMetrics metrics = SchedulerMetrics.install();
+
+        for (Scheduler scheduler : new Scheduler[] {Schedulers.computation(), Schedulers.io()}) {
+            Observable.range(0, 200)
+                    .flatMap(request -> Observable.fromCallable(() -> {
+                        sleep(10);
+                        return request;
+                    }).subscribeOn(scheduler))
+                    .blockingSubscribe();
+            metrics.snapshot().forEach(System.out::println);
+            metrics.reset();
+        }
+        metrics.uninstall();
+
+        // output, on a single core
+        // computation: 199 tasks, 0 failed, 1 threads, 0.98 busy (98%), wait[count=200, mean=1051406.3 us, p50=1056964 us, p95=1979711 us, p99=2046820 us, max=2076311 us], run[count=200, mean=10289.7 us, p50=10223 us, p95=10747 us, p99=12320 us, max=15342 us]
+        // computation: 0 tasks, 0 failed, 0 threads, 0.00 busy (0%), wait[count=0, mean=0.0 us, p50=0 us, p95=0 us, p99=0 us, max=0 us], run[count=0, mean=0.0 us, p50=0 us, p95=0 us, p99=0 us, max=0 us]
+        // io: 200 tasks, 0 failed, 68 threads, 35.84 busy (53%), wait[count=200, mean=690.7 us, p50=319 us, p95=1605 us, p99=9175 us, max=9246 us], run[count=200, mean=10967.9 us, p50=10223 us, p95=13369 us, p99=14942 us, max=15251 us]
+
+//        On computation() the last request waited 2 s for the one thread, which looks fully busy while
+//        it is only sleeping (the snapshot came as the 200th task was finishing, so it counts 199).
+//        io() gives blocked requests threads of their own, 68 of them as it reuses the ones that are
+//        done, so nothing waits for more than 10 ms. metrics.serve(4567) serves the same numbers on
+//        http://localhost:4567/metrics while an application runs.
+    }
+
     public static void main(String[] args) {
 //        from();
 //        understanding_subscribeOn();
@@ -356,6 +489,9 @@ public class Rx_Schedulers {
 //        one_thread_serve_both_Observers();
 //        from_callable();
 //        nuances_of_subscribeOn();
+//        hashed_wheel();
+//        hashed_wheel_benchmark();
+//        scheduler_metrics();
         understanding_observeOn();
     }
 
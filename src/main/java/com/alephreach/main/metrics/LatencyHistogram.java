@@ -0,0 +1,142 @@
+package com.alephreach.main.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A small HDR-style histogram for nanosecond latencies. Values are split into powers of two, and every
+// power of two into 16 linear sub-buckets, so any recorded value is off by at most ~6%. Recording is a
+// couple of shifts and one atomic increment, no locks and no allocation, so it is safe to call from
+// any number of threads on a hot path.
+
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketOf(nanos));
+        total.addAndGet(nanos);
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) {
+            m = max.get();
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(name, copy, total.get(), max.get());
+    }
+
+    // counts recorded concurrently with a reset may land on either side of it
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        max.set(0);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // the middle of the range of values that fall into the bucket
+    static long valueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+        return lower + ((1L << (exponent - SUB_BUCKET_BITS)) >> 1);
+    }
+
+    public static final class Snapshot {
+
+        private final String name;
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        Snapshot(String name, long[] counts, long total, long max) {
+            long c = 0;
+            for (long n : counts) {
+                c += n;
+            }
+            this.name = name;
+            this.counts = counts;
+            this.count = c;
+            this.total = total;
+            this.max = max;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long max(TimeUnit unit) {
+            return unit.convert(max, TimeUnit.NANOSECONDS);
+        }
+
+        public double mean(TimeUnit unit) {
+            return count == 0 ? 0 : (double) total / count / unit.toNanos(1);
+        }
+
+        // quantile between 0 and 1, e.g. 0.99 for the p99
+        public long percentile(double quantile, TimeUnit unit) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] != 0) {
+                    return unit.convert(Math.min(valueOf(i), max), TimeUnit.NANOSECONDS);
+                }
+            }
+            return unit.convert(max, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return name + "[count=" + count
+                    + ", mean=" + String.format("%.1f", mean(TimeUnit.MICROSECONDS)) + " us"
+                    + ", p50=" + percentile(0.50, TimeUnit.MICROSECONDS) + " us"
+                    + ", p95=" + percentile(0.95, TimeUnit.MICROSECONDS) + " us"
+                    + ", p99=" + percentile(0.99, TimeUnit.MICROSECONDS) + " us"
+                    + ", max=" + max(TimeUnit.MICROSECONDS) + " us]";
+        }
+    }
+}
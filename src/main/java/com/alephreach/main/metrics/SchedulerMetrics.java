@@ -0,0 +1,279 @@
+package com.alephreach.main.metrics;
+
+import io.reactivex.functions.Function;
+import io.reactivex.plugins.RxJavaPlugins;
+import spark.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Every Runnable handed to a Scheduler goes through RxJavaPlugins.onSchedule(), computation(), io(),
+// single(), newThread() and Schedulers.from() alike. install() sets a schedule handler that wraps
+// each of them to record, per scheduler:
+//
+// - wait: from being scheduled to starting to run. For a delayed task this includes the delay, for a
+//   periodic one only the first run is counted.
+// - run: how long it ran.
+// - how many tasks ran and threw, how many threads ran them, and how busy those threads were.
+//
+// The scheduler is told apart by the name of the thread the task runs on, without its number:
+// RxComputationThreadPool-3 counts as computation, RxCachedThreadScheduler-1 as io, a custom
+// executor's pool-2-thread-1 as pool-2-thread. A task run inside another one on the same thread, as
+// when the trampoline runs work inline or a scheduler wraps a task twice, is counted as part of it.
+//
+// All of it is LongAdders and LatencyHistograms, nothing blocks a task. snapshot() pulls the numbers,
+// serve(port) also makes them available on http://localhost:port/metrics.
+
+public final class SchedulerMetrics {
+
+    private final Function<? super Runnable, ? extends Runnable> previous;
+    private final ConcurrentHashMap<String, Stats> schedulers = new ConcurrentHashMap<>();
+    private final ThreadLocal<ThreadState> threadStates = ThreadLocal.withInitial(
+            () -> new ThreadState(stats(schedulerOf(Thread.currentThread()))));
+
+    private SchedulerMetrics(Function<? super Runnable, ? extends Runnable> previous) {
+        this.previous = previous;
+    }
+
+    // Installs on top of the schedule handler already set, which still gets to wrap every task first.
+    public static SchedulerMetrics install() {
+        SchedulerMetrics metrics = new SchedulerMetrics(RxJavaPlugins.getScheduleHandler());
+        RxJavaPlugins.setScheduleHandler(metrics::decorate);
+        return metrics;
+    }
+
+    // Puts back the schedule handler that was set before install(). Tasks scheduled before are still
+    // recorded when they run.
+    public void uninstall() {
+        RxJavaPlugins.setScheduleHandler(previous);
+    }
+
+    // one Metric per scheduler that ran a task, since its first task or the last reset()
+    public List<Metric> snapshot() {
+        List<Metric> metrics = new ArrayList<>();
+        long now = System.nanoTime();
+        for (Stats stats : schedulers.values()) {
+            metrics.add(stats.snapshot(now));
+        }
+        metrics.sort((a, b) -> a.scheduler.compareTo(b.scheduler));
+        return metrics;
+    }
+
+    // starts every scheduler over, counts recorded meanwhile may land on either side
+    public void reset() {
+        for (Stats stats : schedulers.values()) {
+            stats.reset();
+        }
+    }
+
+    // Serves snapshot() as text on GET /metrics, on the loopback interface only. Stop it with stop()
+    // on the returned Service.
+    public Service serve(int port) {
+        Service http = Service.ignite().ipAddress("127.0.0.1").port(port);
+        http.get("/metrics", (request, response) -> {
+            response.type("text/plain");
+            StringBuilder text = new StringBuilder();
+            for (Metric metric : snapshot()) {
+                text.append(metric).append('\n');
+            }
+            return text.toString();
+        });
+        http.awaitInitialization();
+        return http;
+    }
+
+    Runnable decorate(Runnable run) throws Exception {
+        Runnable actual = previous == null ? run : previous.apply(run);
+        return new InstrumentedRunnable(actual, System.nanoTime());
+    }
+
+    private Stats stats(String scheduler) {
+        return schedulers.computeIfAbsent(scheduler, Stats::new);
+    }
+
+    static String schedulerOf(Thread thread) {
+        String name = thread.getName();
+        int end = name.length();
+        while (end > 0 && Character.isDigit(name.charAt(end - 1))) {
+            end--;
+        }
+        if (end > 0 && end < name.length() && name.charAt(end - 1) == '-') {
+            name = name.substring(0, end - 1);
+        }
+        switch (name) {
+            case "RxComputationThreadPool":
+                return "computation";
+            case "RxCachedThreadScheduler":
+                return "io";
+            case "RxSingleScheduler":
+                return "single";
+            case "RxNewThreadScheduler":
+                return "newThread";
+            default:
+                return name;
+        }
+    }
+
+    final class InstrumentedRunnable implements Runnable {
+
+        static final long STARTED = Long.MIN_VALUE;
+
+        final Runnable actual;
+        long scheduledAt;
+
+        InstrumentedRunnable(Runnable actual, long scheduledAt) {
+            this.actual = actual;
+            this.scheduledAt = scheduledAt;
+        }
+
+        @Override
+        public void run() {
+            ThreadState state = threadStates.get();
+            if (state.running) {
+                actual.run();
+                return;
+            }
+            Stats stats = state.stats;
+            long start = System.nanoTime();
+            if (scheduledAt != STARTED) {
+                stats.wait.record(start - scheduledAt);
+                scheduledAt = STARTED;
+            }
+            if (state.window != stats.window) {
+                state.window = stats.window;
+                stats.threads.increment();
+            }
+            state.running = true;
+            try {
+                actual.run();
+            } catch (Throwable e) {
+                stats.failed.increment();
+                throw e;
+            } finally {
+                state.running = false;
+                long took = System.nanoTime() - start;
+                stats.run.record(took);
+                stats.busyNanos.add(took);
+                stats.tasks.increment();
+            }
+        }
+    }
+
+    static final class ThreadState {
+
+        final Stats stats;
+        boolean running;
+        int window = -1;
+
+        ThreadState(Stats stats) {
+            this.stats = stats;
+        }
+    }
+
+    static final class Stats {
+
+        final String scheduler;
+        final LatencyHistogram wait = new LatencyHistogram("wait");
+        final LatencyHistogram run = new LatencyHistogram("run");
+        final LongAdder tasks = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder busyNanos = new LongAdder();
+        final LongAdder threads = new LongAdder();
+        volatile int window;
+        volatile long since = System.nanoTime();
+
+        Stats(String scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        Metric snapshot(long now) {
+            return new Metric(scheduler, tasks.sum(), failed.sum(), threads.intValue(), busyNanos.sum(),
+                    now - since, wait.snapshot(), run.snapshot());
+        }
+
+        synchronized void reset() {
+            wait.reset();
+            run.reset();
+            tasks.reset();
+            failed.reset();
+            busyNanos.reset();
+            threads.reset();
+            window++;
+            since = System.nanoTime();
+        }
+    }
+
+    public static final class Metric {
+
+        private final String scheduler;
+        private final long tasks;
+        private final long failed;
+        private final int threads;
+        private final long busyNanos;
+        private final long elapsedNanos;
+        private final LatencyHistogram.Snapshot wait;
+        private final LatencyHistogram.Snapshot run;
+
+        Metric(String scheduler, long tasks, long failed, int threads, long busyNanos, long elapsedNanos,
+               LatencyHistogram.Snapshot wait, LatencyHistogram.Snapshot run) {
+            this.scheduler = scheduler;
+            this.tasks = tasks;
+            this.failed = failed;
+            this.threads = threads;
+            this.busyNanos = busyNanos;
+            this.elapsedNanos = elapsedNanos;
+            this.wait = wait;
+            this.run = run;
+        }
+
+        public String scheduler() {
+            return scheduler;
+        }
+
+        public long tasks() {
+            return tasks;
+        }
+
+        // tasks that threw
+        public long failed() {
+            return failed;
+        }
+
+        // threads that ran at least one task
+        public int threads() {
+            return threads;
+        }
+
+        public long busyTime(TimeUnit unit) {
+            return unit.convert(busyNanos, TimeUnit.NANOSECONDS);
+        }
+
+        // how many threads were running a task on average, 2.5 is two and a half threads busy all along
+        public double busyThreads() {
+            return elapsedNanos == 0 ? 0 : (double) busyNanos / elapsedNanos;
+        }
+
+        // busyThreads() as a share of threads()
+        public double utilization() {
+            return threads == 0 ? 0 : busyThreads() / threads;
+        }
+
+        // from being scheduled to starting to run
+        public LatencyHistogram.Snapshot waitTime() {
+            return wait;
+        }
+
+        public LatencyHistogram.Snapshot runTime() {
+            return run;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d tasks, %d failed, %d threads, %.2f busy (%.0f%%), %s, %s",
+                    scheduler, tasks, failed, threads, busyThreads(), utilization() * 100, wait, run);
+        }
+    }
+}
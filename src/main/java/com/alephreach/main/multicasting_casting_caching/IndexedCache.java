@@ -0,0 +1,173 @@
+package com.alephreach.main.multicasting_casting_caching;
+
+import com.alephreach.main.operators.BloomFilter;
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.Single;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// contains() on a cache() walks every cached emission on every call, and with thousands of lookups
+// against the same reference stream that adds up. IndexedCache is a cache() that also puts every item
+// into a Bloom filter, and optionally an exact set, as it arrives. Once the source has completed:
+//
+// - a Bloom filter miss answers false right away, without touching the cached items
+// - with the exact set, every lookup is answered from the set
+// - otherwise a possible match falls back to scanning the cache, like contains() does today
+//
+// Lookups made before the source completes always scan, since a matching item may still be on its way.
+
+public final class IndexedCache<T> {
+
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    private final Observable<T> cached;
+    private final BloomFilter filter;
+    private final Set<Object> exact;
+    private final Metrics metrics = new Metrics();
+
+    private volatile boolean complete;
+
+    private IndexedCache(ObservableSource<T> source, int expectedItems, double falsePositiveRate, boolean exact) {
+        this.filter = BloomFilter.create(expectedItems, falsePositiveRate);
+        this.exact = exact ? ConcurrentHashMap.newKeySet(expectedItems) : null;
+        // items are indexed before the cache stores them, and complete is set before the cache
+        // completes, so complete == true means every item is in the index
+        this.cached = Observable.wrap(source)
+                .doOnNext(this::index)
+                .doOnComplete(() -> complete = true)
+                .cache();
+    }
+
+    public static <T> IndexedCache<T> indexedCache(ObservableSource<T> source, int expectedItems) {
+        return indexedCache(source, expectedItems, DEFAULT_FALSE_POSITIVE_RATE, false);
+    }
+
+    public static <T> IndexedCache<T> indexedCache(ObservableSource<T> source, int expectedItems,
+                                                   double falsePositiveRate, boolean exact) {
+        if (source == null) {
+            throw new NullPointerException("source is null");
+        }
+        return new IndexedCache<>(source, expectedItems, falsePositiveRate, exact);
+    }
+
+    // the cached stream itself, subscribing to it the first time connects to the source like cache()
+    public Observable<T> cached() {
+        return cached;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public BloomFilter filter() {
+        return filter;
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    public Single<Boolean> contains(T item) {
+        if (item == null) {
+            throw new NullPointerException("item is null");
+        }
+        metrics.lookups.incrementAndGet();
+        if (complete) {
+            if (exact != null) {
+                metrics.indexHits.incrementAndGet();
+                return Single.just(exact.contains(item));
+            }
+            if (!filter.mightContain(item)) {
+                metrics.indexHits.incrementAndGet();
+                return Single.just(false);
+            }
+        }
+        return scan(cached.contains(item));
+    }
+
+    // true if at least one of the items was emitted, only the ones the filter can't rule out are scanned for
+    public Single<Boolean> containsAny(Iterable<? extends T> items) {
+        metrics.lookups.incrementAndGet();
+        boolean done = complete;
+        List<Object> candidates = new ArrayList<>();
+        for (T item : items) {
+            if (!done || filter.mightContain(item)) {
+                candidates.add(item);
+            }
+        }
+        if (done) {
+            if (candidates.isEmpty()) {
+                metrics.indexHits.incrementAndGet();
+                return Single.just(false);
+            }
+            if (exact != null) {
+                metrics.indexHits.incrementAndGet();
+                for (Object candidate : candidates) {
+                    if (exact.contains(candidate)) {
+                        return Single.just(true);
+                    }
+                }
+                return Single.just(false);
+            }
+        }
+        Set<Object> lookup = new HashSet<>(candidates);
+        return scan(cached.any(lookup::contains));
+    }
+
+    private Single<Boolean> scan(Single<Boolean> scan) {
+        metrics.scans.incrementAndGet();
+        if (!complete) {
+            return scan;
+        }
+        // a scan after completion only happens when the filter said maybe, so a false is a false positive
+        return scan.doOnSuccess(found -> {
+            if (!found) {
+                metrics.falsePositives.incrementAndGet();
+            }
+        });
+    }
+
+    private void index(T item) {
+        filter.put(item);
+        if (exact != null) {
+            exact.add(item);
+        }
+    }
+
+    public static final class Metrics {
+
+        private final AtomicLong lookups = new AtomicLong();
+        private final AtomicLong indexHits = new AtomicLong();
+        private final AtomicLong scans = new AtomicLong();
+        private final AtomicLong falsePositives = new AtomicLong();
+
+        public long lookups() {
+            return lookups.get();
+        }
+
+        // lookups answered without scanning the cache
+        public long indexHits() {
+            return indexHits.get();
+        }
+
+        public long scans() {
+            return scans.get();
+        }
+
+        public long falsePositives() {
+            return falsePositives.get();
+        }
+
+        @Override
+        public String toString() {
+            return "IndexedCache.Metrics[lookups=" + lookups() + ", indexHits=" + indexHits()
+                    + ", scans=" + scans() + ", falsePositives=" + falsePositives() + "]";
+        }
+    }
+}
@@ -7,6 +7,7 @@ import io.reactivex.disposables.Disposable;
 import io.reactivex.functions.Action;
 import io.reactivex.functions.Consumer;
 import io.reactivex.functions.Function;
+import io.reactivex.schedulers.Schedulers;
 
 public class ActionOperators {
 
@@ -126,6 +127,88 @@ public class ActionOperators {
                 .subscribe(s -> System.out.println(s));
     }
 
+    private static void latency_probe() {
+
+//        The doOn operators tell you what passes through a chain, not where the time goes. A
+//        LatencyProbe times segments of a chain: probe.time(name, segment) records how long sampled
+//        elements take from going into the segment to coming out of it, into a histogram per name,
+//        and counts the elements for the throughput. The segment must emit one element per element,
+//        in order, like map() or observeOn().
+//
+//        Here 1 element in 16 is sampled, in a chain parsing 200,000 numbers and then doing some math
+//        on another thread:
+
+        LatencyProbe probe = LatencyProbe.sampled(16);
+
+        Observable.range(0, 200_000)
+                .map(String::valueOf)
+                .compose(probe.time("parse", o -> o.map(Integer::parseInt)))
+                .compose(probe.time("observeOn", o -> o.observeOn(Schedulers.computation())))
+                .compose(probe.time("math", o -> o.map(i -> {
+                    double d = i;
+                    for (int k = 0; k < 100; k++) {
+                        d = Math.sqrt(d + k);
+                    }
+                    return d;
+                })))
+                .blockingSubscribe();
+
+        probe.metrics().blockingForEach(System.out::println);
+
+        // output
+        // parse: 200000 elements, 230651/s, parse[count=12500, mean=2.4 us, p50=0 us, p95=2 us, p99=7 us, max=12868 us]
+        // observeOn: 200000 elements, 232875/s, observeOn[count=12500, mean=114005.9 us, p50=138412 us, p95=188743 us, p99=203826 us, max=203826 us]
+        // math: 200000 elements, 232998/s, math[count=12500, mean=5.8 us, p50=1 us, p95=2 us, p99=7 us, max=12035 us]
+
+//        Almost all the time goes to waiting in observeOn's queue: range() fills it much faster than
+//        the math drains it.
+//        probe.metrics(1, TimeUnit.SECONDS) emits the same every second, for the second before.
+    }
+
+    private static void latency_probe_overhead() {
+
+//        What a probe costs, measured on range().map() over 20 million elements: without a probe,
+//        sampling 1 element in 1024, disabled with setEnabled(false) before subscribing, and
+//        sampling every element. Each is run 5 times, the first runs warm up the JIT:
+
+        int elements = 20_000_000;
+
+        for (int round = 0; round < 5; round++) {
+            long none = timeMap(null, elements);
+            long sampled = timeMap(LatencyProbe.sampled(1024), elements);
+            LatencyProbe disabled = LatencyProbe.sampled(1024);
+            disabled.setEnabled(false);
+            long off = timeMap(disabled, elements);
+            long every = timeMap(LatencyProbe.sampled(1), elements);
+            System.out.printf("no probe %.1f ns, 1 in 1024 %+.1f ns, disabled %+.1f ns, every element %+.1f ns%n",
+                    (double) none / elements, (double) (sampled - none) / elements,
+                    (double) (off - none) / elements, (double) (every - none) / elements);
+        }
+
+        // output
+        // no probe 6.8 ns, 1 in 1024 +20.2 ns, disabled +2.0 ns, every element +131.6 ns
+        // no probe 10.1 ns, 1 in 1024 +1.2 ns, disabled -4.0 ns, every element +127.0 ns
+        // no probe 15.0 ns, 1 in 1024 -3.7 ns, disabled -5.6 ns, every element +130.8 ns
+        // no probe 8.8 ns, 1 in 1024 +3.0 ns, disabled -0.0 ns, every element +135.6 ns
+        // no probe 8.2 ns, 1 in 1024 -0.2 ns, disabled -1.7 ns, every element +133.3 ns
+
+//        On one core the runs vary by several ns. Once warm, a disabled probe is lost in that noise:
+//        the segment runs without it. Sampling 1 in 1024 costs at most a few ns an element, mostly
+//        the two observers that also stop fusion across the segment's edges. Sampling every element costs ~130 ns, System.nanoTime() and the histogram
+//        update are the expensive part.
+    }
+
+    private static long timeMap(LatencyProbe probe, int elements) {
+        Observable<Integer> source = Observable.range(0, elements);
+        long start = System.nanoTime();
+        if (probe == null) {
+            source.map(i -> i + 1).blockingSubscribe();
+        } else {
+            source.compose(probe.time("map", o -> o.map(i -> i + 1))).blockingSubscribe();
+        }
+        return System.nanoTime() - start;
+    }
+
     public static void main(String[] args) {
 //        doOnNext();
 //        doOnComplete();
@@ -133,6 +216,8 @@ public class ActionOperators {
 //        doOnEach();
 //        doOnSubscribe_doOnDispose();
 //        doFinally();
+//        latency_probe();
+//        latency_probe_overhead();
         doOnSuccess();
     }
 }
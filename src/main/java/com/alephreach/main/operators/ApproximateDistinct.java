@@ -0,0 +1,287 @@
+package com.alephreach.main.operators;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.Observer;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.exceptions.Exceptions;
+import io.reactivex.functions.Function;
+import io.reactivex.internal.disposables.DisposableHelper;
+import io.reactivex.internal.disposables.EmptyDisposable;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// distinct() remembers every key in a HashSet for as long as the subscription lives, which on an
+// endless stream means memory grows until it runs out. ApproximateDistinct remembers keys in Bloom
+// filters of a fixed size instead. The price is that a new key is wrongly taken for a duplicate, and
+// dropped, with about the false positive rate the filters were sized for. Duplicates are never let
+// through while their key is remembered.
+//
+// A filter can only take so many keys before it fills up, so keys live in generations. New keys go
+// into the newest filter and a key counts as seen if any generation has it. When the newest filter is
+// full (or when the window's period is up, for distinctWithin()) the oldest generation is cleared and
+// becomes the newest. Memory stays at generations * filter size however long the stream runs:
+//
+// - distinctApproximate() rotates on count and remembers at least the last expectedKeys distinct keys
+// - distinctWithin() rotates on time and suppresses a duplicate seen within at least the given window
+
+public final class ApproximateDistinct<T, K> implements ObservableTransformer<T, T> {
+
+    private final Function<? super T, ? extends K> keySelector;
+    private final int generations;
+    private final long keysPerGeneration;
+    private final double falsePositiveRate;
+    private final long rotationNanos;
+    private final Scheduler scheduler;
+    private final Metrics metrics = new Metrics();
+
+    private ApproximateDistinct(Function<? super T, ? extends K> keySelector, int generations, long keysPerGeneration,
+                                double falsePositiveRate, long rotationNanos, Scheduler scheduler) {
+        this.keySelector = keySelector;
+        this.generations = generations;
+        this.keysPerGeneration = keysPerGeneration;
+        this.falsePositiveRate = falsePositiveRate;
+        this.rotationNanos = rotationNanos;
+        this.scheduler = scheduler;
+    }
+
+    public static <T> ApproximateDistinct<T, T> distinctApproximate(long expectedKeys, double falsePositiveRate) {
+        return distinctApproximate(t -> t, expectedKeys, falsePositiveRate);
+    }
+
+    public static <T, K> ApproximateDistinct<T, K> distinctApproximate(Function<? super T, ? extends K> keySelector,
+                                                                       long expectedKeys, double falsePositiveRate) {
+        if (keySelector == null) {
+            throw new NullPointerException("keySelector is null");
+        }
+        validate(expectedKeys, falsePositiveRate);
+        // two generations of expectedKeys each, so the previous expectedKeys are always still there
+        return new ApproximateDistinct<>(keySelector, 2, expectedKeys, falsePositiveRate, 0, null);
+    }
+
+    // keysPerGeneration is how many distinct keys are expected per window / (generations - 1)
+    public static <T, K> ApproximateDistinct<T, K> distinctWithin(Function<? super T, ? extends K> keySelector,
+                                                                  long window, TimeUnit unit, int generations,
+                                                                  long keysPerGeneration, double falsePositiveRate,
+                                                                  Scheduler scheduler) {
+        if (keySelector == null) {
+            throw new NullPointerException("keySelector is null");
+        }
+        if (scheduler == null) {
+            throw new NullPointerException("scheduler is null");
+        }
+        if (window <= 0) {
+            throw new IllegalArgumentException("window > 0 required but it was " + window);
+        }
+        if (generations < 2) {
+            throw new IllegalArgumentException("generations >= 2 required but it was " + generations);
+        }
+        validate(keysPerGeneration, falsePositiveRate);
+        // a key stays for between generations - 1 and generations rotations
+        long rotationNanos = Math.max(1, unit.toNanos(window) / (generations - 1));
+        return new ApproximateDistinct<>(keySelector, generations, keysPerGeneration, falsePositiveRate,
+                rotationNanos, scheduler);
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    static void validate(long keys, double falsePositiveRate) {
+        if (keys <= 0) {
+            throw new IllegalArgumentException("expected keys > 0 required but it was " + keys);
+        }
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("0 < falsePositiveRate < 1 required but it was " + falsePositiveRate);
+        }
+    }
+
+    @Override
+    public ObservableSource<T> apply(Observable<T> upstream) {
+        return new Observable<T>() {
+            @Override
+            protected void subscribeActual(Observer<? super T> observer) {
+                BloomFilter[] filters = new BloomFilter[generations];
+                for (int i = 0; i < generations; i++) {
+                    filters[i] = BloomFilter.create(keysPerGeneration, falsePositiveRate);
+                }
+                upstream.subscribe(new DistinctObserver<>(observer, keySelector, filters, keysPerGeneration,
+                        rotationNanos, scheduler, metrics));
+            }
+        };
+    }
+
+    // Counted over all subscriptions. The false positive rate and memory are those of the most recent
+    // subscription's filters.
+    public static final class Metrics {
+
+        private final AtomicLong emitted = new AtomicLong();
+        private final AtomicLong suppressed = new AtomicLong();
+        private final AtomicLong rotations = new AtomicLong();
+        private volatile BloomFilter[] filters = new BloomFilter[0];
+
+        public long emitted() {
+            return emitted.get();
+        }
+
+        public long suppressed() {
+            return suppressed.get();
+        }
+
+        public long rotations() {
+            return rotations.get();
+        }
+
+        // the chance a new key is dropped right now, any generation may report it as seen
+        public double estimatedFalsePositiveRate() {
+            double none = 1.0;
+            for (BloomFilter filter : filters) {
+                none *= 1.0 - filter.expectedFalsePositiveRate();
+            }
+            return 1.0 - none;
+        }
+
+        public long memoryBytes() {
+            long bytes = 0;
+            for (BloomFilter filter : filters) {
+                bytes += filter.footprintBytes();
+            }
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("ApproximateDistinct.Metrics[emitted=%d, suppressed=%d, rotations=%d, fpp=%.5f, memory=%,d bytes]",
+                    emitted(), suppressed(), rotations(), estimatedFalsePositiveRate(), memoryBytes());
+        }
+    }
+
+    static final class DistinctObserver<T, K> implements Observer<T>, Disposable, Runnable {
+
+        final Observer<? super T> downstream;
+        final Function<? super T, ? extends K> keySelector;
+        final long keysPerGeneration;
+        final long rotationNanos;
+        final Scheduler scheduler;
+        final Metrics metrics;
+
+        // filters[newest] takes new keys, rotation moves newest one slot on and clears it
+        final BloomFilter[] filters;
+        volatile int newest;
+        long keysInNewest;
+
+        Disposable upstream;
+        Disposable rotation = EmptyDisposable.INSTANCE;
+        boolean done;
+
+        DistinctObserver(Observer<? super T> downstream, Function<? super T, ? extends K> keySelector,
+                         BloomFilter[] filters, long keysPerGeneration, long rotationNanos, Scheduler scheduler,
+                         Metrics metrics) {
+            this.downstream = downstream;
+            this.keySelector = keySelector;
+            this.filters = filters;
+            this.keysPerGeneration = keysPerGeneration;
+            this.rotationNanos = rotationNanos;
+            this.scheduler = scheduler;
+            this.metrics = metrics;
+            metrics.filters = filters;
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            if (DisposableHelper.validate(upstream, d)) {
+                upstream = d;
+                downstream.onSubscribe(this);
+                if (scheduler != null) {
+                    rotation = scheduler.schedulePeriodicallyDirect(this, rotationNanos, rotationNanos,
+                            TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            if (done) {
+                return;
+            }
+            K key;
+            try {
+                key = keySelector.apply(t);
+            } catch (Throwable e) {
+                Exceptions.throwIfFatal(e);
+                upstream.dispose();
+                onError(e);
+                return;
+            }
+
+            int n = newest;
+            boolean seen = false;
+            for (int i = 0; i < filters.length; i++) {
+                if (i != n && filters[i].mightContain(key)) {
+                    seen = true;
+                    break;
+                }
+            }
+            // put() tells us whether the newest generation had it, no need to ask it separately
+            if (!seen && filters[n].put(key)) {
+                metrics.emitted.incrementAndGet();
+                downstream.onNext(t);
+                if (scheduler == null && ++keysInNewest == keysPerGeneration) {
+                    rotate();
+                }
+            } else {
+                metrics.suppressed.incrementAndGet();
+            }
+        }
+
+        // the time based rotation
+        @Override
+        public void run() {
+            rotate();
+        }
+
+        // Keys put while the rotation happens may land in the filter being cleared and be forgotten
+        // early, which can only let a duplicate through, never drop a new key.
+        void rotate() {
+            int next = newest + 1 == filters.length ? 0 : newest + 1;
+            filters[next].clear();
+            newest = next;
+            keysInNewest = 0;
+            metrics.rotations.incrementAndGet();
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            if (done) {
+                return;
+            }
+            done = true;
+            rotation.dispose();
+            downstream.onError(e);
+        }
+
+        @Override
+        public void onComplete() {
+            if (done) {
+                return;
+            }
+            done = true;
+            rotation.dispose();
+            downstream.onComplete();
+        }
+
+        @Override
+        public void dispose() {
+            rotation.dispose();
+            upstream.dispose();
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return upstream.isDisposed();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.alephreach.main.operators;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.Schedulers;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// retry() resubscribes the moment an error arrives, so when a dependency goes down, every pipeline
+// hits it again at once, and again, in lockstep. BackoffRetry waits before every retry, for a random
+// time between 0 and baseDelay * 2^attempt, capped at maxDelay ("full jitter"). The growing delay
+// backs off from a dependency that stays down, and the randomness spreads the retries of many callers
+// out instead of having them arrive together.
+//
+// With a RetryBudget, a retry also needs a token from the budget, so retries stay a bounded share of
+// all calls. Put a CircuitBreaker's protect() before it and every retry is a call the breaker counts;
+// an OpenException from the breaker is never retried, failing fast is the point of an open breaker.
+
+public final class BackoffRetry<T> implements ObservableTransformer<T, T> {
+
+    private final int maxRetries;
+    private final long baseNanos;
+    private final long maxNanos;
+    private final RetryBudget budget;
+    private final Scheduler scheduler;
+    private final Metrics metrics = new Metrics();
+
+    private BackoffRetry(int maxRetries, long baseNanos, long maxNanos, RetryBudget budget, Scheduler scheduler) {
+        this.maxRetries = maxRetries;
+        this.baseNanos = baseNanos;
+        this.maxNanos = maxNanos;
+        this.budget = budget;
+        this.scheduler = scheduler;
+    }
+
+    public static <T> BackoffRetry<T> exponential(int maxRetries, long baseDelay, long maxDelay, TimeUnit unit) {
+        return create(maxRetries, baseDelay, maxDelay, unit, null, Schedulers.computation());
+    }
+
+    public static <T> BackoffRetry<T> exponential(int maxRetries, long baseDelay, long maxDelay, TimeUnit unit,
+                                                  RetryBudget budget, Scheduler scheduler) {
+        if (budget == null) {
+            throw new NullPointerException("budget is null");
+        }
+        return create(maxRetries, baseDelay, maxDelay, unit, budget, scheduler);
+    }
+
+    private static <T> BackoffRetry<T> create(int maxRetries, long baseDelay, long maxDelay, TimeUnit unit,
+                                              RetryBudget budget, Scheduler scheduler) {
+        if (unit == null) {
+            throw new NullPointerException("unit is null");
+        }
+        if (scheduler == null) {
+            throw new NullPointerException("scheduler is null");
+        }
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries >= 0 required but it was " + maxRetries);
+        }
+        if (baseDelay <= 0) {
+            throw new IllegalArgumentException("baseDelay > 0 required but it was " + baseDelay);
+        }
+        if (maxDelay < baseDelay) {
+            throw new IllegalArgumentException("maxDelay >= baseDelay required but it was " + maxDelay);
+        }
+        return new BackoffRetry<>(maxRetries, unit.toNanos(baseDelay), unit.toNanos(maxDelay), budget, scheduler);
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    @Override
+    public ObservableSource<T> apply(Observable<T> upstream) {
+        return Observable.defer(() -> {
+            if (budget != null) {
+                budget.recordCall();
+            }
+            int[] attempt = {0};
+            return upstream.retryWhen(errors -> errors.flatMap(e -> {
+                if (e instanceof CircuitBreaker.OpenException) {
+                    metrics.notRetried.incrementAndGet();
+                    return Observable.error(e);
+                }
+                if (attempt[0] == maxRetries) {
+                    metrics.exhausted.incrementAndGet();
+                    return Observable.error(e);
+                }
+                if (budget != null && !budget.tryRetry()) {
+                    metrics.overBudget.incrementAndGet();
+                    return Observable.error(e);
+                }
+                long delay = ThreadLocalRandom.current().nextLong(ceiling(attempt[0]++) + 1);
+                metrics.retries.incrementAndGet();
+                return Observable.timer(delay, TimeUnit.NANOSECONDS, scheduler);
+            }));
+        });
+    }
+
+    // baseDelay * 2^attempt without overflowing, capped at maxDelay
+    long ceiling(int attempt) {
+        if (attempt >= 62 || baseNanos > maxNanos >> attempt) {
+            return maxNanos;
+        }
+        return baseNanos << attempt;
+    }
+
+    public static final class Metrics {
+
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong exhausted = new AtomicLong();
+        private final AtomicLong overBudget = new AtomicLong();
+        private final AtomicLong notRetried = new AtomicLong();
+
+        public long retries() {
+            return retries.get();
+        }
+
+        // errors passed on because maxRetries were used up
+        public long exhausted() {
+            return exhausted.get();
+        }
+
+        // errors passed on because the budget had no token left
+        public long overBudget() {
+            return overBudget.get();
+        }
+
+        // errors passed on straight away, from an open circuit breaker
+        public long notRetried() {
+            return notRetried.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("BackoffRetry.Metrics[retries=%d, exhausted=%d, overBudget=%d, notRetried=%d]",
+                    retries(), exhausted(), overBudget(), notRetried());
+        }
+    }
+}
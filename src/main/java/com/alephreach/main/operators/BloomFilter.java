@@ -0,0 +1,125 @@
+package com.alephreach.main.operators;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A Bloom filter over hashCode(). mightContain() never says no for something that was put in, and says
+// yes for something that wasn't with roughly the false positive rate it was sized for. The bit count
+// and number of hashes come from the expected number of items and that rate, and the k bit positions
+// are derived from one 64-bit hash (Kirsch and Mitzenmacher), so an item costs one hashCode() call.
+//
+// Bits are set with CAS, so put() and mightContain() can be called from any thread.
+
+public final class BloomFilter {
+
+    private final AtomicLongArray words;
+    private final long bits;
+    private final int hashes;
+    private final AtomicLong bitsSet = new AtomicLong();
+
+    private BloomFilter(long bits, int hashes) {
+        this.words = new AtomicLongArray((int) ((bits + 63) >>> 6));
+        this.bits = (long) words.length() << 6;
+        this.hashes = hashes;
+    }
+
+    public static BloomFilter create(long expectedItems, double falsePositiveRate) {
+        if (expectedItems <= 0) {
+            throw new IllegalArgumentException("expectedItems > 0 required but it was " + expectedItems);
+        }
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("0 < falsePositiveRate < 1 required but it was " + falsePositiveRate);
+        }
+        double ln2 = Math.log(2);
+        long bits = (long) Math.ceil(-expectedItems * Math.log(falsePositiveRate) / (ln2 * ln2));
+        if (bits > (long) Integer.MAX_VALUE << 6) {
+            throw new IllegalArgumentException("A filter for " + expectedItems + " items at " + falsePositiveRate
+                    + " would need " + bits + " bits");
+        }
+        int hashes = Math.max(1, (int) Math.round((double) bits / expectedItems * ln2));
+        return new BloomFilter(bits, hashes);
+    }
+
+    // true if the item was possibly not in the filter yet
+    public boolean put(Object item) {
+        long hash = hash(item);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        boolean changed = false;
+        for (int i = 1; i <= hashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bits;
+            changed |= set(bit);
+        }
+        return changed;
+    }
+
+    public boolean mightContain(Object item) {
+        long hash = hash(item);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 1; i <= hashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bits;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Not atomic: a put() racing with clear() may or may not survive it.
+    public void clear() {
+        for (int i = 0; i < words.length(); i++) {
+            words.set(i, 0);
+        }
+        bitsSet.set(0);
+    }
+
+    // the false positive rate right now, from how many bits are actually set
+    public double expectedFalsePositiveRate() {
+        return Math.pow((double) bitsSet.get() / bits, hashes);
+    }
+
+    public long bitSize() {
+        return bits;
+    }
+
+    public int hashCount() {
+        return hashes;
+    }
+
+    public long footprintBytes() {
+        return 8L * words.length() + 64;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BloomFilter[bits=%d, hashes=%d, fill=%.3f, fpp=%.5f]",
+                bits, hashes, (double) bitsSet.get() / bits, expectedFalsePositiveRate());
+    }
+
+    private boolean set(long bit) {
+        int index = (int) (bit >>> 6);
+        long mask = 1L << bit;
+        for (;;) {
+            long word = words.get(index);
+            if ((word & mask) != 0) {
+                return false;
+            }
+            if (words.compareAndSet(index, word, word | mask)) {
+                bitsSet.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    // spreads the 32-bit hashCode over 64 bits with the murmur3 finalizer
+    static long hash(Object item) {
+        long h = (item.hashCode() & 0xffffffffL) + 0x9e3779b97f4a7c15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,330 @@
+package com.alephreach.main.operators;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntBiFunction;
+
+// A concurrent cache bounded by total weight, evicting with W-TinyLFU (Einziger, Friedman, Manes).
+// Plain LRU throws hot keys out whenever a burst of one-off keys passes through, so new entries go into
+// a small LRU window first (1% of the weight). What falls out of the window only gets into the main
+// area by beating that area's LRU victim on how often each of them was asked for recently, which a
+// count-min sketch of 4-bit counters keeps track of. The main area is a segmented LRU: an entry hit
+// again moves from probation to the protected segment (80% of the main area).
+//
+// Lookups are a ConcurrentHashMap get, no lock. The eviction order is kept under a lock, which a hit
+// only tries to take: under contention a hit is not recorded, which makes the order a little less
+// exact but never blocks a reader. Puts and evictions take the lock.
+
+public final class BoundedCache<K, V> {
+
+    private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ToIntBiFunction<? super K, ? super V> weigher;
+    private final FrequencySketch sketch;
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final long maximumWeight;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+
+    // guarded by lock
+    private final Node<K, V> window = Node.sentinel();
+    private final Node<K, V> probation = Node.sentinel();
+    private final Node<K, V> protectedSegment = Node.sentinel();
+    private long windowWeight;
+    private long mainWeight;
+    private long protectedWeight;
+
+    public BoundedCache(long maximumSize) {
+        this(maximumSize, (k, v) -> 1);
+    }
+
+    public BoundedCache(long maximumWeight, ToIntBiFunction<? super K, ? super V> weigher) {
+        if (weigher == null) {
+            throw new NullPointerException("weigher is null");
+        }
+        if (maximumWeight <= 0) {
+            throw new IllegalArgumentException("maximumWeight > 0 required but it was " + maximumWeight);
+        }
+        this.weigher = weigher;
+        this.maximumWeight = maximumWeight;
+        this.windowMaximum = Math.max(1, maximumWeight / 100);
+        this.protectedMaximum = (maximumWeight - windowMaximum) * 8 / 10;
+        this.sketch = new FrequencySketch((int) Math.min(maximumWeight, 1 << 24));
+    }
+
+    public V getIfPresent(K key) {
+        Node<K, V> node = map.get(key);
+        if (node == null) {
+            return null;
+        }
+        if (lock.tryLock()) {
+            try {
+                sketch.increment(key);
+                onHit(node);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return node.value;
+    }
+
+    // Returns the value already cached for the key if there is one, otherwise caches the given value
+    // and returns it. A value heavier than the whole cache is returned without being cached.
+    public V putIfAbsent(K key, V value) {
+        int weight = weigher.applyAsInt(key, value);
+        if (weight < 0) {
+            throw new IllegalArgumentException("weight >= 0 required but it was " + weight);
+        }
+        lock.lock();
+        try {
+            sketch.increment(key);
+            if (weight > maximumWeight) {
+                return value;
+            }
+            Node<K, V> node = new Node<>(key, value, weight);
+            Node<K, V> existing = map.putIfAbsent(key, node);
+            if (existing != null) {
+                return existing.value;
+            }
+            node.queue = Node.WINDOW;
+            node.linkLast(window);
+            windowWeight += weight;
+            evict();
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caches the value for the key, replacing any value cached before. The new entry takes the old
+    // one's place in the eviction order.
+    public void put(K key, V value) {
+        int weight = weigher.applyAsInt(key, value);
+        if (weight < 0) {
+            throw new IllegalArgumentException("weight >= 0 required but it was " + weight);
+        }
+        lock.lock();
+        try {
+            sketch.increment(key);
+            Node<K, V> old = map.get(key);
+            if (weight > maximumWeight) {
+                if (old != null) {
+                    remove(old);
+                }
+                return;
+            }
+            Node<K, V> node = new Node<>(key, value, weight);
+            map.put(key, node);
+            if (old == null) {
+                node.queue = Node.WINDOW;
+                node.linkLast(window);
+                windowWeight += weight;
+            } else {
+                node.queue = old.queue;
+                node.linkLast(old.next);
+                old.unlink();
+                old.queue = Node.REMOVED;
+                adjust(node.queue, weight - old.weight);
+            }
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long size() {
+        return map.size();
+    }
+
+    public long weight() {
+        lock.lock();
+        try {
+            return windowWeight + mainWeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long maximumWeight() {
+        return maximumWeight;
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    private void onHit(Node<K, V> node) {
+        if (node.queue == Node.REMOVED) {
+            return;
+        }
+        node.unlink();
+        if (node.queue == Node.WINDOW) {
+            node.linkLast(window);
+        } else if (node.queue == Node.PROBATION) {
+            node.queue = Node.PROTECTED;
+            node.linkLast(protectedSegment);
+            protectedWeight += node.weight;
+            // demote the least recently used protected entries to keep the segment within its share
+            while (protectedWeight > protectedMaximum && protectedSegment.next != node) {
+                Node<K, V> demoted = protectedSegment.next;
+                demoted.unlink();
+                demoted.queue = Node.PROBATION;
+                demoted.linkLast(probation);
+                protectedWeight -= demoted.weight;
+            }
+        } else {
+            node.linkLast(protectedSegment);
+        }
+    }
+
+    private void evict() {
+        // what overflows the window becomes a candidate at the end of probation
+        while (windowWeight > windowMaximum) {
+            Node<K, V> candidate = window.next;
+            candidate.unlink();
+            windowWeight -= candidate.weight;
+            candidate.queue = Node.PROBATION;
+            candidate.linkLast(probation);
+            mainWeight += candidate.weight;
+        }
+        while (windowWeight + mainWeight > maximumWeight) {
+            Node<K, V> victim = probation.next;
+            Node<K, V> candidate = probation.prev;
+            if (victim == probation) {
+                // probation is empty, so protected has to give up its eldest
+                victim = protectedSegment.next;
+            } else if (victim != candidate && sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                victim = candidate;
+            }
+            remove(victim);
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(Node<K, V> node) {
+        node.unlink();
+        adjust(node.queue, -node.weight);
+        node.queue = Node.REMOVED;
+        map.remove(node.key, node);
+    }
+
+    private void adjust(int queue, long delta) {
+        if (queue == Node.WINDOW) {
+            windowWeight += delta;
+        } else {
+            mainWeight += delta;
+            if (queue == Node.PROTECTED) {
+                protectedWeight += delta;
+            }
+        }
+    }
+
+    static final class Node<K, V> {
+
+        static final int WINDOW = 0;
+        static final int PROBATION = 1;
+        static final int PROTECTED = 2;
+        static final int REMOVED = 3;
+
+        final K key;
+        final V value;
+        final int weight;
+        int queue;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+
+        // the head of a circular list, next is the least and prev the most recently used
+        static <K, V> Node<K, V> sentinel() {
+            Node<K, V> head = new Node<>(null, null, 0);
+            head.prev = head;
+            head.next = head;
+            return head;
+        }
+
+        void linkLast(Node<K, V> head) {
+            prev = head.prev;
+            next = head;
+            head.prev.next = this;
+            head.prev = this;
+        }
+
+        void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = null;
+            next = null;
+        }
+    }
+
+    // A count-min sketch with four 4-bit counters per key. All counters are halved once the number of
+    // increments reaches 10 times the table size, so old popularity fades out.
+    static final class FrequencySketch {
+
+        static final long RESET_MASK = 0x7777777777777777L;
+
+        final long[] table;
+        final int mask;
+        final int sampleSize;
+        int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int length = Integer.highestOneBit(Math.max(16, expectedEntries) - 1) << 1;
+            this.table = new long[length];
+            this.mask = length - 1;
+            this.sampleSize = 10 * length;
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int offset = ((hash >>> (i << 3)) & 15) << 2;
+                long counter = (table[index] >>> offset) & 15;
+                if (counter < 15) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int frequency = 15;
+            for (int i = 0; i < 4; i++) {
+                int offset = ((hash >>> (i << 3)) & 15) << 2;
+                frequency = Math.min(frequency, (int) (table[indexOf(hash, i)] >>> offset) & 15);
+            }
+            return frequency;
+        }
+
+        int indexOf(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            return (int) (h + (h >>> 32)) & mask;
+        }
+
+        static int spread(int h) {
+            h = ((h >>> 16) ^ h) * 0x45d9f3b;
+            h = ((h >>> 16) ^ h) * 0x45d9f3b;
+            return (h >>> 16) ^ h;
+        }
+
+        static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+        };
+    }
+}
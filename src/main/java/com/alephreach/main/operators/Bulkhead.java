@@ -0,0 +1,360 @@
+package com.alephreach.main.operators;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableEmitter;
+import io.reactivex.ObservableSource;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.Observer;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.exceptions.CompositeException;
+import io.reactivex.exceptions.Exceptions;
+import io.reactivex.functions.Function;
+import io.reactivex.internal.disposables.DisposableHelper;
+import io.reactivex.schedulers.Schedulers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// onErrorResumeNext() switches to the fallback with no limit. When the primary fails for everyone at
+// once, every stream is on the fallback at once, on the threads the primary was using. A Bulkhead
+// runs fallbacks in a compartment of their own: at most maxConcurrent of them are subscribed at a
+// time, on the bulkhead's scheduler, and up to maxQueued more wait for a slot in arrival order.
+//
+// When both are full the fallback is not run at all. Either the error is passed on straight away as a
+// FullException, with the primary's error as its cause, or, given a staleCache, the last complete
+// result cached for the key is replayed instead. Every stream that completes through the operator,
+// primary or fallback, refreshes that entry, so the cache is meant for finite, request-like streams.
+//
+// One Bulkhead is meant to be shared by every stream falling back to the same dependency.
+
+public final class Bulkhead {
+
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final Scheduler scheduler;
+    private final Metrics metrics;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Call<?>> queue = new ConcurrentLinkedQueue<>();
+
+    private Bulkhead(int maxConcurrent, int maxQueued, Scheduler scheduler) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.scheduler = scheduler;
+        this.metrics = new Metrics(this);
+    }
+
+    public static Bulkhead create(int maxConcurrent, int maxQueued) {
+        return create(maxConcurrent, maxQueued, Schedulers.io());
+    }
+
+    public static Bulkhead create(int maxConcurrent, int maxQueued, Scheduler scheduler) {
+        if (scheduler == null) {
+            throw new NullPointerException("scheduler is null");
+        }
+        if (maxConcurrent <= 0) {
+            throw new IllegalArgumentException("maxConcurrent > 0 required but it was " + maxConcurrent);
+        }
+        if (maxQueued < 0) {
+            throw new IllegalArgumentException("maxQueued >= 0 required but it was " + maxQueued);
+        }
+        return new Bulkhead(maxConcurrent, maxQueued, scheduler);
+    }
+
+    // switches to the fallback inside the bulkhead, failing fast when it is full
+    public <T> ObservableTransformer<T, T> onErrorResumeNext(
+            Function<? super Throwable, ? extends ObservableSource<? extends T>> fallback) {
+        if (fallback == null) {
+            throw new NullPointerException("fallback is null");
+        }
+        return upstream -> upstream.onErrorResumeNext((Throwable e) -> resume(e, fallback, null, null));
+    }
+
+    // switches to the fallback inside the bulkhead, replaying the result cached for the key when it is full
+    public <K, T> ObservableTransformer<T, T> onErrorResumeNext(
+            K key, Function<? super Throwable, ? extends ObservableSource<? extends T>> fallback,
+            BoundedCache<K, List<T>> staleCache) {
+        if (key == null) {
+            throw new NullPointerException("key is null");
+        }
+        if (fallback == null) {
+            throw new NullPointerException("fallback is null");
+        }
+        if (staleCache == null) {
+            throw new NullPointerException("staleCache is null");
+        }
+        return upstream -> Observable.defer(() -> {
+            List<T> emitted = new ArrayList<>();
+            return upstream
+                    .doOnNext(emitted::add)
+                    .doOnComplete(() -> staleCache.put(key, emitted))
+                    .onErrorResumeNext((Throwable e) -> resume(e, fallback, key, staleCache));
+        });
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    <K, T> Observable<T> resume(Throwable error,
+                                Function<? super Throwable, ? extends ObservableSource<? extends T>> fallback,
+                                K key, BoundedCache<K, List<T>> staleCache) {
+        return Observable.create(emitter -> {
+            Call<T> call = new Call<>(error, fallback, emitter, key, staleCache);
+            emitter.setDisposable(call);
+            if (submit(call)) {
+                return;
+            }
+            metrics.rejected.incrementAndGet();
+            List<T> stale = staleCache == null ? null : staleCache.getIfPresent(key);
+            if (stale == null) {
+                emitter.onError(new FullException(error));
+                return;
+            }
+            metrics.staleServed.incrementAndGet();
+            for (T t : stale) {
+                if (emitter.isDisposed()) {
+                    return;
+                }
+                emitter.onNext(t);
+            }
+            emitter.onComplete();
+        });
+    }
+
+    // false if there is neither a free slot nor room in the queue
+    boolean submit(Call<?> call) {
+        if (tryAcquire()) {
+            call.start();
+            return true;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            return false;
+        }
+        queue.offer(call);
+        metrics.queuedTotal.incrementAndGet();
+        // a slot may have been released between the failed tryAcquire() and the offer
+        drain();
+        return true;
+    }
+
+    void release() {
+        active.decrementAndGet();
+        drain();
+    }
+
+    private void drain() {
+        while (!queue.isEmpty() && tryAcquire()) {
+            Call<?> call = queue.poll();
+            if (call == null) {
+                active.decrementAndGet();
+                continue;
+            }
+            queued.decrementAndGet();
+            if (!call.start()) {
+                // disposed while it waited
+                active.decrementAndGet();
+            }
+        }
+    }
+
+    private boolean tryAcquire() {
+        for (;;) {
+            int a = active.get();
+            if (a == maxConcurrent) {
+                return false;
+            }
+            if (active.compareAndSet(a, a + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // One fallback waiting for or holding a slot. The slot is released exactly once, by whichever of
+    // terminating and disposing comes first.
+    final class Call<T> extends AtomicInteger implements Observer<T>, Disposable {
+
+        static final int QUEUED = 0;
+        static final int RUNNING = 1;
+        static final int DONE = 2;
+        static final int CANCELLED = 3;
+
+        final Throwable error;
+        final Function<? super Throwable, ? extends ObservableSource<? extends T>> fallback;
+        final ObservableEmitter<T> emitter;
+        final Object key;
+        final BoundedCache<Object, List<T>> staleCache;
+        final List<T> emitted;
+        final AtomicReference<Disposable> upstream = new AtomicReference<>();
+
+        @SuppressWarnings("unchecked")
+        Call(Throwable error, Function<? super Throwable, ? extends ObservableSource<? extends T>> fallback,
+             ObservableEmitter<T> emitter, Object key, BoundedCache<?, List<T>> staleCache) {
+            this.error = error;
+            this.fallback = fallback;
+            this.emitter = emitter;
+            this.key = key;
+            this.staleCache = (BoundedCache<Object, List<T>>) staleCache;
+            this.emitted = staleCache == null ? null : new ArrayList<>();
+        }
+
+        // false if the call was disposed before it got its slot
+        boolean start() {
+            if (!compareAndSet(QUEUED, RUNNING)) {
+                return false;
+            }
+            metrics.started.incrementAndGet();
+            ObservableSource<? extends T> source;
+            try {
+                source = fallback.apply(error);
+                if (source == null) {
+                    throw new NullPointerException("The fallback returned a null ObservableSource");
+                }
+            } catch (Throwable e) {
+                Exceptions.throwIfFatal(e);
+                if (finish()) {
+                    emitter.onError(new CompositeException(error, e));
+                }
+                return true;
+            }
+            Observable.wrap(source).subscribeOn(scheduler).subscribe(this);
+            return true;
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            DisposableHelper.setOnce(upstream, d);
+        }
+
+        @Override
+        public void onNext(T t) {
+            if (emitted != null) {
+                emitted.add(t);
+            }
+            emitter.onNext(t);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            if (finish()) {
+                emitter.onError(e);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            if (finish()) {
+                if (staleCache != null) {
+                    staleCache.put(key, emitted);
+                }
+                emitter.onComplete();
+            }
+        }
+
+        // releases the slot before the terminal event, so a resubscription downstream can have it
+        private boolean finish() {
+            if (compareAndSet(RUNNING, DONE)) {
+                release();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void dispose() {
+            for (;;) {
+                int state = get();
+                if (state == QUEUED) {
+                    if (compareAndSet(QUEUED, CANCELLED)) {
+                        // if the poll beat the removal, drain() sees the cancellation instead
+                        if (queue.remove(this)) {
+                            queued.decrementAndGet();
+                        }
+                        return;
+                    }
+                } else if (state == RUNNING) {
+                    if (compareAndSet(RUNNING, CANCELLED)) {
+                        DisposableHelper.dispose(upstream);
+                        release();
+                        return;
+                    }
+                } else {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return get() == CANCELLED;
+        }
+    }
+
+    public static final class Metrics {
+
+        private final AtomicLong started = new AtomicLong();
+        private final AtomicLong queuedTotal = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong staleServed = new AtomicLong();
+        private final Bulkhead bulkhead;
+
+        Metrics(Bulkhead bulkhead) {
+            this.bulkhead = bulkhead;
+        }
+
+        // fallbacks subscribed to
+        public long started() {
+            return started.get();
+        }
+
+        // fallbacks that had to wait for a slot
+        public long queuedTotal() {
+            return queuedTotal.get();
+        }
+
+        // fallbacks not run because the bulkhead was full
+        public long rejected() {
+            return rejected.get();
+        }
+
+        // rejections answered from the stale cache instead of with a FullException
+        public long staleServed() {
+            return staleServed.get();
+        }
+
+        public int active() {
+            return bulkhead.active.get();
+        }
+
+        public int queued() {
+            return bulkhead.queued.get();
+        }
+
+        // the share of slots in use right now
+        public double saturation() {
+            return (double) active() / bulkhead.maxConcurrent;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Bulkhead.Metrics[started=%d, queuedTotal=%d, rejected=%d, staleServed=%d, active=%d/%d, queued=%d/%d]",
+                    started(), queuedTotal(), rejected(), staleServed(), active(), bulkhead.maxConcurrent, queued(), bulkhead.maxQueued);
+        }
+    }
+
+    // Passed on when the bulkhead is full, with the primary's error as the cause. It has no stack
+    // trace, failing fast should be cheap.
+    public static final class FullException extends RuntimeException {
+
+        public FullException(Throwable cause) {
+            super("The bulkhead is full", cause, false, false);
+        }
+    }
+}
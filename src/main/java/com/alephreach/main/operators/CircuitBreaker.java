@@ -0,0 +1,255 @@
+package com.alephreach.main.operators;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.Schedulers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Once a dependency is down, calling it anyway only adds load and makes every caller wait for the
+// error. A CircuitBreaker tracks the outcome of the last windowSize calls that went through protect():
+//
+// - CLOSED: calls go through. Once at least minimumCalls are in the window and the share of failures
+//   reaches failureRateThreshold, the breaker opens.
+// - OPEN: calls fail straight away with an OpenException, without subscribing to the source.
+// - HALF_OPEN: openDuration after opening, the next permittedProbes calls go through as probes. If
+//   they all succeed the breaker closes with an empty window, the first failure opens it again.
+//
+// A call succeeds when it completes and fails when it errors. One disposed before either counts as
+// neither. An outcome that arrives after the state changed, say a slow call that started before the
+// breaker opened, is ignored.
+//
+// One breaker is meant to be shared by every call to the same dependency. The state changes under
+// the breaker's lock, which every call takes twice, on subscribe and on terminate.
+
+public final class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final double failureRateThreshold;
+    private final int minimumCalls;
+    private final long openNanos;
+    private final int permittedProbes;
+    private final Scheduler scheduler;
+
+    // guarded by this
+    private final boolean[] outcomes;
+    private int index;
+    private int recorded;
+    private int failures;
+    private State state = State.CLOSED;
+    private long generation;
+    private long openedAt;
+    private int probesStarted;
+    private int probesSucceeded;
+
+    private long successful;
+    private long failed;
+    private long rejected;
+    private long opened;
+
+    private CircuitBreaker(double failureRateThreshold, int windowSize, int minimumCalls, long openNanos,
+                           int permittedProbes, Scheduler scheduler) {
+        this.failureRateThreshold = failureRateThreshold;
+        this.outcomes = new boolean[windowSize];
+        this.minimumCalls = minimumCalls;
+        this.openNanos = openNanos;
+        this.permittedProbes = permittedProbes;
+        this.scheduler = scheduler;
+    }
+
+    public static CircuitBreaker create(double failureRateThreshold, int windowSize, long openDuration, TimeUnit unit) {
+        return create(failureRateThreshold, windowSize, windowSize, openDuration, unit, 1, Schedulers.computation());
+    }
+
+    public static CircuitBreaker create(double failureRateThreshold, int windowSize, int minimumCalls,
+                                        long openDuration, TimeUnit unit, int permittedProbes,
+                                        Scheduler scheduler) {
+        if (unit == null) {
+            throw new NullPointerException("unit is null");
+        }
+        if (scheduler == null) {
+            throw new NullPointerException("scheduler is null");
+        }
+        if (failureRateThreshold <= 0 || failureRateThreshold > 1) {
+            throw new IllegalArgumentException("0 < failureRateThreshold <= 1 required but it was " + failureRateThreshold);
+        }
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("windowSize > 0 required but it was " + windowSize);
+        }
+        if (minimumCalls <= 0 || minimumCalls > windowSize) {
+            throw new IllegalArgumentException("0 < minimumCalls <= windowSize required but it was " + minimumCalls);
+        }
+        if (openDuration < 0) {
+            throw new IllegalArgumentException("openDuration >= 0 required but it was " + openDuration);
+        }
+        if (permittedProbes <= 0) {
+            throw new IllegalArgumentException("permittedProbes > 0 required but it was " + permittedProbes);
+        }
+        return new CircuitBreaker(failureRateThreshold, windowSize, minimumCalls, unit.toNanos(openDuration),
+                permittedProbes, scheduler);
+    }
+
+    // every subscription to the returned Observable is one call
+    public <T> ObservableTransformer<T, T> protect() {
+        return upstream -> Observable.defer(() -> {
+            long permit = tryAcquire();
+            if (permit < 0) {
+                return Observable.<T>error(new OpenException());
+            }
+            AtomicBoolean done = new AtomicBoolean();
+            return upstream
+                    .doOnComplete(() -> {
+                        if (done.compareAndSet(false, true)) {
+                            onSuccess(permit);
+                        }
+                    })
+                    .doOnError(e -> {
+                        if (done.compareAndSet(false, true)) {
+                            onFailure(permit);
+                        }
+                    })
+                    .doOnDispose(() -> {
+                        if (done.compareAndSet(false, true)) {
+                            release(permit);
+                        }
+                    });
+        });
+    }
+
+    public synchronized State state() {
+        if (state == State.OPEN && now() - openedAt >= openNanos) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    // the share of failures among the calls in the window
+    public synchronized double failureRate() {
+        return recorded == 0 ? 0 : (double) failures / recorded;
+    }
+
+    public synchronized long successful() {
+        return successful;
+    }
+
+    public synchronized long failed() {
+        return failed;
+    }
+
+    // calls failed fast while open, or half open with all probes out
+    public synchronized long rejected() {
+        return rejected;
+    }
+
+    // how many times the breaker went from closed or half open to open
+    public synchronized long opened() {
+        return opened;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("CircuitBreaker[state=%s, failureRate=%.2f, successful=%d, failed=%d, rejected=%d, opened=%d]",
+                state(), failureRate(), successful, failed, rejected, opened);
+    }
+
+    // the generation the call started in, or -1 if it is not permitted
+    synchronized long tryAcquire() {
+        if (state == State.OPEN) {
+            if (now() - openedAt < openNanos) {
+                rejected++;
+                return -1;
+            }
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesStarted == permittedProbes) {
+                rejected++;
+                return -1;
+            }
+            probesStarted++;
+        }
+        return generation;
+    }
+
+    synchronized void onSuccess(long permit) {
+        successful++;
+        if (permit != generation) {
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            if (++probesSucceeded == permittedProbes) {
+                transition(State.CLOSED);
+            }
+        } else {
+            record(false);
+        }
+    }
+
+    synchronized void onFailure(long permit) {
+        failed++;
+        if (permit != generation) {
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            transition(State.OPEN);
+            return;
+        }
+        record(true);
+        if (recorded >= minimumCalls && (double) failures / recorded >= failureRateThreshold) {
+            transition(State.OPEN);
+        }
+    }
+
+    synchronized void release(long permit) {
+        if (permit == generation && state == State.HALF_OPEN) {
+            probesStarted--;
+        }
+    }
+
+    private void record(boolean failure) {
+        if (recorded == outcomes.length) {
+            if (outcomes[index]) {
+                failures--;
+            }
+        } else {
+            recorded++;
+        }
+        outcomes[index] = failure;
+        if (failure) {
+            failures++;
+        }
+        index = index + 1 == outcomes.length ? 0 : index + 1;
+    }
+
+    private void transition(State next) {
+        state = next;
+        generation++;
+        probesStarted = 0;
+        probesSucceeded = 0;
+        if (next == State.OPEN) {
+            opened++;
+            openedAt = now();
+        } else if (next == State.CLOSED) {
+            index = 0;
+            recorded = 0;
+            failures = 0;
+        }
+    }
+
+    private long now() {
+        return scheduler.now(TimeUnit.NANOSECONDS);
+    }
+
+    // Thrown to calls that were not let through. It has no stack trace, failing fast should be cheap.
+    public static final class OpenException extends RuntimeException {
+
+        public OpenException() {
+            super("The circuit breaker is open", null, false, false);
+        }
+    }
+}
@@ -1,13 +1,18 @@
 package com.alephreach.main.operators;
 
 import com.alephreach.main.GlobalUtils;
+import io.reactivex.Observable;
+import io.reactivex.ObservableTransformer;
 import io.reactivex.functions.Function;
-import jdk.nashorn.internal.objects.Global;
+import io.reactivex.schedulers.Schedulers;
 
 import java.lang.management.GarbageCollectorMXBean;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 public class CollectionOperator {
 
@@ -116,6 +121,99 @@ public class CollectionOperator {
                 .subscribe(s -> System.out.println(s));
     }
 
+    private static void sizedCollectors() {
+
+//        toList(), toMap() and toMultimap() start small and resize as they go, and box every element.
+//        When the size is known, or the same source is collected again and again, SizedCollectors
+//        sizes the collection up front, and can collect numbers into primitive arrays instead:
+
+        GlobalUtils.getRangeObservable(1, 10)
+                .compose(SizedCollectors.toLongList(i -> i * i, 10))
+                .subscribe(s -> System.out.println(s)); // [1, 4, 9, 16, 25, 36, 49, 64, 81, 100]
+
+        GlobalUtils.getStringJustObservable()
+                .compose(SizedCollectors.toCompactMultimap(String::length, s -> s))
+                .subscribe(s -> System.out.println(s)); // {4=[Beta], 5=[Alpha, Gamma, Delta], 7=[Epsilon]}
+
+//        Without a size, a transformer sizes each collection after the last one it collected, so keep
+//        one around for a source that is collected repeatedly:
+
+        ObservableTransformer<Integer, List<Integer>> toList = SizedCollectors.toArrayList();
+        for (int i = 0; i < 3; i++) {
+            GlobalUtils.getRangeObservable(1, 1000)
+                    .compose(toList)
+                    .subscribe(s -> System.out.println(s.size()));
+        }
+    }
+
+    // needs a bigger heap than the default, run with -Xmx3g
+    private static void sizedCollectors_benchmark() {
+        int n = 10_000_000;
+
+        measure("toList()", () -> Observable.range(0, n).toList().blockingGet());
+        measure("toArrayList(n)", () -> Observable.range(0, n).compose(SizedCollectors.toArrayList(n)).blockingSingle());
+        measure("toLongList(n)", () -> Observable.range(0, n).compose(SizedCollectors.toLongList(i -> i, n)).blockingSingle());
+
+        measure("toMap()", () -> Observable.range(0, n).toMap(i -> i, i -> i * 2).blockingGet());
+        measure("toHashMap(n)", () -> Observable.range(0, n).compose(SizedCollectors.toHashMap(i -> i, i -> i * 2, n)).blockingSingle());
+        measure("toLongMap(n)", () -> Observable.range(0, n).compose(SizedCollectors.toLongMap(i -> i, i -> i * 2, n)).blockingSingle());
+
+        // a million keys with ten values each
+        measure("toMultimap()", () -> Observable.range(0, n).toMultimap(i -> i % 1_000_000).blockingGet());
+        measure("toCompactMultimap()", () -> Observable.range(0, n).compose(SizedCollectors.toCompactMultimap(i -> i % 1_000_000, i -> i, 1_000_000, n)).blockingSingle());
+    }
+
+    private static volatile Object retainedResult;
+
+    private static void measure(String name, Callable<Object> collect) {
+        try {
+            long before = usedHeap();
+            long start = System.nanoTime();
+            Object result = collect.call();
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            long retained = usedHeap() - before;
+            System.out.printf("%-20s %6d ms %,15d bytes retained%n", name, millis, retained);
+            retainedResult = result; // keeps the result reachable until after the measurement
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void aggregateByKey() {
+
+//        toMultimap() keeps every emission around, and so does groupBy() followed by toList().
+//        If all we want per key is a number, KeyedAggregation folds each emission into a primitive
+//        long-to-long hash map instead. Memory grows with the number of keys, not emissions:
+
+        GlobalUtils.getStringJustObservable()
+                .compose(KeyedAggregation.countByKey(String::length))
+                .subscribe(s -> System.out.println(s)); // {5=3, 4=1, 7=1}
+
+        GlobalUtils.getRangeObservable(1, 1_000_000)
+                .compose(KeyedAggregation.sumByKey(i -> i % 10, i -> i))
+                .subscribe(s -> System.out.println(s));
+
+        GlobalUtils.getRangeObservable(1, 1_000_000)
+                .compose(KeyedAggregation.maxByKey(i -> i % 3, i -> i * 7 % 1000))
+                .subscribe(s -> System.out.println(s)); // {0=999, 2=999, 1=999}
+
+        // with a tick, a cumulative snapshot is emitted every period and once more on completion
+
+        GlobalUtils.getIntervalObservable(10, TimeUnit.MILLISECONDS)
+                .take(300)
+                .compose(KeyedAggregation.foldByKey(i -> i % 4, 0, KeyedAggregation.COUNT,
+                        1, TimeUnit.SECONDS, Schedulers.computation()))
+                .blockingSubscribe(s -> System.out.println(s));
+    }
+
     private static void collect() {
 
 //        When none of the collection operators have what you need, you can always use the
@@ -152,6 +250,9 @@ public class CollectionOperator {
 //        toList();
 //        toSortedList();
 //        toMap();
+//        sizedCollectors();
+//        sizedCollectors_benchmark();
+//        aggregateByKey();
         toMultiMap();
     }
 }
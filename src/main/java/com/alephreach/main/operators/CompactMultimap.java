@@ -0,0 +1,241 @@
+package com.alephreach.main.operators;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.function.BiConsumer;
+
+// What toMultimap() builds, a HashMap<K, List<V>>, costs an entry object, an ArrayList and an array
+// header for every key, plus whatever spare capacity each ArrayList has grown. CompactMultimap keeps
+// no object per key at all:
+//
+// - keys live in an open-addressing table that maps each key to a small int id
+// - values go into one shared array as they arrive, next to an int array with the id of their key
+// - compact() then reorders the shared array with a counting sort so every key's values sit next to
+//   each other, and from then on a key is just an offset into that array (the layout of a CSR sparse
+//   matrix)
+//
+// get() compacts first if values were added since the last compact(), and returns a read-only view
+// over the key's slice of the shared array. Values keep the order they were put in. Not thread safe.
+
+public final class CompactMultimap<K, V> {
+
+    private static final float LOAD_FACTOR = 0.6f;
+
+    // key -> id, open addressing
+    private Object[] keyTable;
+    private int[] idTable;
+    private int mask;
+
+    // per key id
+    private Object[] keys;
+    private int[] counts;
+    private int[] offsets;
+    private int keyCount;
+
+    // per value, valueKeys is only used until the next compact()
+    private Object[] values;
+    private int[] valueKeys;
+    private int valueCount;
+    private boolean compacted = true;
+
+    public CompactMultimap() {
+        this(16, 16);
+    }
+
+    public CompactMultimap(int expectedKeys, int expectedValues) {
+        if (expectedKeys < 0 || expectedValues < 0) {
+            throw new IllegalArgumentException("expectedKeys and expectedValues must be >= 0");
+        }
+        int tableSize = Integer.highestOneBit(Math.max(4, (int) Math.ceil(expectedKeys / LOAD_FACTOR)) - 1) << 1;
+        keyTable = new Object[tableSize];
+        idTable = new int[tableSize];
+        mask = tableSize - 1;
+        int keyCapacity = Math.max(4, expectedKeys);
+        keys = new Object[keyCapacity];
+        counts = new int[keyCapacity];
+        offsets = new int[keyCapacity + 1];
+        int valueCapacity = Math.max(4, expectedValues);
+        values = new Object[valueCapacity];
+        valueKeys = new int[valueCapacity];
+    }
+
+    public void put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key and value must not be null");
+        }
+        if (compacted && valueCount != 0) {
+            expand();
+        }
+        compacted = false;
+
+        int id = idOf(key, true);
+        if (valueCount == values.length) {
+            int capacity = valueCount + (valueCount >> 1);
+            values = Arrays.copyOf(values, capacity);
+            valueKeys = Arrays.copyOf(valueKeys, capacity);
+        }
+        values[valueCount] = value;
+        valueKeys[valueCount++] = id;
+        counts[id]++;
+    }
+
+    public List<V> get(K key) {
+        int id = idOf(key, false);
+        if (id < 0) {
+            return Collections.emptyList();
+        }
+        compact();
+        return new Slice<>(values, offsets[id], counts[id]);
+    }
+
+    public boolean containsKey(K key) {
+        return idOf(key, false) >= 0;
+    }
+
+    public int keyCount() {
+        return keyCount;
+    }
+
+    public long valueCount() {
+        return valueCount;
+    }
+
+    // in the order keys were first seen
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super List<V>> action) {
+        compact();
+        for (int id = 0; id < keyCount; id++) {
+            action.accept((K) keys[id], new Slice<>(values, offsets[id], counts[id]));
+        }
+    }
+
+    // Groups the values by key and drops the spare capacity. Done automatically by get() and
+    // forEach(), calling it directly once collecting is over just frees the key id array earlier.
+    public CompactMultimap<K, V> compact() {
+        if (compacted) {
+            return this;
+        }
+        int offset = 0;
+        for (int id = 0; id < keyCount; id++) {
+            offsets[id] = offset;
+            offset += counts[id];
+        }
+        offsets[keyCount] = offset;
+
+        // one sequential pass, each value goes to the next free slot of its key
+        int[] cursors = Arrays.copyOf(offsets, keyCount);
+        Object[] packed = new Object[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            packed[cursors[valueKeys[i]]++] = values[i];
+        }
+        values = packed;
+        valueKeys = new int[0];
+        compacted = true;
+        return this;
+    }
+
+    // roughly how many bytes the map holds on to, not counting the keys and values themselves
+    public long footprintBytes() {
+        return 8L * keyTable.length + 12L * keys.length + 4L * values.length + 4L * valueKeys.length + 128;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        forEach((k, v) -> {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(k).append('=').append(v);
+        });
+        return sb.append('}').toString();
+    }
+
+    // undoes compact() so more values can be added, the key ids follow from the offsets
+    private void expand() {
+        int capacity = values.length + (values.length >> 1) + 1;
+        values = Arrays.copyOf(values, capacity);
+        valueKeys = new int[capacity];
+        for (int id = 0; id < keyCount; id++) {
+            Arrays.fill(valueKeys, offsets[id], offsets[id] + counts[id], id);
+        }
+    }
+
+    private int idOf(Object key, boolean create) {
+        int slot = mix(key.hashCode()) & mask;
+        Object k;
+        while ((k = keyTable[slot]) != null) {
+            if (k == key || k.equals(key)) {
+                return idTable[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (!create) {
+            return -1;
+        }
+
+        int id = keyCount++;
+        if (id == keys.length) {
+            int capacity = id + (id >> 1);
+            keys = Arrays.copyOf(keys, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            offsets = Arrays.copyOf(offsets, capacity + 1);
+        }
+        keys[id] = key;
+        keyTable[slot] = key;
+        idTable[slot] = id;
+        if (keyCount > keyTable.length * LOAD_FACTOR) {
+            rehash(keyTable.length << 1);
+        }
+        return id;
+    }
+
+    private void rehash(int tableSize) {
+        keyTable = new Object[tableSize];
+        idTable = new int[tableSize];
+        mask = tableSize - 1;
+        for (int id = 0; id < keyCount; id++) {
+            int slot = mix(keys[id].hashCode()) & mask;
+            while (keyTable[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keyTable[slot] = keys[id];
+            idTable[slot] = id;
+        }
+    }
+
+    // the same spreading HashMap does, keys with similar hashes still land close together
+    static int mix(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    static final class Slice<V> extends AbstractList<V> implements RandomAccess {
+
+        final Object[] values;
+        final int offset;
+        final int size;
+
+        Slice(Object[] values, int offset, int size) {
+            this.values = values;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return (V) values[offset + index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.alephreach.main.operators;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.Scheduler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+// distinct().count() keeps every distinct item in a HashSet until the source completes. countDistinct()
+// folds every item into a HyperLogLog instead, a few KB whatever the count, and emits an estimate that
+// is off by about HyperLogLog.relativeError(), 1.6% at the default precision.
+//
+// sketch() emits the HyperLogLog itself, so sketches of parallel rails or separate streams can be
+// merged before asking for the estimate. sketchPerWindow() emits one sketch per time window, and
+// runningCountDistinct() emits the estimate over everything seen so far at the end of every window,
+// both also work on sources that never complete.
+
+public final class DistinctCount {
+
+    private DistinctCount() {
+    }
+
+    public static <T> ObservableTransformer<T, Long> countDistinct() {
+        return countDistinct(HyperLogLog.DEFAULT_PRECISION);
+    }
+
+    public static <T> ObservableTransformer<T, Long> countDistinct(int precision) {
+        ObservableTransformer<T, HyperLogLog> sketch = sketch(precision);
+        return upstream -> upstream.compose(sketch).map(HyperLogLog::estimate);
+    }
+
+    public static <T> ObservableTransformer<T, HyperLogLog> sketch(int precision) {
+        checkPrecision(precision);
+        return upstream -> upstream
+                .collect(() -> new HyperLogLog(precision), HyperLogLog::add)
+                .toObservable();
+    }
+
+    // for more than some 100 million distinct items, see HyperLogLog.add()
+    public static <T> ObservableTransformer<T, HyperLogLog> sketch(ToLongFunction<? super T> keySelector,
+                                                                   int precision) {
+        if (keySelector == null) {
+            throw new NullPointerException("keySelector is null");
+        }
+        checkPrecision(precision);
+        return upstream -> upstream
+                .collect(() -> new HyperLogLog(precision), (hll, t) -> hll.addLong(keySelector.applyAsLong(t)))
+                .toObservable();
+    }
+
+    // an empty window emits an empty sketch
+    public static <T> ObservableTransformer<T, HyperLogLog> sketchPerWindow(int precision, long timespan,
+                                                                            TimeUnit unit, Scheduler scheduler) {
+        ObservableTransformer<T, HyperLogLog> sketch = sketch(precision);
+        return upstream -> upstream
+                .window(timespan, unit, scheduler)
+                .concatMap((Observable<T> window) -> window.compose(sketch));
+    }
+
+    // one sketch per subscription that every window adds to
+    public static <T> ObservableTransformer<T, Long> runningCountDistinct(int precision, long timespan,
+                                                                          TimeUnit unit, Scheduler scheduler) {
+        checkPrecision(precision);
+        return upstream -> Observable.defer(() -> {
+            HyperLogLog total = new HyperLogLog(precision);
+            return upstream
+                    .window(timespan, unit, scheduler)
+                    .concatMap((Observable<T> window) -> window
+                            .reduce(total, (hll, t) -> {
+                                hll.add(t);
+                                return hll;
+                            })
+                            .map(HyperLogLog::estimate)
+                            .toObservable());
+        });
+    }
+
+    private static void checkPrecision(int precision) {
+        if (precision < HyperLogLog.MIN_PRECISION || precision > HyperLogLog.MAX_PRECISION) {
+            throw new IllegalArgumentException(HyperLogLog.MIN_PRECISION + " <= precision <= "
+                    + HyperLogLog.MAX_PRECISION + " required but it was " + precision);
+        }
+    }
+}
@@ -4,6 +4,15 @@ import com.alephreach.main.GlobalUtils;
 import io.reactivex.Observable;
 import io.reactivex.Observer;
 import io.reactivex.functions.Function;
+import io.reactivex.schedulers.Schedulers;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ErrorRecoveryOperator {
 
@@ -72,6 +81,54 @@ public class ErrorRecoveryOperator {
                 .subscribe(s -> System.out.println(s));
     }
 
+    private static void onErrorResumeNext_bulkhead() {
+
+//        When the primary goes down for every request at once, onErrorResumeNext() sends all of them
+//        to the fallback at once. A Bulkhead lets at most 4 fallbacks run at a time, on its own
+//        threads, with up to 16 more waiting; the others fail fast with a Bulkhead.FullException.
+//
+//        Here 200 requests arrive together, the primary fails every one of them and the fallback
+//        takes 50 ms:
+
+        Observable<String> primary = Observable.error(new IllegalStateException("primary down"));
+        Observable<String> fallback = Observable.just("fallback").delay(50, TimeUnit.MILLISECONDS);
+
+        Bulkhead bulkhead = Bulkhead.create(4, 16);
+        Map<String, Integer> outcomes = new TreeMap<>();
+
+        Observable.range(0, 200)
+                .flatMap(request -> primary
+                        .compose(bulkhead.onErrorResumeNext(e -> fallback))
+                        .onErrorReturn(e -> e.getClass().getSimpleName()))
+                .blockingForEach(s -> outcomes.merge(s, 1, Integer::sum));
+
+        System.out.println(outcomes);
+        System.out.println(bulkhead.metrics());
+
+        // output
+        // {FullException=180, fallback=20}
+        // Bulkhead.Metrics[started=20, queuedTotal=16, rejected=180, staleServed=0, active=0/4, queued=0/16]
+
+//        With a stale cache, a rejected request gets the last complete result for its key instead, here
+//        the one from before the outage:
+
+        BoundedCache<String, List<String>> staleCache = new BoundedCache<>(1000);
+        staleCache.put("quote", Collections.singletonList("stale quote"));
+        Map<String, Integer> staleOutcomes = new TreeMap<>();
+
+        Observable.range(0, 200)
+                .flatMap(request -> primary
+                        .compose(bulkhead.onErrorResumeNext("quote", e -> fallback, staleCache)))
+                .blockingForEach(s -> staleOutcomes.merge(s, 1, Integer::sum));
+
+        System.out.println(staleOutcomes);
+        System.out.println(bulkhead.metrics());
+
+        // output
+        // {fallback=20, stale quote=180}
+        // Bulkhead.Metrics[started=40, queuedTotal=32, rejected=360, staleServed=180, active=0/4, queued=0/16]
+    }
+
     private static void retry() {
 
 //        Another way to attempt recovery is to use the retry() operator, which has several
@@ -86,9 +143,68 @@ public class ErrorRecoveryOperator {
                 .subscribe(s -> System.out.println(s));
     }
 
+    private static void retry_with_backoff() {
+
+//        During an outage, retry() makes things worse: every failed request is sent again straight
+//        away. BackoffRetry waits a random, growing delay before each retry, a RetryBudget shared by
+//        all requests caps retries to 10% of them, and a CircuitBreaker stops calling the dependency
+//        at all once half of the last 20 calls failed, letting one probe through every 500 ms.
+//
+//        Here the dependency is down for the first second, and 100 requests come in every 100 ms:
+
+        AtomicInteger dependencyCalls = new AtomicInteger();
+        AtomicLong outageEnds = new AtomicLong();
+
+        Observable<String> dependency = Observable.fromCallable(() -> {
+            dependencyCalls.incrementAndGet();
+            outageEnds.compareAndSet(0, System.currentTimeMillis() + 1000);
+            if (System.currentTimeMillis() < outageEnds.get()) {
+                throw new IllegalStateException("dependency down");
+            }
+            return "ok";
+        });
+
+        RetryBudget budget = RetryBudget.create(0.1, 10);
+        CircuitBreaker breaker = CircuitBreaker.create(0.5, 20, 500, TimeUnit.MILLISECONDS);
+        BackoffRetry<String> retry = BackoffRetry.exponential(3, 10, 1000, TimeUnit.MILLISECONDS, budget,
+                Schedulers.computation());
+
+        AtomicInteger succeeded = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+
+        Observable.interval(100, TimeUnit.MILLISECONDS)
+                .take(20)
+                .flatMap(tick -> Observable.range(0, 100))
+                .flatMap(request -> dependency
+                        .compose(breaker.protect())
+                        .compose(retry)
+                        .doOnNext(s -> succeeded.incrementAndGet())
+                        .onErrorResumeNext(e -> {
+                            failed.incrementAndGet();
+                            return Observable.empty();
+                        }))
+                .blockingSubscribe();
+
+        System.out.println("succeeded = " + succeeded + ", failed = " + failed + ", dependency calls = " + dependencyCalls);
+        System.out.println(breaker);
+        System.out.println(budget);
+        System.out.println(retry.metrics());
+
+        // output
+        // succeeded = 900, failed = 1100, dependency calls = 921
+        // CircuitBreaker[state=CLOSED, failureRate=0.00, successful=900, failed=21, rejected=1091, opened=2]
+        // RetryBudget[available=10.0, calls=2000, retriesAllowed=12, retriesRefused=9]
+        // BackoffRetry.Metrics[retries=12, exhausted=0, overBudget=9, notRetried=1091]
+
+//        The requests made during the outage fail fast instead of waiting for it, and the dependency
+//        sees 921 calls for 2000 requests. retry(3) would have sent it every failed request 3 more times.
+    }
+
     public static void main(String[] args) {
 //        onErrorReturn();
 //        onErrorResumeNext();
+//        onErrorResumeNext_bulkhead();
+//        retry_with_backoff();
         retry();
     }
 
@@ -0,0 +1,445 @@
+package com.alephreach.main.operators;
+
+import com.alephreach.main.combining.SortedMerge;
+import io.reactivex.Emitter;
+import io.reactivex.Flowable;
+import io.reactivex.Observable;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.Observer;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.exceptions.Exceptions;
+import io.reactivex.internal.disposables.DisposableHelper;
+import io.reactivex.internal.disposables.SequentialDisposable;
+import io.reactivex.plugins.RxJavaPlugins;
+import io.reactivex.schedulers.Schedulers;
+import org.reactivestreams.Publisher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// sorted() and toSortedList() hold every emission on the heap before emitting the first one.
+// ExternalSort only ever holds runs of runSize items: every full run is sorted on the scheduler and
+// written to a temp file through a Serializer, and once the source completes, the run files are read
+// back and k-way merged with SortedMerge, which only reads a few items ahead per run.
+//
+// At most maxParallelSorts runs are sorted at the same time. When that many are already in flight,
+// the next one is sorted and written on the emitting thread, which also slows the source down, so
+// memory stays around runSize * (maxParallelSorts + 2) items however long the stream is. The last,
+// partial run never touches the disk, and a stream that fits in one run is sorted in memory only.
+//
+// Temp files are deleted when the sorted stream terminates or is disposed. Runs are merged in the
+// order they were cut from the source, so equal items come out in the order they went in, as with
+// sorted().
+
+public final class ExternalSort {
+
+    public static final int MERGE_PREFETCH = 64;
+
+    private ExternalSort() {
+    }
+
+    public static <T extends Comparable<? super T>> ObservableTransformer<T, T> sortedExternal(Serializer<T> serializer,
+                                                                                             int runSize) {
+        return sortedExternal(Comparator.<T>naturalOrder(), serializer, runSize);
+    }
+
+    public static <T> ObservableTransformer<T, T> sortedExternal(Comparator<? super T> comparator,
+                                                                 Serializer<T> serializer, int runSize) {
+        return sortedExternal(comparator, serializer, runSize, Runtime.getRuntime().availableProcessors(),
+                new File(System.getProperty("java.io.tmpdir")), Schedulers.computation());
+    }
+
+    public static <T> ObservableTransformer<T, T> sortedExternal(Comparator<? super T> comparator,
+                                                                 Serializer<T> serializer, int runSize,
+                                                                 int maxParallelSorts, File tempDir,
+                                                                 Scheduler scheduler) {
+        if (comparator == null) {
+            throw new NullPointerException("comparator is null");
+        }
+        if (serializer == null) {
+            throw new NullPointerException("serializer is null");
+        }
+        if (tempDir == null) {
+            throw new NullPointerException("tempDir is null");
+        }
+        if (scheduler == null) {
+            throw new NullPointerException("scheduler is null");
+        }
+        if (runSize <= 0) {
+            throw new IllegalArgumentException("runSize > 0 required but it was " + runSize);
+        }
+        if (maxParallelSorts <= 0) {
+            throw new IllegalArgumentException("maxParallelSorts > 0 required but it was " + maxParallelSorts);
+        }
+        return upstream -> new Observable<T>() {
+            @Override
+            protected void subscribeActual(Observer<? super T> observer) {
+                upstream.subscribe(new SortObserver<>(observer, comparator, serializer, runSize, maxParallelSorts,
+                        tempDir, scheduler));
+            }
+        };
+    }
+
+    // Writes and reads one item. Items are read back in the order they were written, so the format
+    // does not need to be self-describing.
+    public interface Serializer<T> {
+
+        void write(T value, DataOutput out) throws IOException;
+
+        T read(DataInput in) throws IOException;
+    }
+
+    public static Serializer<Integer> integers() {
+        return new Serializer<Integer>() {
+            @Override
+            public void write(Integer value, DataOutput out) throws IOException {
+                out.writeInt(value);
+            }
+
+            @Override
+            public Integer read(DataInput in) throws IOException {
+                return in.readInt();
+            }
+        };
+    }
+
+    public static Serializer<Long> longs() {
+        return new Serializer<Long>() {
+            @Override
+            public void write(Long value, DataOutput out) throws IOException {
+                out.writeLong(value);
+            }
+
+            @Override
+            public Long read(DataInput in) throws IOException {
+                return in.readLong();
+            }
+        };
+    }
+
+    // UTF-8 with a length prefix, writeUTF() would stop at 64 KB
+    public static Serializer<String> strings() {
+        return new Serializer<String>() {
+            @Override
+            public void write(String value, DataOutput out) throws IOException {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            @Override
+            public String read(DataInput in) throws IOException {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        };
+    }
+
+    static final class Run {
+        final File file;
+        final int count;
+        final int index;
+
+        Run(File file, int count, int index) {
+            this.file = file;
+            this.count = count;
+            this.index = index;
+        }
+    }
+
+    static final class RunReader {
+        final DataInputStream in;
+        int remaining;
+
+        RunReader(File file, int count) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 16 * 1024));
+            this.remaining = count;
+        }
+    }
+
+    static final class SortObserver<T> implements Observer<T>, Disposable {
+
+        final Observer<? super T> downstream;
+        final Comparator<? super T> comparator;
+        final Serializer<T> serializer;
+        final int runSize;
+        final int maxParallelSorts;
+        final File tempDir;
+        final Scheduler scheduler;
+
+        final ConcurrentLinkedQueue<Run> runs = new ConcurrentLinkedQueue<>();
+        final AtomicInteger sortsInFlight = new AtomicInteger();
+        // the upstream plus every sort that has not finished yet
+        final AtomicInteger pending = new AtomicInteger(1);
+        // the upstream's share of pending is given back once, by its terminal event, a failed sort or
+        // dispose(), whichever comes first
+        final AtomicBoolean upstreamReleased = new AtomicBoolean();
+        // pending can reach 0 more than once when a spill races the release, only the first one ends
+        final AtomicBoolean terminated = new AtomicBoolean();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final SequentialDisposable merge = new SequentialDisposable();
+
+        Disposable upstream;
+        Object[] chunk;
+        int count;
+        Object[] last;
+        int spills;
+        boolean upstreamDone;
+        volatile boolean cancelled;
+
+        SortObserver(Observer<? super T> downstream, Comparator<? super T> comparator, Serializer<T> serializer,
+                     int runSize, int maxParallelSorts, File tempDir, Scheduler scheduler) {
+            this.downstream = downstream;
+            this.comparator = comparator;
+            this.serializer = serializer;
+            this.runSize = runSize;
+            this.maxParallelSorts = maxParallelSorts;
+            this.tempDir = tempDir;
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            if (DisposableHelper.validate(upstream, d)) {
+                upstream = d;
+                downstream.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            if (upstreamDone || error.get() != null) {
+                return;
+            }
+            Object[] c = chunk;
+            if (c == null) {
+                c = new Object[Math.min(runSize, 1024)];
+                chunk = c;
+            } else if (count == c.length) {
+                // grow up to runSize, so small streams don't pay for a full run
+                c = Arrays.copyOf(c, Math.min(runSize, c.length * 2));
+                chunk = c;
+            }
+            c[count++] = t;
+            if (count == runSize) {
+                Object[] full = c;
+                chunk = null;
+                count = 0;
+                spill(full);
+            }
+        }
+
+        void spill(Object[] items) {
+            if (upstreamReleased.get() || error.get() != null) {
+                return;
+            }
+            int index = spills++;
+            if (sortsInFlight.incrementAndGet() <= maxParallelSorts) {
+                pending.incrementAndGet();
+                // a failed sort or dispose() may have given back the upstream's share meanwhile
+                if (upstreamReleased.get() || error.get() != null) {
+                    sortsInFlight.decrementAndGet();
+                    done();
+                    return;
+                }
+                scheduler.scheduleDirect(() -> {
+                    try {
+                        if (!cancelled && error.get() == null) {
+                            runs.offer(sortAndWrite(items, index));
+                        }
+                    } catch (Throwable e) {
+                        Exceptions.throwIfFatal(e);
+                        // stop the source instead of reading the rest of it for nothing
+                        if (error.compareAndSet(null, e)) {
+                            upstream.dispose();
+                            releaseUpstream();
+                        }
+                    } finally {
+                        sortsInFlight.decrementAndGet();
+                        done();
+                    }
+                });
+                return;
+            }
+            sortsInFlight.decrementAndGet();
+            // every sort slot is busy, so this thread does the work and the source waits for it
+            try {
+                runs.offer(sortAndWrite(items, index));
+            } catch (Throwable e) {
+                Exceptions.throwIfFatal(e);
+                upstream.dispose();
+                onError(e);
+                return;
+            }
+            // the upstream's share may have been given back meanwhile, then the files are already deleted
+            if (cancelled || error.get() != null) {
+                deleteRuns();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        Run sortAndWrite(Object[] items, int index) throws IOException {
+            Arrays.sort(items, (Comparator<Object>) comparator);
+            File file = File.createTempFile("rx-sort-", ".run", tempDir);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024))) {
+                for (Object item : items) {
+                    serializer.write((T) item, out);
+                }
+            } catch (IOException | RuntimeException e) {
+                file.delete();
+                throw e;
+            }
+            return new Run(file, items.length, index);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            if (upstreamDone) {
+                RxJavaPlugins.onError(e);
+                return;
+            }
+            upstreamDone = true;
+            if (error.compareAndSet(null, e)) {
+                releaseUpstream();
+            } else {
+                RxJavaPlugins.onError(e);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onComplete() {
+            if (upstreamDone) {
+                return;
+            }
+            upstreamDone = true;
+            if (count != 0) {
+                Object[] rest = Arrays.copyOf(chunk, count);
+                Arrays.sort(rest, (Comparator<Object>) comparator);
+                last = rest;
+            }
+            chunk = null;
+            releaseUpstream();
+        }
+
+        void releaseUpstream() {
+            if (upstreamReleased.compareAndSet(false, true)) {
+                done();
+            }
+        }
+
+        // runs on whichever thread finishes last, the upstream or a sort
+        void done() {
+            if (pending.decrementAndGet() != 0 || !terminated.compareAndSet(false, true)) {
+                return;
+            }
+            Throwable ex = error.get();
+            if (cancelled || ex != null) {
+                deleteRuns();
+                if (ex != null && !cancelled) {
+                    downstream.onError(ex);
+                }
+                return;
+            }
+            startMerge();
+        }
+
+        @SuppressWarnings("unchecked")
+        void startMerge() {
+            List<Run> ordered = new ArrayList<>(runs);
+            ordered.sort(Comparator.comparingInt(run -> run.index));
+            List<Publisher<T>> sources = new ArrayList<>();
+            for (Run run : ordered) {
+                sources.add(read(run));
+            }
+            if (last != null) {
+                sources.add(Flowable.fromArray((T[]) last));
+                last = null;
+            }
+
+            Observable<T> merged = sources.size() == 1
+                    ? Flowable.fromPublisher(sources.get(0)).toObservable()
+                    : SortedMerge.mergeSorted(comparator, MERGE_PREFETCH, sources).toObservable();
+
+            merged.doFinally(this::deleteRuns)
+                    .subscribe(new Observer<T>() {
+                        @Override
+                        public void onSubscribe(Disposable d) {
+                            merge.replace(d);
+                        }
+
+                        @Override
+                        public void onNext(T t) {
+                            downstream.onNext(t);
+                        }
+
+                        @Override
+                        public void onError(Throwable e) {
+                            downstream.onError(e);
+                        }
+
+                        @Override
+                        public void onComplete() {
+                            downstream.onComplete();
+                        }
+                    });
+        }
+
+        Flowable<T> read(Run run) {
+            return Flowable.generate(() -> new RunReader(run.file, run.count),
+                    (RunReader reader, Emitter<T> emitter) -> {
+                        if (reader.remaining == 0) {
+                            emitter.onComplete();
+                        } else {
+                            reader.remaining--;
+                            emitter.onNext(serializer.read(reader.in));
+                        }
+                        return reader;
+                    },
+                    reader -> reader.in.close());
+        }
+
+        void deleteRuns() {
+            Run run;
+            while ((run = runs.poll()) != null) {
+                run.file.delete();
+            }
+        }
+
+        @Override
+        public void dispose() {
+            if (!cancelled) {
+                cancelled = true;
+                upstream.dispose();
+                merge.dispose();
+                // the upstream won't terminate now, so give back its share: the last sort to finish,
+                // or this, deletes the files. Once the merge started it owns them instead.
+                releaseUpstream();
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.alephreach.main.operators;
+
+// A HyperLogLog++ sketch for counting distinct items. Every item is hashed to 64 bits: the top p bits
+// pick one of m = 2^p registers, and the register keeps the longest run of leading zeros seen in the
+// rest of the hash. The more distinct items, the longer the longest run, so the registers together
+// estimate the count with a relative error of about 1.04 / sqrt(m), however many items there are.
+//
+// As in HyperLogLog++, the hash is 64 bits so there is no correction needed for large counts, and
+// small counts are kept in a sparse set at precision 25 until that set would take as much memory as
+// the registers, which makes them close to exact. Instead of HyperLogLog++'s empirical bias tables the
+// estimate uses Ertl's improved estimator, which has no bias to correct for at any count.
+//
+// Sketches of the same precision are mergeable: merging two gives the sketch of both streams, so
+// windows or parallel rails can each keep their own. Not thread safe.
+
+public final class HyperLogLog {
+
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 18;
+    // 4 KB of registers, about 1.6% error
+    public static final int DEFAULT_PRECISION = 12;
+
+    private static final int SPARSE_PRECISION = 25;
+    private static final int MIN_SPARSE_REGISTERS = 256;
+
+    private final int p;
+    private final int m;
+
+    // one byte per register once dense, null while sparse
+    private byte[] registers;
+
+    // open addressing set of index << 6 | rank at SPARSE_PRECISION, 0 is an empty slot
+    private int[] sparse;
+    private int sparseSize;
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    public HyperLogLog(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException(MIN_PRECISION + " <= precision <= " + MAX_PRECISION
+                    + " required but it was " + precision);
+        }
+        this.p = precision;
+        this.m = 1 << precision;
+        if (m >= MIN_SPARSE_REGISTERS) {
+            this.sparse = new int[16];
+        } else {
+            this.registers = new byte[m];
+        }
+    }
+
+    // the smallest precision whose relative error is at most the given fraction, e.g. 0.01 for 1%
+    public static HyperLogLog withRelativeError(double epsilon) {
+        if (epsilon <= 0 || epsilon >= 1) {
+            throw new IllegalArgumentException("0 < epsilon < 1 required but it was " + epsilon);
+        }
+        double registers = Math.pow(1.04 / epsilon, 2);
+        int precision = 64 - Long.numberOfLeadingZeros((long) Math.ceil(registers) - 1);
+        return new HyperLogLog(Math.min(MAX_PRECISION, Math.max(MIN_PRECISION, precision)));
+    }
+
+    // Longs and strings are hashed from their value, anything else from its 32-bit hashCode(). With
+    // more than some 100 million distinct items those collide often enough to count low, so use
+    // addLong() with a 64-bit key for counts that large.
+    public void add(Object item) {
+        long hash;
+        if (item instanceof Long) {
+            hash = mix((Long) item);
+        } else if (item instanceof CharSequence) {
+            hash = hash((CharSequence) item);
+        } else {
+            hash = mix(item.hashCode());
+        }
+        addHash(hash);
+    }
+
+    public void addLong(long value) {
+        addHash(mix(value));
+    }
+
+    public HyperLogLog merge(HyperLogLog other) {
+        if (other.p != p) {
+            throw new IllegalArgumentException("Can't merge a sketch of precision " + other.p
+                    + " into one of precision " + p);
+        }
+        if (other.registers == null) {
+            int[] entries = other.sparse;
+            for (int entry : entries) {
+                if (entry != 0) {
+                    addSparse(entry >>> 6, entry & 63);
+                }
+            }
+            return this;
+        }
+        if (registers == null) {
+            toDense();
+        }
+        byte[] theirs = other.registers;
+        for (int i = 0; i < m; i++) {
+            if (theirs[i] > registers[i]) {
+                registers[i] = theirs[i];
+            }
+        }
+        return this;
+    }
+
+    public long estimate() {
+        if (registers == null) {
+            int[] histogram = new int[64 - SPARSE_PRECISION + 2];
+            histogram[0] = (1 << SPARSE_PRECISION) - sparseSize;
+            for (int entry : sparse) {
+                if (entry != 0) {
+                    histogram[entry & 63]++;
+                }
+            }
+            return Math.round(estimate(histogram, 1 << SPARSE_PRECISION));
+        }
+        int[] histogram = new int[64 - p + 2];
+        for (byte register : registers) {
+            histogram[register]++;
+        }
+        return Math.round(estimate(histogram, m));
+    }
+
+    public int precision() {
+        return p;
+    }
+
+    // the standard error of estimate() as a fraction of the count, once past the sparse range
+    public double relativeError() {
+        return 1.04 / Math.sqrt(m);
+    }
+
+    public boolean isSparse() {
+        return registers == null;
+    }
+
+    // roughly how many bytes the sketch holds on to
+    public long footprintBytes() {
+        return 48 + (registers != null ? 16 + registers.length : 16 + 4L * sparse.length);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HyperLogLog[estimate=%d, precision=%d, error=%.2f%%, %s, bytes=%d]",
+                estimate(), p, 100 * relativeError(), isSparse() ? "sparse" : "dense", footprintBytes());
+    }
+
+    private void addHash(long hash) {
+        if (registers == null) {
+            int index = (int) (hash >>> (64 - SPARSE_PRECISION));
+            int rank = Long.numberOfLeadingZeros(hash << SPARSE_PRECISION | 1L << (SPARSE_PRECISION - 1)) + 1;
+            addSparse(index, rank);
+        } else {
+            int index = (int) (hash >>> (64 - p));
+            int rank = Long.numberOfLeadingZeros(hash << p | 1L << (p - 1)) + 1;
+            if (rank > registers[index]) {
+                registers[index] = (byte) rank;
+            }
+        }
+    }
+
+    private void addSparse(int index, int rank) {
+        if (registers != null) {
+            addDense(index, rank);
+            return;
+        }
+        int[] table = sparse;
+        int mask = table.length - 1;
+        for (int slot = (index * 0x9e3779b9) >>> 7 & mask; ; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (entry == 0) {
+                table[slot] = index << 6 | rank;
+                if (++sparseSize > m / 8) {
+                    toDense();
+                } else if (sparseSize > table.length / 2) {
+                    resizeSparse(table.length * 2);
+                }
+                return;
+            }
+            if (entry >>> 6 == index) {
+                if (rank > (entry & 63)) {
+                    table[slot] = index << 6 | rank;
+                }
+                return;
+            }
+        }
+    }
+
+    // folds a sparse register into the dense one it falls into
+    private void addDense(int sparseIndex, int sparseRank) {
+        int extra = SPARSE_PRECISION - p;
+        int index = sparseIndex >>> extra;
+        int low = sparseIndex & ((1 << extra) - 1);
+        int rank = low != 0 ? Integer.numberOfLeadingZeros(low) - (32 - extra) + 1 : extra + sparseRank;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    private void resizeSparse(int capacity) {
+        int[] old = sparse;
+        sparse = new int[capacity];
+        sparseSize = 0;
+        for (int entry : old) {
+            if (entry != 0) {
+                addSparse(entry >>> 6, entry & 63);
+            }
+        }
+    }
+
+    private void toDense() {
+        int[] old = sparse;
+        registers = new byte[m];
+        sparse = null;
+        sparseSize = 0;
+        for (int entry : old) {
+            if (entry != 0) {
+                addDense(entry >>> 6, entry & 63);
+            }
+        }
+    }
+
+    // Ertl, "New cardinality estimation algorithms for HyperLogLog sketches" (2017), where histogram[k]
+    // is the number of registers holding k
+    static double estimate(int[] histogram, int registers) {
+        int q = histogram.length - 2;
+        double z = registers * tau(1 - (double) histogram[q + 1] / registers);
+        for (int k = q; k >= 1; k--) {
+            z = 0.5 * (z + histogram[k]);
+        }
+        z += registers * sigma((double) histogram[0] / registers);
+        return registers / (2 * Math.log(2)) * registers / z;
+    }
+
+    private static double sigma(double x) {
+        if (x == 1) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double y = 1;
+        double z = x;
+        for (;;) {
+            x *= x;
+            double previous = z;
+            z += x * y;
+            y += y;
+            if (z == previous) {
+                return z;
+            }
+        }
+    }
+
+    private static double tau(double x) {
+        if (x == 0 || x == 1) {
+            return 0;
+        }
+        double y = 1;
+        double z = 1 - x;
+        for (;;) {
+            x = Math.sqrt(x);
+            double previous = z;
+            y *= 0.5;
+            z -= (1 - x) * (1 - x) * y;
+            if (z == previous) {
+                return z / 3;
+            }
+        }
+    }
+
+    // the murmur3 finalizer, offset so that 0 does not hash to 0
+    static long mix(long value) {
+        long h = value + 0x9e3779b97f4a7c15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // 64-bit FNV-1a over the chars, then mixed
+    static long hash(CharSequence chars) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < chars.length(); i++) {
+            h = (h ^ chars.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+}
@@ -0,0 +1,108 @@
+package com.alephreach.main.operators;
+
+import io.reactivex.ObservableTransformer;
+
+import java.io.IOException;
+import java.io.Writer;
+
+// reduce("", (total, next) -> total + "," + next) builds a brand new String for every emission and copies
+// everything accumulated so far into it, so joining n items is O(n^2) in time and garbage. The
+// operators here append every emission to one StringBuilder instead, which only grows (and copies)
+// log(n) times, or not at all when a capacity hint is given.
+//
+// For output too big to hold in memory, joiningTo() hands the text to a Writer every time the buffer
+// reaches flushThreshold characters, so only that much is ever buffered. The Writer is flushed on
+// completion but never closed, it belongs to the caller.
+
+public final class Joining {
+
+    public static final int DEFAULT_FLUSH_THRESHOLD = 8192;
+
+    private Joining() {
+    }
+
+    public static <T> ObservableTransformer<T, String> joining(CharSequence delimiter) {
+        return joining(delimiter, "", "", 16);
+    }
+
+    // capacityHint is the expected length of the result in characters
+    public static <T> ObservableTransformer<T, String> joining(CharSequence delimiter, CharSequence prefix,
+                                                               CharSequence suffix, int capacityHint) {
+        if (delimiter == null || prefix == null || suffix == null) {
+            throw new NullPointerException("delimiter, prefix and suffix must not be null");
+        }
+        if (capacityHint < 0) {
+            throw new IllegalArgumentException("capacityHint >= 0 required but it was " + capacityHint);
+        }
+        return upstream -> upstream
+                .collect(() -> new Joiner(delimiter, prefix, capacityHint), Joiner::add)
+                .map(joiner -> joiner.builder.append(suffix).toString())
+                .toObservable();
+    }
+
+    public static <T> ObservableTransformer<T, Long> joiningTo(Writer writer, CharSequence delimiter) {
+        return joiningTo(writer, delimiter, DEFAULT_FLUSH_THRESHOLD);
+    }
+
+    // emits the number of characters written once everything has been flushed
+    public static <T> ObservableTransformer<T, Long> joiningTo(Writer writer, CharSequence delimiter,
+                                                               int flushThreshold) {
+        if (writer == null) {
+            throw new NullPointerException("writer is null");
+        }
+        if (delimiter == null) {
+            throw new NullPointerException("delimiter is null");
+        }
+        if (flushThreshold <= 0) {
+            throw new IllegalArgumentException("flushThreshold > 0 required but it was " + flushThreshold);
+        }
+        return upstream -> upstream
+                .collect(() -> new Joiner(delimiter, "", flushThreshold + 64), (Joiner joiner, T t) -> {
+                    joiner.add(t);
+                    if (joiner.builder.length() >= flushThreshold) {
+                        joiner.flushTo(writer);
+                    }
+                })
+                .map(joiner -> {
+                    joiner.flushTo(writer);
+                    writer.flush();
+                    return joiner.written;
+                })
+                .toObservable();
+    }
+
+    static final class Joiner {
+
+        final CharSequence delimiter;
+        final StringBuilder builder;
+        boolean first = true;
+        long written;
+        char[] chunk;
+
+        Joiner(CharSequence delimiter, CharSequence prefix, int capacity) {
+            this.delimiter = delimiter;
+            this.builder = new StringBuilder(Math.max(capacity, prefix.length())).append(prefix);
+        }
+
+        void add(Object value) {
+            if (first) {
+                first = false;
+            } else {
+                builder.append(delimiter);
+            }
+            builder.append(value);
+        }
+
+        void flushTo(Writer writer) throws IOException {
+            int length = builder.length();
+            if (chunk == null || chunk.length < length) {
+                chunk = new char[length];
+            }
+            // Writer.append() would turn the builder into a String first
+            builder.getChars(0, length, chunk, 0);
+            writer.write(chunk, 0, length);
+            written += length;
+            builder.setLength(0);
+        }
+    }
+}
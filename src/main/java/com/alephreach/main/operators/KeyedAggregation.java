@@ -0,0 +1,204 @@
+package com.alephreach.main.operators;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.Observer;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.exceptions.Exceptions;
+import io.reactivex.internal.disposables.DisposableHelper;
+import io.reactivex.internal.disposables.EmptyDisposable;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+// groupBy() followed by toList() per group, or toMultimap(), keeps every element just to get a count
+// or a sum out of it at the end. When the key is an int or a long and the result is a number, all we
+// need per key is one long accumulator. These operators fold each element straight into a
+// LongLongHashMap, so memory grows with the number of keys and nothing is allocated per element.
+//
+// count, sum, min and max are all folds with a different starting value. The map is emitted as a
+// snapshot when the source completes, or every period when a tick is given (the snapshots are
+// cumulative and the last one still comes on completion).
+
+public final class KeyedAggregation {
+
+    public static final LongLongHashMap.LongFold<Object> COUNT = (acc, value) -> acc + 1;
+
+    private KeyedAggregation() {
+    }
+
+    public static <T> ObservableTransformer<T, LongLongHashMap> countByKey(ToLongFunction<? super T> keySelector) {
+        return foldByKey(keySelector, 0, COUNT);
+    }
+
+    public static <T> ObservableTransformer<T, LongLongHashMap> sumByKey(ToLongFunction<? super T> keySelector,
+                                                                         ToLongFunction<? super T> valueSelector) {
+        return foldByKey(keySelector, 0, sum(valueSelector));
+    }
+
+    public static <T> ObservableTransformer<T, LongLongHashMap> minByKey(ToLongFunction<? super T> keySelector,
+                                                                         ToLongFunction<? super T> valueSelector) {
+        return foldByKey(keySelector, Long.MAX_VALUE, min(valueSelector));
+    }
+
+    public static <T> ObservableTransformer<T, LongLongHashMap> maxByKey(ToLongFunction<? super T> keySelector,
+                                                                         ToLongFunction<? super T> valueSelector) {
+        return foldByKey(keySelector, Long.MIN_VALUE, max(valueSelector));
+    }
+
+    public static <T> ObservableTransformer<T, LongLongHashMap> foldByKey(ToLongFunction<? super T> keySelector,
+                                                                          long initial,
+                                                                          LongLongHashMap.LongFold<? super T> fold) {
+        return foldByKey(keySelector, initial, fold, 0, TimeUnit.MILLISECONDS, null);
+    }
+
+    // emits a snapshot every period on the scheduler, as well as on completion
+    public static <T> ObservableTransformer<T, LongLongHashMap> foldByKey(ToLongFunction<? super T> keySelector,
+                                                                          long initial,
+                                                                          LongLongHashMap.LongFold<? super T> fold,
+                                                                          long period, TimeUnit unit,
+                                                                          Scheduler scheduler) {
+        if (keySelector == null) {
+            throw new NullPointerException("keySelector is null");
+        }
+        if (fold == null) {
+            throw new NullPointerException("fold is null");
+        }
+        if (scheduler != null && period <= 0) {
+            throw new IllegalArgumentException("period > 0 required but it was " + period);
+        }
+        return upstream -> new Observable<LongLongHashMap>() {
+            @Override
+            protected void subscribeActual(Observer<? super LongLongHashMap> observer) {
+                upstream.subscribe(new AggregateObserver<>(observer, keySelector, initial, fold, period, unit, scheduler));
+            }
+        };
+    }
+
+    public static <T> LongLongHashMap.LongFold<T> sum(ToLongFunction<? super T> valueSelector) {
+        return (acc, value) -> acc + valueSelector.applyAsLong(value);
+    }
+
+    public static <T> LongLongHashMap.LongFold<T> min(ToLongFunction<? super T> valueSelector) {
+        return (acc, value) -> Math.min(acc, valueSelector.applyAsLong(value));
+    }
+
+    public static <T> LongLongHashMap.LongFold<T> max(ToLongFunction<? super T> valueSelector) {
+        return (acc, value) -> Math.max(acc, valueSelector.applyAsLong(value));
+    }
+
+    static final class AggregateObserver<T> implements Observer<T>, Disposable, Runnable {
+
+        final Observer<? super LongLongHashMap> downstream;
+        final ToLongFunction<? super T> keySelector;
+        final long initial;
+        final LongLongHashMap.LongFold<? super T> fold;
+        final long period;
+        final TimeUnit unit;
+        final Scheduler scheduler;
+
+        // guarded by this once the periodic tick runs
+        final LongLongHashMap map = new LongLongHashMap();
+
+        Disposable upstream;
+        Disposable ticker = EmptyDisposable.INSTANCE;
+        boolean done;
+
+        AggregateObserver(Observer<? super LongLongHashMap> downstream, ToLongFunction<? super T> keySelector,
+                          long initial, LongLongHashMap.LongFold<? super T> fold,
+                          long period, TimeUnit unit, Scheduler scheduler) {
+            this.downstream = downstream;
+            this.keySelector = keySelector;
+            this.initial = initial;
+            this.fold = fold;
+            this.period = period;
+            this.unit = unit;
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            if (DisposableHelper.validate(upstream, d)) {
+                upstream = d;
+                downstream.onSubscribe(this);
+                if (scheduler != null) {
+                    ticker = scheduler.schedulePeriodicallyDirect(this, period, period, unit);
+                }
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            // without a tick nobody else reads the map before completion, so skip the lock
+            if (scheduler == null) {
+                accumulate(t);
+                return;
+            }
+            synchronized (this) {
+                accumulate(t);
+            }
+        }
+
+        void accumulate(T t) {
+            if (done) {
+                return;
+            }
+            try {
+                map.fold(keySelector.applyAsLong(t), initial, fold, t);
+            } catch (Throwable e) {
+                Exceptions.throwIfFatal(e);
+                upstream.dispose();
+                ticker.dispose();
+                done = true;
+                downstream.onError(e);
+            }
+        }
+
+        // the periodic snapshot
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (!done) {
+                    downstream.onNext(map.copy());
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            ticker.dispose();
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                downstream.onError(e);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            ticker.dispose();
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                downstream.onNext(map);
+                downstream.onComplete();
+            }
+        }
+
+        @Override
+        public void dispose() {
+            ticker.dispose();
+            upstream.dispose();
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return upstream.isDisposed();
+        }
+    }
+}
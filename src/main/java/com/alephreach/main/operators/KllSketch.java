@@ -0,0 +1,283 @@
+package com.alephreach.main.operators;
+
+import java.util.Arrays;
+
+// A KLL quantile sketch (Karnin, Lang, Liberty). Values go into level 0. When a level fills up it is
+// sorted and every other item, starting at a random offset, moves one level up with twice the weight;
+// the rest are dropped. Level capacities shrink by 2/3 going down from the top level, so the sketch
+// keeps roughly 3k values no matter how long the stream is, and the rank error is about
+// 2.296 / k^0.9723, 1.3% for the default k of 200, see rankError().
+//
+// Sketches are mergeable: merging two and querying the result gives the same guarantees as one
+// sketch over both streams, so windows or parallel rails can each keep their own. Not thread safe.
+
+public final class KllSketch {
+
+    public static final int DEFAULT_K = 200;
+
+    private static final double DECAY = 2.0 / 3.0;
+    private static final int MIN_LEVEL_CAPACITY = 8;
+
+    private final int k;
+    private double[][] levels = new double[1][];
+    private int[] sizes = new int[1];
+    private int numLevels = 1;
+
+    private long count;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+    private long seed = System.nanoTime() | 1;
+
+    public KllSketch() {
+        this(DEFAULT_K);
+    }
+
+    public KllSketch(int k) {
+        if (k < MIN_LEVEL_CAPACITY) {
+            throw new IllegalArgumentException("k >= " + MIN_LEVEL_CAPACITY + " required but it was " + k);
+        }
+        this.k = k;
+        this.levels[0] = new double[k];
+    }
+
+    // the smallest k whose rank error is at most the given fraction, e.g. 0.01 for 1%
+    public static KllSketch withRankError(double epsilon) {
+        if (epsilon <= 0 || epsilon >= 1) {
+            throw new IllegalArgumentException("0 < epsilon < 1 required but it was " + epsilon);
+        }
+        int k = (int) Math.ceil(Math.pow(2.296 / epsilon, 1 / 0.9723));
+        return new KllSketch(Math.max(MIN_LEVEL_CAPACITY, k));
+    }
+
+    public void add(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (count == 0) {
+            min = value;
+            max = value;
+        } else {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        count++;
+        append(0, value);
+        if (sizes[0] >= capacity(0)) {
+            compress();
+        }
+    }
+
+    public KllSketch merge(KllSketch other) {
+        if (other.count == 0) {
+            return this;
+        }
+        for (int h = 0; h < other.numLevels; h++) {
+            for (int i = 0; i < other.sizes[h]; i++) {
+                append(h, other.levels[h][i]);
+            }
+        }
+        if (count == 0) {
+            min = other.min;
+            max = other.max;
+        } else {
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+        count += other.count;
+        compress();
+        return this;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public double min() {
+        return min;
+    }
+
+    public double max() {
+        return max;
+    }
+
+    public int k() {
+        return k;
+    }
+
+    // the expected fraction by which a rank can be off
+    public double rankError() {
+        return 2.296 / Math.pow(k, 0.9723);
+    }
+
+    public int retainedItems() {
+        int n = 0;
+        for (int h = 0; h < numLevels; h++) {
+            n += sizes[h];
+        }
+        return n;
+    }
+
+    // roughly how many bytes the sketch holds on to
+    public long footprintBytes() {
+        long bytes = 64;
+        for (int h = 0; h < numLevels; h++) {
+            bytes += 16 + 8L * levels[h].length;
+        }
+        return bytes;
+    }
+
+    // The value at the given rank, 0.5 for the median. NaN for an empty sketch.
+    public double quantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("0 <= q <= 1 required but it was " + q);
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (q == 0) {
+            return min;
+        }
+        if (q == 1) {
+            return max;
+        }
+        Sorted sorted = sorted();
+        double target = q * count;
+        long cumulative = 0;
+        for (int i = 0; i < sorted.values.length; i++) {
+            cumulative += sorted.weights[i];
+            if (cumulative >= target) {
+                return sorted.values[i];
+            }
+        }
+        return max;
+    }
+
+    // the fraction of values that are smaller than the given one
+    public double rank(double value) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long below = 0;
+        for (int h = 0; h < numLevels; h++) {
+            for (int i = 0; i < sizes[h]; i++) {
+                if (levels[h][i] < value) {
+                    below += 1L << h;
+                }
+            }
+        }
+        return (double) below / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("KllSketch[count=%d, min=%s, p50=%s, p95=%s, p99=%s, max=%s, retained=%d]",
+                count, min, quantile(0.5), quantile(0.95), quantile(0.99), max, retainedItems());
+    }
+
+    private int capacity(int level) {
+        int depth = numLevels - 1 - level;
+        return Math.max(MIN_LEVEL_CAPACITY, (int) Math.ceil(k * Math.pow(DECAY, depth)));
+    }
+
+    private void append(int level, double value) {
+        while (level >= numLevels) {
+            addLevel();
+        }
+        double[] items = levels[level];
+        if (sizes[level] == items.length) {
+            items = Arrays.copyOf(items, Math.max(MIN_LEVEL_CAPACITY, items.length * 2));
+            levels[level] = items;
+        }
+        items[sizes[level]++] = value;
+    }
+
+    private void addLevel() {
+        levels = Arrays.copyOf(levels, numLevels + 1);
+        sizes = Arrays.copyOf(sizes, numLevels + 1);
+        levels[numLevels] = new double[MIN_LEVEL_CAPACITY];
+        numLevels++;
+    }
+
+    // compacts the lowest full level until every level is within its capacity
+    private void compress() {
+        for (int h = 0; h < numLevels; h++) {
+            if (sizes[h] >= capacity(h)) {
+                compact(h);
+                // adding a level changes every capacity below it, so start over
+                h = -1;
+            }
+        }
+    }
+
+    private void compact(int level) {
+        double[] items = levels[level];
+        int size = sizes[level];
+        Arrays.sort(items, 0, size);
+
+        // with an odd count the largest value stays behind at this level
+        int pairs = size & ~1;
+        int offset = nextBit();
+        for (int i = offset; i < pairs; i += 2) {
+            append(level + 1, items[i]);
+        }
+        items = levels[level];
+        if ((size & 1) != 0) {
+            items[0] = items[size - 1];
+            sizes[level] = 1;
+        } else {
+            sizes[level] = 0;
+        }
+    }
+
+    private int nextBit() {
+        long x = seed;
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        seed = x;
+        return (int) (x >>> 63);
+    }
+
+    // every retained value with its weight, ordered by value
+    private Sorted sorted() {
+        double[] values = new double[0];
+        long[] weights = new long[0];
+        for (int h = 0; h < numLevels; h++) {
+            int size = sizes[h];
+            if (size == 0) {
+                continue;
+            }
+            double[] level = Arrays.copyOf(levels[h], size);
+            Arrays.sort(level);
+            long weight = 1L << h;
+
+            double[] mergedValues = new double[values.length + size];
+            long[] mergedWeights = new long[values.length + size];
+            int i = 0;
+            int j = 0;
+            int o = 0;
+            while (i < values.length || j < size) {
+                if (j == size || (i < values.length && values[i] <= level[j])) {
+                    mergedValues[o] = values[i];
+                    mergedWeights[o++] = weights[i++];
+                } else {
+                    mergedValues[o] = level[j++];
+                    mergedWeights[o++] = weight;
+                }
+            }
+            values = mergedValues;
+            weights = mergedWeights;
+        }
+        return new Sorted(values, weights);
+    }
+
+    static final class Sorted {
+        final double[] values;
+        final long[] weights;
+
+        Sorted(double[] values, long[] weights) {
+            this.values = values;
+            this.weights = weights;
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.alephreach.main.operators;
+
+import com.alephreach.main.metrics.LatencyHistogram;
+import io.reactivex.Observable;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.Observer;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.internal.disposables.DisposableHelper;
+import io.reactivex.internal.queue.SpscLinkedArrayQueue;
+import io.reactivex.schedulers.Schedulers;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// doOnNext() with a println shows what goes through a chain, not where the time goes. A LatencyProbe
+// times a segment of a chain: time(name, segment) stamps every sampleEvery-th element on its way
+// into the segment and records, when the element with that position comes out, how long it took
+// into a LatencyHistogram for the name. It also counts the elements coming out, for the throughput.
+//
+// Elements are matched by position, so the segment has to emit exactly one element per element in,
+// in the same order: map(), observeOn(), concatMap() to a single value and so on. Across an
+// observeOn() the time includes the wait in its queue. Put filter() or flatMap() outside the segment.
+//
+// The probes hide the operators on either side of them from each other, so nothing fuses across the
+// segment's edges. An element that is not sampled costs a counter decrement on the way in and one on
+// the way out, the rest of the overhead is two System.nanoTime() calls, a stamp and a histogram
+// update per sampleEvery elements. After setEnabled(false), segments subscribed to from then on run
+// without the probes at all, and those already running stop stamping and keep only the counters.
+//
+// metrics() emits the state of every segment so far, metrics(period, unit) every period emits what
+// happened since the period before and starts every segment over.
+
+public final class LatencyProbe {
+
+    private final int sampleEvery;
+    private volatile boolean enabled = true;
+
+    // guarded by itself, only touched when segments are assembled and when metrics are taken
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+
+    private LatencyProbe(int sampleEvery) {
+        this.sampleEvery = sampleEvery;
+    }
+
+    // samples one element in every sampleEvery, 1 times every element
+    public static LatencyProbe sampled(int sampleEvery) {
+        if (sampleEvery <= 0) {
+            throw new IllegalArgumentException("sampleEvery > 0 required but it was " + sampleEvery);
+        }
+        return new LatencyProbe(sampleEvery);
+    }
+
+    // Segments given the same name share their histogram and element count.
+    public <T, R> ObservableTransformer<T, R> time(String name, ObservableTransformer<T, R> segment) {
+        if (name == null) {
+            throw new NullPointerException("name is null");
+        }
+        if (segment == null) {
+            throw new NullPointerException("segment is null");
+        }
+        Stage stage = stage(name);
+        return upstream -> Observable.defer(() -> {
+            if (!enabled) {
+                return segment.apply(upstream);
+            }
+            Stamps stamps = new Stamps();
+            Observable<T> marked = upstream.lift(downstream -> new MarkObserver<>(downstream, stamps));
+            return Observable.wrap(segment.apply(marked))
+                    .lift(downstream -> new StageObserver<>(downstream, stamps, stage));
+        });
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // one Metric per segment, covering everything since it was assembled or last started over
+    public Observable<Metric> metrics() {
+        return Observable.fromCallable(() -> {
+            List<Metric> metrics = new ArrayList<>();
+            long now = System.nanoTime();
+            for (Stage stage : stages()) {
+                metrics.add(new Metric(stage.name, stage.elements.sum(), now - stage.since,
+                        stage.latency.snapshot()));
+            }
+            return metrics;
+        }).flatMapIterable(metrics -> metrics);
+    }
+
+    // every period, one Metric per segment covering that period
+    public Observable<Metric> metrics(long period, TimeUnit unit) {
+        if (unit == null) {
+            throw new NullPointerException("unit is null");
+        }
+        return Observable.interval(period, unit, Schedulers.computation())
+                .concatMapIterable(tick -> {
+                    List<Metric> metrics = new ArrayList<>();
+                    for (Stage stage : stages()) {
+                        metrics.add(stage.takeInterval());
+                    }
+                    return metrics;
+                });
+    }
+
+    // starts every segment over
+    public void reset() {
+        for (Stage stage : stages()) {
+            stage.takeInterval();
+        }
+    }
+
+    private Stage stage(String name) {
+        synchronized (stages) {
+            return stages.computeIfAbsent(name, Stage::new);
+        }
+    }
+
+    private List<Stage> stages() {
+        synchronized (stages) {
+            return new ArrayList<>(stages.values());
+        }
+    }
+
+    static final class Stage {
+
+        final String name;
+        final LatencyHistogram latency;
+        final LongAdder elements = new LongAdder();
+        volatile long since = System.nanoTime();
+
+        Stage(String name) {
+            this.name = name;
+            this.latency = new LatencyHistogram(name);
+        }
+
+        // counts recorded while the interval is taken may land in either interval
+        synchronized Metric takeInterval() {
+            long now = System.nanoTime();
+            Metric metric = new Metric(name, elements.sumThenReset(), now - since, latency.snapshot());
+            latency.reset();
+            since = now;
+            return metric;
+        }
+    }
+
+    // The stamps of the sampled elements in a segment, from the thread going in to the thread coming
+    // out. The queue grows with the number of samples inside the segment, so an element that waits
+    // behind a long backlog is stamped like any other and the tail of the histogram is not cut off.
+    static final class Stamps {
+
+        static final long NONE = Long.MIN_VALUE;
+
+        final SpscLinkedArrayQueue<long[]> queue = new SpscLinkedArrayQueue<>(32);
+
+        void offer(long position, long time) {
+            queue.offer(new long[] { position, time });
+        }
+
+        // the time the element at the position went in, or NONE if it was not stamped. Stamps of
+        // earlier positions are dropped on the way.
+        long poll(long position) {
+            long[] stamp;
+            while ((stamp = queue.peek()) != null) {
+                if (stamp[0] > position) {
+                    break;
+                }
+                queue.poll();
+                if (stamp[0] == position) {
+                    return stamp[1];
+                }
+            }
+            return NONE;
+        }
+    }
+
+    final class MarkObserver<T> implements Observer<T>, Disposable {
+
+        final Observer<? super T> downstream;
+        final Stamps stamps;
+        Disposable upstream;
+        int countdown = sampleEvery;
+        long position;
+
+        MarkObserver(Observer<? super T> downstream, Stamps stamps) {
+            this.downstream = downstream;
+            this.stamps = stamps;
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            if (DisposableHelper.validate(upstream, d)) {
+                upstream = d;
+                downstream.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            if (--countdown == 0) {
+                countdown = sampleEvery;
+                position += sampleEvery;
+                if (enabled) {
+                    stamps.offer(position, System.nanoTime());
+                }
+            }
+            downstream.onNext(t);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            downstream.onError(e);
+        }
+
+        @Override
+        public void onComplete() {
+            downstream.onComplete();
+        }
+
+        @Override
+        public void dispose() {
+            upstream.dispose();
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return upstream.isDisposed();
+        }
+    }
+
+    final class StageObserver<R> implements Observer<R>, Disposable {
+
+        final Observer<? super R> downstream;
+        final Stamps stamps;
+        final Stage stage;
+        Disposable upstream;
+        int countdown = sampleEvery;
+        long position;
+
+        StageObserver(Observer<? super R> downstream, Stamps stamps, Stage stage) {
+            this.downstream = downstream;
+            this.stamps = stamps;
+            this.stage = stage;
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            if (DisposableHelper.validate(upstream, d)) {
+                upstream = d;
+                downstream.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(R r) {
+            if (--countdown == 0) {
+                countdown = sampleEvery;
+                position += sampleEvery;
+                stage.elements.add(sampleEvery);
+                if (enabled) {
+                    long start = stamps.poll(position);
+                    if (start != Stamps.NONE) {
+                        stage.latency.record(System.nanoTime() - start);
+                    }
+                }
+            }
+            downstream.onNext(r);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            stage.elements.add(sampleEvery - countdown);
+            downstream.onError(e);
+        }
+
+        @Override
+        public void onComplete() {
+            stage.elements.add(sampleEvery - countdown);
+            downstream.onComplete();
+        }
+
+        @Override
+        public void dispose() {
+            upstream.dispose();
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return upstream.isDisposed();
+        }
+    }
+
+    public static final class Metric {
+
+        private final String name;
+        private final long elements;
+        private final long elapsedNanos;
+        private final LatencyHistogram.Snapshot latency;
+
+        Metric(String name, long elements, long elapsedNanos, LatencyHistogram.Snapshot latency) {
+            this.name = name;
+            this.elements = elements;
+            this.elapsedNanos = elapsedNanos;
+            this.latency = latency;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        // elements that came out of the segment
+        public long elements() {
+            return elements;
+        }
+
+        public double elementsPerSecond() {
+            return elapsedNanos == 0 ? 0 : elements * 1e9 / elapsedNanos;
+        }
+
+        // the sampled time from going into the segment to coming out of it
+        public LatencyHistogram.Snapshot latency() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d elements, %.0f/s, %s", name, elements, elementsPerSecond(), latency);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.alephreach.main.operators;
+
+import java.util.Arrays;
+
+// A growable list of longs in one long[], 8 bytes per element where an ArrayList<Long> needs a
+// reference plus a 16 byte Long object. Not thread safe.
+
+public final class LongList {
+
+    private long[] elements;
+    private int size;
+
+    public LongList() {
+        this(16);
+    }
+
+    public LongList(int expectedSize) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("expectedSize >= 0 required but it was " + expectedSize);
+        }
+        this.elements = new long[Math.max(4, expectedSize)];
+    }
+
+    public void add(long value) {
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, elements.length + (elements.length >> 1));
+        }
+        elements[size++] = value;
+    }
+
+    public long get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return elements[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long[] toArray() {
+        return Arrays.copyOf(elements, size);
+    }
+
+    // drops the spare capacity once nothing more will be added
+    public LongList trimToSize() {
+        if (elements.length != size) {
+            elements = Arrays.copyOf(elements, Math.max(4, size));
+        }
+        return this;
+    }
+
+    // roughly how many bytes the list holds on to
+    public long footprintBytes() {
+        return 8L * elements.length + 40;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        int shown = Math.min(size, 100);
+        for (int i = 0; i < shown; i++) {
+            if (i != 0) {
+                sb.append(", ");
+            }
+            sb.append(elements[i]);
+        }
+        if (shown < size) {
+            sb.append(", ... ").append(size - shown).append(" more");
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,202 @@
+package com.alephreach.main.operators;
+
+import java.util.Arrays;
+
+// An open-addressing hash map from long keys to long values. Keys and values live in two primitive
+// arrays and collisions are resolved by linear probing, so there is no boxing and no entry object per
+// key. Key 0 is used to mark free slots and is stored on the side. Not thread safe.
+
+public final class LongLongHashMap {
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    private boolean hasZeroKey;
+    private long zeroValue;
+
+    public LongLongHashMap() {
+        this(16);
+    }
+
+    public LongLongHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) Math.ceil(expectedSize / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private LongLongHashMap(LongLongHashMap other) {
+        this.keys = other.keys.clone();
+        this.values = other.values.clone();
+        this.mask = other.mask;
+        this.size = other.size;
+        this.resizeAt = other.resizeAt;
+        this.hasZeroKey = other.hasZeroKey;
+        this.zeroValue = other.zeroValue;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) {
+            return hasZeroKey;
+        }
+        return keys[find(key)] == key;
+    }
+
+    public long get(long key, long defaultValue) {
+        if (key == 0) {
+            return hasZeroKey ? zeroValue : defaultValue;
+        }
+        int slot = find(key);
+        return keys[slot] == key ? values[slot] : defaultValue;
+    }
+
+    public void put(long key, long value) {
+        if (key == 0) {
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            zeroValue = value;
+            return;
+        }
+        int slot = find(key);
+        if (keys[slot] != key) {
+            keys[slot] = key;
+            if (++size > resizeAt) {
+                values[slot] = value;
+                rehash(keys.length << 1);
+                return;
+            }
+        }
+        values[slot] = value;
+    }
+
+    // keeps the sum for the key, starting from 0 for a new key
+    public long addTo(long key, long delta) {
+        long v = get(key, 0) + delta;
+        put(key, v);
+        return v;
+    }
+
+    // Folds value into the key's accumulator, starting from initial for a new key. One probe for
+    // existing keys, which is the common case when aggregating.
+    public <T> void fold(long key, long initial, LongFold<? super T> fold, T value) throws Exception {
+        if (key == 0) {
+            long acc = hasZeroKey ? zeroValue : initial;
+            zeroValue = fold.apply(acc, value);
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            return;
+        }
+        int slot = find(key);
+        if (keys[slot] == key) {
+            values[slot] = fold.apply(values[slot], value);
+            return;
+        }
+        long v = fold.apply(initial, value);
+        keys[slot] = key;
+        values[slot] = v;
+        if (++size > resizeAt) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        hasZeroKey = false;
+        size = 0;
+    }
+
+    public void forEach(LongLongConsumer consumer) {
+        if (hasZeroKey) {
+            consumer.accept(0, zeroValue);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                consumer.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    public LongLongHashMap copy() {
+        return new LongLongHashMap(this);
+    }
+
+    // roughly how many bytes the map holds on to
+    public long footprintBytes() {
+        return 16L * keys.length + 64;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        forEach((k, v) -> {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(k).append('=').append(v);
+        });
+        return sb.append('}').toString();
+    }
+
+    private int find(long key) {
+        int slot = mix(key) & mask;
+        long k;
+        while ((k = keys[slot]) != 0 && k != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long k = oldKeys[i];
+            if (k != 0) {
+                int slot = find(k);
+                keys[slot] = k;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    // the murmur3 finalizer, sequential IDs would otherwise land in neighbouring slots
+    static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    public interface LongFold<T> {
+        long apply(long accumulator, T value) throws Exception;
+    }
+
+    public interface LongLongConsumer {
+        void accept(long key, long value);
+    }
+}
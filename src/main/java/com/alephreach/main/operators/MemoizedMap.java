@@ -0,0 +1,113 @@
+package com.alephreach.main.operators;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.functions.Function;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntBiFunction;
+
+// map() calls the mapper for every emission, even when the same input came by a moment ago. For a
+// pure but expensive mapper, say LocalDate.parse() over a feed that repeats the same few thousand date
+// strings, mapMemoized() keeps the results in a BoundedCache keyed by the input and only calls the
+// mapper on a miss. The cache belongs to the transformer, so every stream composed with the same
+// MemoizedMap shares it.
+//
+// The mapper must be pure: the result for an input may come from any earlier call. Two threads
+// missing on the same input at the same time can both call it, and the first result is the one kept.
+
+public final class MemoizedMap<T, R> implements ObservableTransformer<T, R> {
+
+    private final Function<? super T, ? extends R> mapper;
+    private final BoundedCache<T, R> cache;
+    private final Metrics metrics;
+
+    private MemoizedMap(Function<? super T, ? extends R> mapper, BoundedCache<T, R> cache) {
+        this.mapper = mapper;
+        this.cache = cache;
+        this.metrics = new Metrics(cache);
+    }
+
+    public static <T, R> MemoizedMap<T, R> mapMemoized(Function<? super T, ? extends R> mapper, long maximumSize) {
+        if (mapper == null) {
+            throw new NullPointerException("mapper is null");
+        }
+        return new MemoizedMap<>(mapper, new BoundedCache<>(maximumSize));
+    }
+
+    // the cache holds entries up to a total weight of maximumWeight, as the weigher weighs them
+    public static <T, R> MemoizedMap<T, R> mapMemoized(Function<? super T, ? extends R> mapper, long maximumWeight,
+                                                       ToIntBiFunction<? super T, ? super R> weigher) {
+        if (mapper == null) {
+            throw new NullPointerException("mapper is null");
+        }
+        return new MemoizedMap<>(mapper, new BoundedCache<>(maximumWeight, weigher));
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    @Override
+    public ObservableSource<R> apply(Observable<T> upstream) {
+        return upstream.map(this::lookup);
+    }
+
+    R lookup(T t) throws Exception {
+        R value = cache.getIfPresent(t);
+        if (value != null) {
+            metrics.hits.incrementAndGet();
+            return value;
+        }
+        metrics.misses.incrementAndGet();
+        value = mapper.apply(t);
+        if (value == null) {
+            throw new NullPointerException("The mapper returned a null value");
+        }
+        return cache.putIfAbsent(t, value);
+    }
+
+    public static final class Metrics {
+
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final BoundedCache<?, ?> cache;
+
+        Metrics(BoundedCache<?, ?> cache) {
+            this.cache = cache;
+        }
+
+        public long hits() {
+            return hits.get();
+        }
+
+        public long misses() {
+            return misses.get();
+        }
+
+        public double hitRate() {
+            long h = hits.get();
+            long total = h + misses.get();
+            return total == 0 ? 0 : (double) h / total;
+        }
+
+        public long evictions() {
+            return cache.evictions();
+        }
+
+        public long size() {
+            return cache.size();
+        }
+
+        public long weight() {
+            return cache.weight();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("MemoizedMap.Metrics[hits=%d, misses=%d, hitRate=%.4f, evictions=%d, size=%d, weight=%d/%d]",
+                    hits(), misses(), hitRate(), evictions(), size(), weight(), cache.maximumWeight());
+        }
+    }
+}
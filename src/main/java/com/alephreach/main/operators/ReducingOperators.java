@@ -7,11 +7,19 @@ package com.alephreach.main.operators;
 //datasets. We will explore this behavior as we cover these operators.
 
 import com.alephreach.main.GlobalUtils;
+import com.alephreach.main.concurrency_parallelization.ParallelCollect;
+import com.alephreach.main.multicasting_casting_caching.IndexedCache;
 import io.reactivex.Observable;
 import io.reactivex.functions.Function;
 import io.reactivex.functions.Predicate;
+import io.reactivex.schedulers.Schedulers;
 
+import java.io.StringWriter;
 import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 public class ReducingOperators {
 
@@ -56,6 +64,47 @@ public class ReducingOperators {
                 .reduce("", (total, next) -> total + (total.equals("") ? "" : ",") + next)
                 .subscribe(s -> System.out.println("Received: " + s)); // Received: 5,3,7,10,2,14
 
+//        Be careful with that last one on anything bigger than a handful of emissions: every step creates
+//        a new String and copies everything accumulated so far into it, so it is quadratic. Joining
+//        appends to a single StringBuilder instead:
+
+        Observable.just(5, 3, 7, 10, 2, 14)
+                .compose(Joining.joining(","))
+                .subscribe(s -> System.out.println("Received: " + s)); // Received: 5,3,7,10,2,14
+
+//        and joiningTo() streams the text into a Writer every few thousand characters, so even the
+//        joined result never has to fit in memory:
+
+        StringWriter writer = new StringWriter();
+        GlobalUtils.getRangeObservable(1, 100)
+                .compose(Joining.joiningTo(writer, ",", 64))
+                .subscribe(written -> System.out.println(written + " characters written"));
+    }
+
+    private static void joining_benchmark() {
+        for (int n : new int[] {10_000, 100_000, 1_000_000}) {
+            long start = System.nanoTime();
+            long bytes = GlobalUtils.allocatedBytes();
+            int length = GlobalUtils.getRangeObservable(1, n)
+                    .compose(Joining.joining(","))
+                    .blockingSingle()
+                    .length();
+            System.out.printf("joining  %,9d items: %6d ms, %,15d bytes allocated, length %,d%n", n,
+                    (System.nanoTime() - start) / 1_000_000, GlobalUtils.allocatedBytes() - bytes, length);
+
+            // a million items with reduce() copies terabytes of chars, 100k already says enough
+            if (n > 100_000) {
+                continue;
+            }
+            start = System.nanoTime();
+            bytes = GlobalUtils.allocatedBytes();
+            length = GlobalUtils.getRangeObservable(1, n)
+                    .reduce("", (total, next) -> total + (total.equals("") ? "" : ",") + next)
+                    .blockingGet()
+                    .length();
+            System.out.printf("reduce   %,9d items: %6d ms, %,15d bytes allocated, length %,d%n", n,
+                    (System.nanoTime() - start) / 1_000_000, GlobalUtils.allocatedBytes() - bytes, length);
+        }
     }
 
     private static void all() {
@@ -103,11 +152,124 @@ public class ReducingOperators {
                 .subscribe(s -> System.out.println(s));
     }
 
+    private static void indexed_contains() {
+
+//        contains() scans the emissions on every call, even on a cache(). When the same cached stream
+//        is checked over and over, IndexedCache keeps a Bloom filter of everything it has cached, so
+//        most misses are answered without a scan. Only a possible match (or a lookup made before the
+//        source completed) scans like contains() does:
+
+        IndexedCache<Integer> reference = IndexedCache.indexedCache(GlobalUtils.getRangeObservable(1, 100_000), 100_000);
+        reference.cached().subscribe(); // fill the cache
+
+        long start = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (reference.contains(i * 37).blockingGet()) {
+                found++;
+            }
+        }
+        System.out.println("indexed: " + found + " found in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        System.out.println(reference.filter());
+        System.out.println(reference.metrics());
+
+        Observable<Integer> cached = GlobalUtils.getRangeObservable(1, 100_000).cache();
+        cached.subscribe();
+
+        start = System.nanoTime();
+        found = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (cached.contains(i * 37).blockingGet()) {
+                found++;
+            }
+        }
+        System.out.println("scanned: " + found + " found in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+//        With exact = true a HashSet is kept next to the filter and no lookup ever scans, at the cost
+//        of holding every item twice.
+
+        IndexedCache<Integer> exact = IndexedCache.indexedCache(GlobalUtils.getRangeObservable(1, 100_000), 100_000, 0.01, true);
+        exact.cached().subscribe();
+        exact.containsAny(Arrays.asList(-1, 0, 99_999)).subscribe(s -> System.out.println(s)); // true
+    }
+
+    private static void statistics() {
+
+//        A mean, a standard deviation or a percentile would normally mean toList() and a sort, which
+//        keeps every emission in memory. StreamingStatistics folds each emission as it arrives instead.
+//        stats() keeps a running mean and variance, quantiles() keeps a KLL sketch of a few hundred
+//        values whose percentiles are off by about 1.3% of rank, however long the stream is:
+
+        GlobalUtils.getRandomJustIntegerObservable()
+                .compose(StreamingStatistics.stats(i -> i))
+                .subscribe(s -> System.out.println(s)); // RunningStats[count=10, mean=6.2000, stdDev=4.5563, min=0.0, max=17.0]
+
+        Random random = new Random(42);
+
+        Observable.range(1, 10_000_000)
+                .map(i -> random.nextGaussian() * 15 + 100)
+                .compose(StreamingStatistics.quantiles(d -> d, 200))
+                .subscribe(s -> System.out.println(s)); // exact: p50 = 100, p95 = 124.7, p99 = 134.9, each give or take ~1.3% of rank
+
+//        Both also work per window, which is how you would use them on a stream that never completes.
+//        Sketches from different windows can be merged to get the percentiles over all of them:
+
+        KllSketch total = new KllSketch();
+
+        GlobalUtils.getIntervalObservable(1, TimeUnit.MILLISECONDS)
+                .take(2500)
+                .compose(StreamingStatistics.quantilesPerWindow(l -> l % 100, 200, 1, TimeUnit.SECONDS, Schedulers.computation()))
+                .doOnNext(sketch -> total.merge(sketch))
+                .blockingSubscribe(s -> System.out.println("window: " + s));
+
+        System.out.println("total: " + total);
+    }
+
+    private static void count_distinct() {
+
+//        Counting unique users with distinct().count() keeps every user id in memory. countDistinct()
+//        keeps a HyperLogLog of 4 KB instead and estimates the count to within about 1.6%:
+
+        Observable.range(0, 20_000_000)
+                .map(i -> i % 3_000_000)
+                .compose(DistinctCount.countDistinct())
+                .subscribe(s -> System.out.println(s)); // 3003039, where distinct().count() gives 3000000
+
+//        Sketches merge, so rails collecting in parallel can each keep their own and combine them at
+//        the end:
+
+        Observable.rangeLong(0, 5_000_000)
+                .compose(ParallelCollect.<Long, HyperLogLog>collect(HyperLogLog::new, HyperLogLog::add, HyperLogLog::merge))
+                .subscribe(s -> System.out.println(s)); // HyperLogLog[estimate=4833857, precision=12, error=1.63%, dense, bytes=4160]
+
+//        Items other than longs and strings are counted by their 32-bit hashCode(), which collides too
+//        often past some 100 million ids. For ids like these UUIDs, a key selector gives the sketch a
+//        64-bit key instead:
+
+        Observable.range(0, 5_000_000)
+                .map(i -> new UUID(i, i))
+                .compose(DistinctCount.sketch((UUID id) -> id.getMostSignificantBits() * 31 + id.getLeastSignificantBits(),
+                        HyperLogLog.DEFAULT_PRECISION))
+                .subscribe(s -> System.out.println(s)); // HyperLogLog[estimate=4933948, precision=12, error=1.63%, dense, bytes=4160]
+
+//        On a stream that never completes, runningCountDistinct() emits the count so far every window:
+
+        GlobalUtils.getIntervalObservable(1, TimeUnit.MILLISECONDS)
+                .map(l -> l % 1500)
+                .take(2500)
+                .compose(DistinctCount.runningCountDistinct(HyperLogLog.DEFAULT_PRECISION, 1, TimeUnit.SECONDS, Schedulers.computation()))
+                .blockingSubscribe(s -> System.out.println(s)); // 1009, 1514, 1514 where the exact counts are 1000, 1500, 1500
+    }
+
     public static void main(String[] args) {
 //        count();
 //        reduce();
+//        joining_benchmark();
 //        all();
 //        any();
+//        statistics();
+//        count_distinct();
+//        indexed_contains();
         contains();
     }
 
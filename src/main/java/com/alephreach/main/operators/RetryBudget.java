@@ -0,0 +1,90 @@
+package com.alephreach.main.operators;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Retries multiply the load on a dependency exactly when it can least take it: when everything
+// fails, every caller retries at once. A RetryBudget caps retries to a share of the calls made. It is
+// a token bucket: every call puts retryRatio tokens in, up to burst tokens, and every retry takes
+// one out. With no token left a retry is refused and the error goes downstream, so over any period
+// retries stay below retryRatio * calls + burst, however bad the outage.
+//
+// One budget is meant to be shared by every pipeline calling the same dependency. Lock free.
+
+public final class RetryBudget {
+
+    private static final long ONE = 1000;
+
+    private final long deposit;
+    private final long capacity;
+
+    // in thousandths of a token
+    private final AtomicLong balance;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong retriesAllowed = new AtomicLong();
+    private final AtomicLong retriesRefused = new AtomicLong();
+
+    private RetryBudget(long deposit, long capacity) {
+        this.deposit = deposit;
+        this.capacity = capacity;
+        this.balance = new AtomicLong(capacity);
+    }
+
+    // retryRatio 0.1 allows one retry for every 10 calls, burst is how many retries can be spent
+    // at once, and what the bucket starts with
+    public static RetryBudget create(double retryRatio, int burst) {
+        if (retryRatio < 0 || retryRatio > 1) {
+            throw new IllegalArgumentException("0 <= retryRatio <= 1 required but it was " + retryRatio);
+        }
+        if (burst <= 0) {
+            throw new IllegalArgumentException("burst > 0 required but it was " + burst);
+        }
+        return new RetryBudget(Math.round(retryRatio * ONE), burst * ONE);
+    }
+
+    public void recordCall() {
+        calls.incrementAndGet();
+        for (;;) {
+            long current = balance.get();
+            long next = Math.min(capacity, current + deposit);
+            if (current == next || balance.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    public boolean tryRetry() {
+        for (;;) {
+            long current = balance.get();
+            if (current < ONE) {
+                retriesRefused.incrementAndGet();
+                return false;
+            }
+            if (balance.compareAndSet(current, current - ONE)) {
+                retriesAllowed.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    public double availableRetries() {
+        return (double) balance.get() / ONE;
+    }
+
+    public long calls() {
+        return calls.get();
+    }
+
+    public long retriesAllowed() {
+        return retriesAllowed.get();
+    }
+
+    public long retriesRefused() {
+        return retriesRefused.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RetryBudget[available=%.1f, calls=%d, retriesAllowed=%d, retriesRefused=%d]",
+                availableRetries(), calls(), retriesAllowed(), retriesRefused());
+    }
+}
@@ -0,0 +1,87 @@
+package com.alephreach.main.operators;
+
+// Count, mean, variance, min and max in one pass, using Welford's update: the mean moves by
+// (x - mean) / n and m2 picks up (x - oldMean) * (x - newMean). Unlike the sum-of-squares shortcut this
+// stays accurate when the values are large and close together. Two instances can be merged
+// (Chan et al.), so partial results from windows or parallel rails combine exactly. Not thread safe.
+
+public final class RunningStats {
+
+    private long count;
+    private double mean;
+    private double m2;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+
+    public void add(double value) {
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+        if (count == 1) {
+            min = value;
+            max = value;
+        } else {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+    }
+
+    public RunningStats merge(RunningStats other) {
+        if (other.count == 0) {
+            return this;
+        }
+        if (count == 0) {
+            count = other.count;
+            mean = other.mean;
+            m2 = other.m2;
+            min = other.min;
+            max = other.max;
+            return this;
+        }
+        long n = count + other.count;
+        double delta = other.mean - mean;
+        mean += delta * other.count / n;
+        m2 += other.m2 + delta * delta * count * other.count / n;
+        count = n;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        return this;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    // NaN until the first value
+    public double mean() {
+        return count == 0 ? Double.NaN : mean;
+    }
+
+    public double variance() {
+        return count == 0 ? Double.NaN : m2 / count;
+    }
+
+    // divides by n - 1, for when the values are a sample of something bigger
+    public double sampleVariance() {
+        return count < 2 ? Double.NaN : m2 / (count - 1);
+    }
+
+    public double stdDev() {
+        return Math.sqrt(variance());
+    }
+
+    public double min() {
+        return min;
+    }
+
+    public double max() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RunningStats[count=%d, mean=%.4f, stdDev=%.4f, min=%s, max=%s]",
+                count, mean(), stdDev(), min, max);
+    }
+}
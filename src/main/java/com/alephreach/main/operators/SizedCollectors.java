@@ -0,0 +1,176 @@
+package com.alephreach.main.operators;
+
+import io.reactivex.ObservableSource;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.functions.Function;
+import io.reactivex.internal.fuseable.ScalarCallable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+
+// toList(), toMap() and toMultimap() start from default sized collections, so collecting n items
+// resizes (and copies) log(n) times, and every element ends up boxed and, for maps, wrapped in an
+// entry object. The collectors here:
+//
+// - take the expected size up front, or when it is left out, size each collection after the one
+//   the same transformer collected last time (a source known to be a single item gets size 1)
+// - collect numbers into LongList and LongLongHashMap, one or two long[] instead of an object per element
+// - collect multimaps into a CompactMultimap, one shared array of values instead of an ArrayList per key
+//
+// A transformer built without a size keeps that last size around, so reuse it for the same
+// source rather than creating one per subscription.
+
+public final class SizedCollectors {
+
+    private SizedCollectors() {
+    }
+
+    public static <T> ObservableTransformer<T, List<T>> toArrayList() {
+        return toArrayList(new SizeHint());
+    }
+
+    public static <T> ObservableTransformer<T, List<T>> toArrayList(int expectedSize) {
+        return toArrayList(new SizeHint(expectedSize));
+    }
+
+    public static <T> ObservableTransformer<T, LongList> toLongList(ToLongFunction<? super T> valueSelector) {
+        return toLongList(valueSelector, new SizeHint());
+    }
+
+    public static <T> ObservableTransformer<T, LongList> toLongList(ToLongFunction<? super T> valueSelector,
+                                                                    int expectedSize) {
+        return toLongList(valueSelector, new SizeHint(expectedSize));
+    }
+
+    public static <T, K, V> ObservableTransformer<T, Map<K, V>> toHashMap(Function<? super T, ? extends K> keySelector,
+                                                                         Function<? super T, ? extends V> valueSelector,
+                                                                         int expectedSize) {
+        if (keySelector == null || valueSelector == null) {
+            throw new NullPointerException("keySelector and valueSelector must not be null");
+        }
+        SizeHint hint = new SizeHint(expectedSize);
+        return upstream -> upstream
+                .collect(() -> new HashMap<K, V>(hashCapacity(hint.expected(upstream))),
+                        (map, t) -> map.put(keySelector.apply(t), valueSelector.apply(t)))
+                .map(map -> (Map<K, V>) map)
+                .toObservable();
+    }
+
+    // last value wins for a key, like toMap()
+    public static <T> ObservableTransformer<T, LongLongHashMap> toLongMap(ToLongFunction<? super T> keySelector,
+                                                                         ToLongFunction<? super T> valueSelector) {
+        return toLongMap(keySelector, valueSelector, new SizeHint());
+    }
+
+    public static <T> ObservableTransformer<T, LongLongHashMap> toLongMap(ToLongFunction<? super T> keySelector,
+                                                                         ToLongFunction<? super T> valueSelector,
+                                                                         int expectedKeys) {
+        return toLongMap(keySelector, valueSelector, new SizeHint(expectedKeys));
+    }
+
+    public static <T, K, V> ObservableTransformer<T, CompactMultimap<K, V>> toCompactMultimap(
+            Function<? super T, ? extends K> keySelector, Function<? super T, ? extends V> valueSelector) {
+        return toCompactMultimap(keySelector, valueSelector, new SizeHint(), new SizeHint());
+    }
+
+    public static <T, K, V> ObservableTransformer<T, CompactMultimap<K, V>> toCompactMultimap(
+            Function<? super T, ? extends K> keySelector, Function<? super T, ? extends V> valueSelector,
+            int expectedKeys, int expectedValues) {
+        return toCompactMultimap(keySelector, valueSelector, new SizeHint(expectedKeys), new SizeHint(expectedValues));
+    }
+
+    // the HashMap capacity that holds expectedSize entries without rehashing
+    static int hashCapacity(int expectedSize) {
+        return expectedSize < 3 ? 4 : (int) Math.min(1 << 30, (long) Math.ceil(expectedSize / 0.75));
+    }
+
+    private static <T> ObservableTransformer<T, List<T>> toArrayList(SizeHint hint) {
+        return upstream -> upstream
+                .collect(() -> new ArrayList<T>(hint.expected(upstream)), ArrayList::add)
+                .doOnSuccess(list -> hint.observed(list.size()))
+                .map(list -> (List<T>) list)
+                .toObservable();
+    }
+
+    private static <T> ObservableTransformer<T, LongList> toLongList(ToLongFunction<? super T> valueSelector,
+                                                                     SizeHint hint) {
+        if (valueSelector == null) {
+            throw new NullPointerException("valueSelector is null");
+        }
+        return upstream -> upstream
+                .collect(() -> new LongList(hint.expected(upstream)),
+                        (list, t) -> list.add(valueSelector.applyAsLong(t)))
+                .doOnSuccess(list -> hint.observed(list.size()))
+                .toObservable();
+    }
+
+    private static <T> ObservableTransformer<T, LongLongHashMap> toLongMap(ToLongFunction<? super T> keySelector,
+                                                                          ToLongFunction<? super T> valueSelector,
+                                                                          SizeHint hint) {
+        if (keySelector == null || valueSelector == null) {
+            throw new NullPointerException("keySelector and valueSelector must not be null");
+        }
+        return upstream -> upstream
+                .collect(() -> new LongLongHashMap(hint.expected(upstream)),
+                        (map, t) -> map.put(keySelector.applyAsLong(t), valueSelector.applyAsLong(t)))
+                .doOnSuccess(map -> hint.observed(map.size()))
+                .toObservable();
+    }
+
+    private static <T, K, V> ObservableTransformer<T, CompactMultimap<K, V>> toCompactMultimap(
+            Function<? super T, ? extends K> keySelector, Function<? super T, ? extends V> valueSelector,
+            SizeHint keyHint, SizeHint valueHint) {
+        if (keySelector == null || valueSelector == null) {
+            throw new NullPointerException("keySelector and valueSelector must not be null");
+        }
+        return upstream -> upstream
+                .collect(() -> new CompactMultimap<K, V>(keyHint.expected(upstream), valueHint.expected(upstream)),
+                        (map, t) -> map.put(keySelector.apply(t), valueSelector.apply(t)))
+                .map(CompactMultimap::compact)
+                .doOnSuccess(map -> {
+                    keyHint.observed(map.keyCount());
+                    valueHint.observed((int) map.valueCount());
+                })
+                .toObservable();
+    }
+
+    // A fixed expected size, or the size collected last time when none was given.
+    static final class SizeHint {
+
+        static final int DEFAULT = 16;
+
+        final int fixed;
+        final AtomicInteger last = new AtomicInteger(DEFAULT);
+
+        SizeHint() {
+            this.fixed = -1;
+        }
+
+        SizeHint(int fixed) {
+            if (fixed < 0) {
+                throw new IllegalArgumentException("expectedSize >= 0 required but it was " + fixed);
+            }
+            this.fixed = fixed;
+        }
+
+        int expected(ObservableSource<?> upstream) {
+            if (fixed >= 0) {
+                return fixed;
+            }
+            if (upstream instanceof ScalarCallable) {
+                return 1;
+            }
+            return last.get();
+        }
+
+        void observed(int size) {
+            if (fixed < 0) {
+                last.set(size);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.alephreach.main.operators;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.Scheduler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+// toList() followed by a sort works for percentiles, but it holds the whole stream in memory and never
+// finishes on an infinite one. These operators fold every element into a RunningStats (mean, variance,
+// min, max) or a KllSketch (quantiles) as it arrives, so memory stays the same however many elements
+// go through.
+//
+// stats() and quantiles() emit once when the source completes, like reduce(). The PerWindow variants
+// emit one result per time window and also work on sources that never complete.
+
+public final class StreamingStatistics {
+
+    private StreamingStatistics() {
+    }
+
+    public static <T> ObservableTransformer<T, RunningStats> stats(ToDoubleFunction<? super T> valueSelector) {
+        if (valueSelector == null) {
+            throw new NullPointerException("valueSelector is null");
+        }
+        return upstream -> upstream
+                .collect(RunningStats::new, (stats, t) -> stats.add(valueSelector.applyAsDouble(t)))
+                .toObservable();
+    }
+
+    public static <T> ObservableTransformer<T, KllSketch> quantiles(ToDoubleFunction<? super T> valueSelector) {
+        return quantiles(valueSelector, KllSketch.DEFAULT_K);
+    }
+
+    // larger k means smaller rank error and a bigger sketch, see KllSketch.withRankError()
+    public static <T> ObservableTransformer<T, KllSketch> quantiles(ToDoubleFunction<? super T> valueSelector, int k) {
+        if (valueSelector == null) {
+            throw new NullPointerException("valueSelector is null");
+        }
+        return upstream -> upstream
+                .collect(() -> new KllSketch(k), (sketch, t) -> sketch.add(valueSelector.applyAsDouble(t)))
+                .toObservable();
+    }
+
+    // an empty window still emits, with a count of 0
+    public static <T> ObservableTransformer<T, RunningStats> statsPerWindow(ToDoubleFunction<? super T> valueSelector,
+                                                                          long timespan, TimeUnit unit,
+                                                                          Scheduler scheduler) {
+        ObservableTransformer<T, RunningStats> stats = stats(valueSelector);
+        return upstream -> upstream
+                .window(timespan, unit, scheduler)
+                .concatMap((Observable<T> window) -> window.compose(stats));
+    }
+
+    public static <T> ObservableTransformer<T, KllSketch> quantilesPerWindow(ToDoubleFunction<? super T> valueSelector,
+                                                                           int k, long timespan, TimeUnit unit,
+                                                                           Scheduler scheduler) {
+        ObservableTransformer<T, KllSketch> quantiles = quantiles(valueSelector, k);
+        return upstream -> upstream
+                .window(timespan, unit, scheduler)
+                .concatMap((Observable<T> window) -> window.compose(quantiles));
+    }
+}
@@ -4,6 +4,7 @@ import com.alephreach.main.GlobalUtils;
 import io.reactivex.Observable;
 import io.reactivex.functions.Function;
 import io.reactivex.functions.Predicate;
+import io.reactivex.schedulers.Schedulers;
 
 import java.util.concurrent.TimeUnit;
 
@@ -92,6 +93,41 @@ public class SuppressingOperators {
                 .subscribe(s -> System.out.println(s));
     }
 
+    private static void distinct_bounded() {
+
+//        On an endless stream, distinct()'s HashSet never stops growing. ApproximateDistinct keeps the
+//        keys in fixed size Bloom filters instead and forgets the oldest ones, so memory stays the same.
+//        A small share of new keys (the false positive rate) is wrongly dropped as a duplicate.
+//        Here 5 million events over 1 million user ids, remembering at least the last 500k ids:
+
+        ApproximateDistinct<Integer, Integer> distinct = ApproximateDistinct.distinctApproximate(500_000, 0.001);
+
+        long count = Observable.range(0, 5_000_000)
+                .map(i -> GlobalUtils.getRandomNumber(1_000_000))
+                .compose(distinct)
+                .count()
+                .blockingGet();
+        System.out.println(count + " emitted, " + distinct.metrics());
+
+        // output
+        // 992645 emitted, ApproximateDistinct.Metrics[emitted=992645, suppressed=4007355, rotations=1, fpp=0.00190, memory=1,797,328 bytes]
+        // distinct() would emit all 1000000 ids and hold every one of them in its HashSet
+
+//        distinctWithin() forgets on time instead: every key is let through at most once per window.
+
+        ApproximateDistinct<Long, Long> perSecond = ApproximateDistinct.distinctWithin(i -> i % 100,
+                1, TimeUnit.SECONDS, 2, 1000, 0.01, Schedulers.computation());
+
+        GlobalUtils.getIntervalObservable(10, TimeUnit.MILLISECONDS)
+                .take(500)
+                .compose(perSecond)
+                .blockingSubscribe(s -> { });
+        System.out.println(perSecond.metrics());
+
+        // output, each of the 100 keys comes through again once it has been forgotten
+        // ApproximateDistinct.Metrics[emitted=300, suppressed=200, rotations=5, fpp=0.00000, memory=2,528 bytes]
+    }
+
     private static void distinctUntilChanged() {
 
         // tl;dr distinct() never emit the same value, distinctUntilChanged() never emit the same value **consecutively**
@@ -134,6 +170,7 @@ public class SuppressingOperators {
         //takeWhile();
         //skipWhile();
         //distinct();
+        //distinct_bounded();
         //distinctUntilChanged();
         elementAt();
     }
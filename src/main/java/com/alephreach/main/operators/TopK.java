@@ -0,0 +1,156 @@
+package com.alephreach.main.operators;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.Scheduler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// sorted(Comparator.reverseOrder()).take(k) sorts every emission to keep k of them: O(n log n) time and
+// O(n) memory. topK() keeps the best k seen so far in a heap of size k whose root is the worst of
+// them. A new emission either loses against the root, which is one comparison, or replaces it,
+// which is O(log k). That makes the whole stream O(n log k) time in O(k) memory.
+//
+// topK() emits the k greatest items greatest first, bottomK() the k smallest items smallest first,
+// the same as sorted(...).take(k). An item equal to the current root does not replace it, so among
+// equal items the earlier ones are kept. The PerWindow variants emit the top k of every time window
+// as a List, and also work on sources that never complete.
+
+public final class TopK {
+
+    private TopK() {
+    }
+
+    public static <T extends Comparable<? super T>> ObservableTransformer<T, T> topK(int k) {
+        return topK(k, Comparator.<T>naturalOrder());
+    }
+
+    public static <T> ObservableTransformer<T, T> topK(int k, Comparator<? super T> comparator) {
+        ObservableTransformer<T, List<T>> collect = collect(k, comparator);
+        return upstream -> upstream.compose(collect).flatMapIterable(list -> list);
+    }
+
+    public static <T extends Comparable<? super T>> ObservableTransformer<T, T> bottomK(int k) {
+        return bottomK(k, Comparator.<T>naturalOrder());
+    }
+
+    public static <T> ObservableTransformer<T, T> bottomK(int k, Comparator<? super T> comparator) {
+        if (comparator == null) {
+            throw new NullPointerException("comparator is null");
+        }
+        return topK(k, Collections.reverseOrder(comparator));
+    }
+
+    // an empty window emits an empty list
+    public static <T> ObservableTransformer<T, List<T>> topKPerWindow(int k, Comparator<? super T> comparator,
+                                                                     long timespan, TimeUnit unit,
+                                                                     Scheduler scheduler) {
+        ObservableTransformer<T, List<T>> collect = collect(k, comparator);
+        return upstream -> upstream
+                .window(timespan, unit, scheduler)
+                .concatMap((Observable<T> window) -> window.compose(collect));
+    }
+
+    public static <T> ObservableTransformer<T, List<T>> bottomKPerWindow(int k, Comparator<? super T> comparator,
+                                                                        long timespan, TimeUnit unit,
+                                                                        Scheduler scheduler) {
+        if (comparator == null) {
+            throw new NullPointerException("comparator is null");
+        }
+        return topKPerWindow(k, Collections.reverseOrder(comparator), timespan, unit, scheduler);
+    }
+
+    private static <T> ObservableTransformer<T, List<T>> collect(int k, Comparator<? super T> comparator) {
+        if (comparator == null) {
+            throw new NullPointerException("comparator is null");
+        }
+        if (k <= 0) {
+            throw new IllegalArgumentException("k > 0 required but it was " + k);
+        }
+        return upstream -> upstream
+                .collect(() -> new BoundedHeap<T>(k, comparator), BoundedHeap::offer)
+                .map(BoundedHeap::toSortedList)
+                .toObservable();
+    }
+
+    // A binary min-heap (by comparator) that holds on to the k greatest items offered.
+    static final class BoundedHeap<T> {
+
+        final int k;
+        final Comparator<? super T> comparator;
+        Object[] items;
+        int size;
+
+        BoundedHeap(int k, Comparator<? super T> comparator) {
+            this.k = k;
+            this.comparator = comparator;
+            // start small, k can be much larger than the stream
+            this.items = new Object[Math.min(k, 16)];
+        }
+
+        @SuppressWarnings("unchecked")
+        void offer(T item) {
+            if (size < k) {
+                if (size == items.length) {
+                    items = Arrays.copyOf(items, Math.min(k, size * 2));
+                }
+                items[size] = item;
+                siftUp(size++);
+            } else if (comparator.compare(item, (T) items[0]) > 0) {
+                items[0] = item;
+                siftDown(0);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        List<T> toSortedList() {
+            List<T> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                list.add((T) items[i]);
+            }
+            list.sort(Collections.reverseOrder(comparator));
+            return list;
+        }
+
+        @SuppressWarnings("unchecked")
+        void siftUp(int index) {
+            T item = (T) items[index];
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                T p = (T) items[parent];
+                if (comparator.compare(item, p) >= 0) {
+                    break;
+                }
+                items[index] = p;
+                index = parent;
+            }
+            items[index] = item;
+        }
+
+        @SuppressWarnings("unchecked")
+        void siftDown(int index) {
+            T item = (T) items[index];
+            int half = size >>> 1;
+            while (index < half) {
+                int child = 2 * index + 1;
+                T c = (T) items[child];
+                int right = child + 1;
+                if (right < size && comparator.compare((T) items[right], c) < 0) {
+                    child = right;
+                    c = (T) items[child];
+                }
+                if (comparator.compare(item, c) <= 0) {
+                    break;
+                }
+                items[index] = c;
+                index = child;
+            }
+            items[index] = item;
+        }
+    }
+}
@@ -4,10 +4,13 @@ import com.alephreach.main.GlobalUtils;
 import io.reactivex.Observable;
 import io.reactivex.functions.Function;
 import io.reactivex.functions.Predicate;
+import io.reactivex.schedulers.Schedulers;
 
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
 
@@ -31,6 +34,59 @@ public class TransformingOperators {
                 .subscribe(d -> System.out.println(d));
     }
 
+    private static void map_memoized() {
+
+//        A real feed repeats the same few thousand date strings millions of times, and map() parses
+//        every one of them again. mapMemoized() caches the parsed dates by input string, so the parse
+//        only runs on a miss. The cache is bounded, and keeps the strings asked for most often when
+//        there are more than fit:
+
+        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("M/d/yyyy");
+        LocalDate first = LocalDate.of(2010, 1, 1);
+        Random random = new Random(1);
+        String[] feed = new String[5_000_000];
+        for (int i = 0; i < feed.length; i++) {
+            feed[i] = first.plusDays(random.nextInt(3000)).format(dtf);
+        }
+
+        MemoizedMap<String, LocalDate> parse = MemoizedMap.mapMemoized(s -> LocalDate.parse(s, dtf), 10_000);
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            long count = Observable.fromArray(feed)
+                    .map(s -> LocalDate.parse(s, dtf))
+                    .filter(date -> date.getMonthValue() >= 6)
+                    .count()
+                    .blockingGet();
+            System.out.printf("map:         %d in %d ms%n", count, (System.nanoTime() - start) / 1_000_000);
+
+            start = System.nanoTime();
+            count = Observable.fromArray(feed)
+                    .compose(parse)
+                    .filter(date -> date.getMonthValue() >= 6)
+                    .count()
+                    .blockingGet();
+            System.out.printf("mapMemoized: %d in %d ms%n", count, (System.nanoTime() - start) / 1_000_000);
+        }
+        System.out.println(parse.metrics());
+
+        // output, the last round
+        // map:         2852785 in 2237 ms
+        // mapMemoized: 2852785 in 485 ms
+        // MemoizedMap.Metrics[hits=14997000, misses=3000, hitRate=0.9998, evictions=0, size=3000, weight=3000/10000]
+
+//        With a weigher the capacity is a total weight instead of a number of entries, here the
+//        length of the cached strings:
+
+        MemoizedMap<Integer, String> describe = MemoizedMap.mapMemoized(i -> "item-" + i, 1000, (i, s) -> s.length());
+
+        Observable.range(0, 100_000)
+                .map(i -> i % 100)
+                .compose(describe)
+                .blockingSubscribe(s -> { });
+        System.out.println(describe.metrics()); // MemoizedMap.Metrics[hits=99900, misses=100, hitRate=0.9990, evictions=0, size=100, weight=690/1000]
+    }
+
     private static void cast() {
 
 //        A simple, map-like operator to cast each emission to a different type is cast(). If we want
@@ -111,6 +167,67 @@ public class TransformingOperators {
                 .subscribe(System.out::println);
     }
 
+    private static void top_k() {
+
+//        A very common use of sorted() is sorted(...) followed by take(k), which still sorts every
+//        emission. TopK keeps only the k best in a small heap while the emissions go by:
+
+        Observable.just(6, 2, 5, 7, 1, 4, 9, 8, 3)
+                .compose(TopK.topK(3))
+                .subscribe(System.out::println); // 9, 8, 7
+
+        GlobalUtils.getStringJustObservable()
+                .compose(TopK.bottomK(2, Comparator.comparing(String::length)))
+                .subscribe(System.out::println); // Beta, Alpha
+
+        int n = 10_000_000;
+        int[] numbers = new int[n];
+        for (int i = 0; i < n; i++) {
+            numbers[i] = GlobalUtils.getRandomNumber(Integer.MAX_VALUE);
+        }
+        Observable<Integer> source = Observable.range(0, n).map(i -> numbers[i]);
+
+        long start = System.nanoTime();
+        List<Integer> sorted = source.sorted(Comparator.reverseOrder()).take(10).toList().blockingGet();
+        System.out.println("sorted().take(10): " + (System.nanoTime() - start) / 1_000_000 + " ms " + sorted);
+
+        start = System.nanoTime();
+        List<Integer> top = source.compose(TopK.topK(10)).toList().blockingGet();
+        System.out.println("topK(10):          " + (System.nanoTime() - start) / 1_000_000 + " ms " + top);
+
+//        On a stream that never completes, the PerWindow variants emit the top k of every window:
+
+        GlobalUtils.getIntervalObservable(1, TimeUnit.MILLISECONDS)
+                .take(3000)
+                .map(i -> GlobalUtils.getRandomNumber(1000))
+                .compose(TopK.topKPerWindow(5, Comparator.<Integer>naturalOrder(), 1, TimeUnit.SECONDS, Schedulers.computation()))
+                .blockingSubscribe(System.out::println);
+    }
+
+    private static void sorted_external() {
+
+//        sorted() keeps every emission on the heap until the source completes, so a stream bigger than
+//        the heap ends in an OutOfMemoryError. ExternalSort sorts runs of a fixed size, writes each one to
+//        a temp file and merges the files back together at the end. Run this one with -Xmx256m, 50 million
+//        Integers would need well over a gigabyte with sorted():
+
+        int n = 50_000_000;
+        long start = System.nanoTime();
+        long[] previous = {Long.MIN_VALUE};
+        long count = Observable.range(0, n)
+                .map(i -> GlobalUtils.getRandomNumber(Integer.MAX_VALUE))
+                .compose(ExternalSort.sortedExternal(ExternalSort.integers(), 1_000_000))
+                .doOnNext(i -> {
+                    if (i < previous[0]) {
+                        throw new IllegalStateException(i + " after " + previous[0]);
+                    }
+                    previous[0] = i;
+                })
+                .count()
+                .blockingGet();
+        System.out.println(count + " sorted in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
     private static void delay() {
 
 //        We can postpone emissions using the delay() operator. It will hold any received emissions
@@ -178,11 +295,14 @@ public class TransformingOperators {
 
     public static void main(String[] args) {
 //        map();
+//        map_memoized();
 //        cast();
 //        startWith();
 //        defaultIfEmpty();
 //        switchIfEmpty();
 //        sorted();
+//        top_k();
+//        sorted_external();
 //        delay();
 //        repeat();
 //        scan();